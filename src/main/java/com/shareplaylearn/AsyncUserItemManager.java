@@ -0,0 +1,203 @@
+package com.shareplaylearn;
+
+import com.shareplaylearn.models.ItemSchema;
+import com.shareplaylearn.models.UserItem;
+import com.shareplaylearn.services.WorkerPools;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the calls of a UserItemManager on executors, and hands back CompletableFutures,
+ * so callers (e.g., servlet threads) don't have to wait on the item store themselves.
+ *
+ * Uploads run on the cpu executor (processing is most of their work, and their writes are fanned out
+ * on the io pool from there), everything else on the io executor. By default, both are bounded pools
+ * shared by every AsyncUserItemManager, which reject calls once they're saturated (failing the future
+ * with a RejectedExecutionException), so the caller's thread never runs the call itself.
+ * (The WorkerPools aren't used directly, as they run tasks on the calling thread once they're saturated.)
+ *
+ * Cancelling a future (with mayInterruptIfRunning) interrupts the call if it's running, and keeps it
+ * from starting if it isn't. With a timeout set, calls that take longer fail with a TimeoutException,
+ * and are interrupted the same way. A call that's already written to the store may still have, so an
+ * interrupted add or delete should be checked (or retried) like any other failed one.
+ * Failures complete the future exceptionally, with the exception the blocking call would have thrown.
+ */
+public class AsyncUserItemManager {
+    private static final ScheduledThreadPoolExecutor timeouts = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "uim-timeouts");
+        thread.setDaemon(true);
+        return thread;
+    });
+    static {
+        timeouts.setRemoveOnCancelPolicy(true);
+    }
+    public static final int DEFAULT_IO_CALL_THREADS = WorkerPools.DEFAULT_IO_THREADS;
+    public static final int DEFAULT_IO_CALL_QUEUE_SIZE = 1024;
+    public static final int DEFAULT_CPU_CALL_THREADS = WorkerPools.DEFAULT_CPU_THREADS;
+    //uploads hold their bytes while they wait
+    public static final int DEFAULT_CPU_CALL_QUEUE_SIZE = 64;
+    private static final ExecutorService defaultIoExecutor = WorkerPools.newRejectingPool("uim-async-io",
+            DEFAULT_IO_CALL_THREADS, DEFAULT_IO_CALL_QUEUE_SIZE);
+    private static final ExecutorService defaultCpuExecutor = WorkerPools.newRejectingPool("uim-async-cpu",
+            DEFAULT_CPU_CALL_THREADS, DEFAULT_CPU_CALL_QUEUE_SIZE);
+
+    /**
+     * A call, and the future of its result. It remembers the thread running it, so it can be interrupted.
+     */
+    private static class Call<T>
+        extends CompletableFuture<T>
+        implements Runnable {
+        private final Callable<T> callable;
+        private Thread runner;
+        //whether interrupt() interrupted the runner, as opposed to someone else
+        private boolean interrupted;
+
+        Call( Callable<T> callable ) {
+            this.callable = callable;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                //cancelled, or timed out, before it started
+                if( isDone() ) {
+                    return;
+                }
+                runner = Thread.currentThread();
+            }
+            try {
+                complete(callable.call());
+            } catch (Throwable e) {
+                completeExceptionally(e);
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                    //an interrupt meant for this call mustn't leak into the executor's next task
+                    //(or the caller, if it ran the call), but any other interrupt is left for its owner
+                    if( interrupted ) {
+                        Thread.interrupted();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean cancel( boolean mayInterruptIfRunning ) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if( cancelled && mayInterruptIfRunning ) {
+                interrupt();
+            }
+            return cancelled;
+        }
+
+        synchronized void interrupt() {
+            if( runner != null ) {
+                interrupted = true;
+                runner.interrupt();
+            }
+        }
+    }
+
+    private final UserItemManager userItemManager;
+    private final Executor ioExecutor;
+    private final Executor cpuExecutor;
+    private volatile long timeoutMs = 0;
+
+    public AsyncUserItemManager( UserItemManager userItemManager ) {
+        this(userItemManager, defaultIoExecutor, defaultCpuExecutor);
+    }
+
+    /**
+     * @param ioExecutor - runs reads, listings and deletes
+     * @param cpuExecutor - runs uploads
+     */
+    public AsyncUserItemManager( UserItemManager userItemManager, Executor ioExecutor, Executor cpuExecutor ) {
+        this.userItemManager = userItemManager;
+        this.ioExecutor = ioExecutor;
+        this.cpuExecutor = cpuExecutor;
+    }
+
+    public UserItemManager getUserItemManager() {
+        return userItemManager;
+    }
+
+    public long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    /**
+     * @param timeout - how long a call has, from when it's made (so including any time spent queued),
+     *                before it fails with a TimeoutException. Zero (the default) for no limit.
+     */
+    public AsyncUserItemManager setTimeout( long timeout, TimeUnit unit ) {
+        this.timeoutMs = unit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * @see UserItemManager#addItem(String, byte[])
+     */
+    public CompletableFuture<Void> addItem( String name, byte[] item ) {
+        return submit(cpuExecutor, () -> {
+            userItemManager.addItem(name, item);
+            return null;
+        });
+    }
+
+    /**
+     * @see UserItemManager#getItem(String, ItemSchema.PresentationType, String, String)
+     */
+    public CompletableFuture<byte[]> getItem( String fileType, ItemSchema.PresentationType presentationType,
+                                              String name, String encoding ) {
+        return submit(ioExecutor, () -> userItemManager.getItem(fileType, presentationType, name, encoding));
+    }
+
+    /**
+     * A cached list is returned already completed, without a trip through the executor.
+     * @see UserItemManager#getItemList()
+     */
+    public CompletableFuture<List<UserItem>> getItemList() {
+        List<UserItem> cached = userItemManager.getItemListCache().get(userItemManager.getUserDir());
+        if( cached != null ) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return submit(ioExecutor, userItemManager::getItemList);
+    }
+
+    /**
+     * @see UserItemManager#deleteItemAtLocation(String, ItemSchema.PresentationType, String)
+     */
+    public CompletableFuture<Boolean> deleteItemAtLocation( String fileType,
+                                                            ItemSchema.PresentationType presentationType,
+                                                            String itemName ) {
+        return submit(ioExecutor, () -> userItemManager.deleteItemAtLocation(fileType, presentationType, itemName));
+    }
+
+    private <T> CompletableFuture<T> submit( Executor executor, Callable<T> callable ) {
+        Call<T> call = new Call<>(callable);
+        long timeoutMs = this.timeoutMs;
+        if( timeoutMs > 0 ) {
+            ScheduledFuture<?> timeout = timeouts.schedule( () -> {
+                if( call.completeExceptionally(new TimeoutException("Call timed out after: " + timeoutMs + "ms")) ) {
+                    call.interrupt();
+                }
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+            call.whenComplete( (result, e) -> timeout.cancel(false) );
+        }
+        try {
+            executor.execute(call);
+        } catch (RejectedExecutionException e) {
+            call.completeExceptionally(e);
+        }
+        return call;
+    }
+}
@@ -15,7 +15,11 @@ public class Limits {
     public static final int MAX_NUM_FILES_PER_USER = 100;
     public static final int MAX_TOTAL_FILES = 1000;
     public static final int DEFAULT_ITEM_QUOTA = 100;
+    //size of the in-memory item content cache, in MB
     public static final int IN_MEMORY_CACHE_LIMIT = 10;
+    public static final int IN_MEMORY_CACHE_MAX_ITEMS = 1000;
+    //bigger items are always read from the item store
+    public static final int IN_MEMORY_CACHE_MAX_ITEM_SIZE = 1024*1024;
     //limit retrieves to 0.5 GB for now (Tomcat should limit uploads to 2MB).
     //raise to 1 GB when we buy more memory (if needed)
     public static final int MAX_RETRIEVE_SIZE = (1024*1024*1024)/2;
@@ -1,30 +1,60 @@
 package com.shareplaylearn;
 
-import com.amazonaws.AmazonClientException;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.model.*;
-import com.amazonaws.util.Base64;
+import com.shareplaylearn.cache.CachedContent;
+import com.shareplaylearn.cache.ContentCache;
+import com.shareplaylearn.cache.ItemListCache;
 import com.shareplaylearn.exceptions.InternalErrorException;
+import com.shareplaylearn.exceptions.InvalidRangeException;
+import com.shareplaylearn.exceptions.ItemNotFoundException;
+import com.shareplaylearn.exceptions.ItemStoreException;
 import com.shareplaylearn.exceptions.QuotaExceededException;
 import com.shareplaylearn.exceptions.UnsupportedEncodingException;
+import com.shareplaylearn.io.Base64EncodingInputStream;
+import com.shareplaylearn.io.BoundedInputStream;
+import com.shareplaylearn.io.ByteBufferInputStream;
+import com.shareplaylearn.io.ContentCodecs;
+import com.shareplaylearn.io.EncodedInputStream;
+import com.shareplaylearn.io.Streams;
+import com.shareplaylearn.models.AddResult;
+import com.shareplaylearn.models.DeleteResult;
+import com.shareplaylearn.models.ItemRange;
 import com.shareplaylearn.models.ItemSchema;
 import com.shareplaylearn.models.UploadMetadataFields;
 import com.shareplaylearn.models.UserItem;
-import com.shareplaylearn.services.ImagePreprocessorPlugin;
-import com.shareplaylearn.services.SecretsService;
+import com.shareplaylearn.services.PresentationQueue;
+import com.shareplaylearn.services.ProcessedUpload;
+import com.shareplaylearn.services.QuotaService;
 import com.shareplaylearn.services.UploadPreprocessor;
 import com.shareplaylearn.services.UploadPreprocessorPlugin;
+import com.shareplaylearn.services.WorkerPools;
+import com.shareplaylearn.storage.BlobStore;
+import com.shareplaylearn.storage.ItemMetadata;
+import com.shareplaylearn.storage.ItemStore;
+import com.shareplaylearn.storage.ItemSummary;
+import com.shareplaylearn.storage.Ranges;
+import com.shareplaylearn.storage.S3ItemStore;
+import com.shareplaylearn.storage.StoredItem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.util.*;
-
-import static org.apache.http.entity.ContentType.APPLICATION_OCTET_STREAM;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Created by stu on 9/6/15.
@@ -33,8 +63,16 @@ import static org.apache.http.entity.ContentType.APPLICATION_OCTET_STREAM;
  * Location, type, names, etc.
  * Data here should be safe to cache in Redis (userid but no auth tokens, etc).
  * Right now, we just implicitly store the metadata as part of the item path.
+ * Item bytes go through an ItemStore - S3 by default, but the local filesystem and
+ * in-memory stores can be passed in for testing, profiling, or small deployments.
  * Once we have a true metadata store, this code can be greatly simplified.
  * (in particular, the getItemList() that reconstructs metadata from the path).
+ * With deferred presentations (see setDeferPresentations()), uploads only store the original,
+ * and previews, etc, are made in the background by the store's PresentationQueue.
+ * With deduplication (see setDeduplicate()), uploads are stored once per distinct content in a BlobStore,
+ * and items are references to it.
+ * Items of unknown type (often text) can be stored compressed (see setCompressUnknownItems()),
+ * they're decompressed as they're read, unless the caller can take them compressed.
  */
 @SuppressWarnings({"WeakerAccess", "unused"})
 public class UserItemManager {
@@ -45,17 +83,60 @@ public class UserItemManager {
             return encoding.equals(BASE64) || encoding.equals(IDENTITY);
         }
     }
+    public static final double DEFAULT_MIN_COMPRESSION_SAVINGS = 0.2;
+    //streamed uploads are read this far to find their plugin, ones no longer than this are added from memory
+    public static final int STREAM_HEADER_SIZE = 64 * 1024;
+    //how many items of a batch upload can be between being read and being stored
+    public static final int DEFAULT_BATCH_PIPELINE_DEPTH = 2 * WorkerPools.DEFAULT_CPU_THREADS;
+    //how many times new shared content is stored, if it's deleted (by another process) as it's referenced
+    private static final int MAX_SHARE_ATTEMPTS = 3;
     private static final String ROOT_DIR = "/root/";
+    private static final String ROOT_SEGMENT = "root";
+    //shared, so all the default managers share the caches kept per store
+    private static final ItemStore DEFAULT_ITEM_STORE = new S3ItemStore(ItemSchema.S3_BUCKET);
+    //the preprocessor and its plugins are stateless, so the managers not given their own share this one
+    private static final UploadPreprocessor DEFAULT_UPLOAD_PREPROCESSOR = UploadPreprocessor.loadPlugins();
 
     private int totalItemQuota = Limits.DEFAULT_ITEM_QUOTA;
     private HashMap<String,Integer> itemQuota;
     private Logger log;
     private String userName;
     private String userId;
+    private final ItemStore itemStore;
+    private final UploadPreprocessor uploadPreprocessor;
+    private final ItemListCache itemListCache;
+    private final QuotaService quotaService;
+    private final ContentCache contentCache;
+    private final PresentationQueue presentationQueue;
+    private boolean deferPresentations = false;
+    private final BlobStore blobStore;
+    private boolean deduplicate = false;
+    private boolean compressUnknownItems = false;
+    private double minCompressionSavings = DEFAULT_MIN_COMPRESSION_SAVINGS;
+    private int batchPipelineDepth = DEFAULT_BATCH_PIPELINE_DEPTH;
 
     public UserItemManager(String userName, String userId) {
+        this(userName, userId, DEFAULT_ITEM_STORE);
+    }
+
+    public UserItemManager(String userName, String userId, ItemStore itemStore) {
+        this(userName, userId, itemStore, DEFAULT_UPLOAD_PREPROCESSOR);
+    }
+
+    /**
+     * @param uploadPreprocessor - makes the presentations of uploads, e.g., with plugins configured
+     *                           for your deployment (byte budgets, size ladders, scalers, ...)
+     */
+    public UserItemManager(String userName, String userId, ItemStore itemStore, UploadPreprocessor uploadPreprocessor) {
         this.userName = userName;
         this.userId = userId;
+        this.itemStore = itemStore;
+        this.uploadPreprocessor = uploadPreprocessor;
+        this.itemListCache = ItemListCache.forStore(itemStore);
+        this.quotaService = QuotaService.forStore(itemStore);
+        this.contentCache = ContentCache.forStore(itemStore);
+        this.presentationQueue = PresentationQueue.forStore(itemStore);
+        this.blobStore = new BlobStore(itemStore);
         this.itemQuota = new HashMap<>();
         this.itemQuota.put(ItemSchema.IMAGE_CONTENT_TYPE, Limits.DEFAULT_ITEM_QUOTA);
         this.itemQuota.put(ItemSchema.UNKNOWN_CONTENT_TYPE, Limits.DEFAULT_ITEM_QUOTA / 2);
@@ -66,6 +147,15 @@ public class UserItemManager {
         return userName;
     }
 
+    /**
+     * @return the preprocessor that makes the presentations of uploads. Unless one was passed in, this is the
+     * one shared by every manager, with the plugins from the ServiceLoader, and configuring its plugins
+     * (see UploadPreprocessor.getPlugin()) configures them for all of those managers.
+     */
+    public UploadPreprocessor getUploadPreprocessor() {
+        return uploadPreprocessor;
+    }
+
     public UserItemManager setUserName(String userName) {
         this.userName = userName;
         return this;
@@ -80,25 +170,417 @@ public class UserItemManager {
         return this;
     }
 
+    public ItemStore getItemStore() {
+        return itemStore;
+    }
+
+    /**
+     * @return the cache of item lists for this manager's store (for its hit/miss/eviction counts).
+     */
+    public ItemListCache getItemListCache() {
+        return itemListCache;
+    }
+
+    /**
+     * @return the cache of item content for this manager's store (for its hit/miss/eviction counts).
+     */
+    public ContentCache getContentCache() {
+        return contentCache;
+    }
+
+    /**
+     * @return the queue this manager's deferred presentations are made on (shared by every manager on the store).
+     */
+    public PresentationQueue getPresentationQueue() {
+        return presentationQueue;
+    }
+
+    public boolean isDeferPresentations() {
+        return deferPresentations;
+    }
+
+    /**
+     * When set, addItem() only stores the original, and returns once that's done. The other presentations
+     * (preview, preferred, etc) are made on the PresentationQueue, and retried there if they fail.
+     * Until they're made, getItemList() marks the item as pending (see UserItem.PENDING_ATTR),
+     * and lists just the original. Reading a presentation that hasn't been made yet makes it
+     * (and the rest of the item's presentations) there and then.
+     */
+    public UserItemManager setDeferPresentations(boolean deferPresentations) {
+        this.deferPresentations = deferPresentations;
+        return this;
+    }
+
+    public boolean isDeduplicate() {
+        return deduplicate;
+    }
+
+    /**
+     * When set, addItem() hashes each upload (SHA-256), and if the same bytes have been uploaded before
+     * (by anyone, with deduplication on), the item is stored as a set of references to the existing
+     * presentations, with no processing: for each of its N presentations, an empty object at the item's
+     * location and a reference marker in the BlobStore (2N small puts). New content is processed as usual,
+     * but its presentations are stored once, in the BlobStore, and referenced from the item.
+     * Deleting a reference releases it, and the shared copy goes with the last one.
+     * Uploads with deferred presentations are only deduplicated against content that's already shared.
+     */
+    public UserItemManager setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+        return this;
+    }
+
+    public boolean isCompressUnknownItems() {
+        return compressUnknownItems;
+    }
+
+    /**
+     * When set, uploads no plugin recognizes (the unknown content type - often text, JSON, CSV or logs)
+     * are gzipped, and stored that way if that saves at least minCompressionSavings of their size.
+     * The codec is recorded in the item's metadata (UploadMetadataFields.CONTENT_CODEC), and reads decompress
+     * the item as they go, unless the caller accepts the codec (see getItemStream()).
+     */
+    public UserItemManager setCompressUnknownItems(boolean compressUnknownItems) {
+        this.compressUnknownItems = compressUnknownItems;
+        return this;
+    }
+
+    public double getMinCompressionSavings() {
+        return minCompressionSavings;
+    }
+
+    /**
+     * @param minCompressionSavings - the fraction of its size compression has to save, for an item to be stored
+     *                              compressed (it costs a little to decompress on every read).
+     */
+    public UserItemManager setMinCompressionSavings(double minCompressionSavings) {
+        this.minCompressionSavings = minCompressionSavings;
+        return this;
+    }
+
+    public int getBatchPipelineDepth() {
+        return batchPipelineDepth;
+    }
+
+    /**
+     * @param batchPipelineDepth - how many items of a batch upload (see addItems()) can be processing or uploading
+     *                           at once. Their presentations are held in memory until they're stored.
+     */
+    public UserItemManager setBatchPipelineDepth(int batchPipelineDepth) {
+        this.batchPipelineDepth = Math.max(1, batchPipelineDepth);
+        return this;
+    }
+
     public void addItem( String name, byte[] item )
             throws InternalErrorException, QuotaExceededException {
-        this.checkQuota();
+        UploadPreprocessor.Dispatch dispatch = uploadPreprocessor.dispatch(item);
+        try( QuotaService.Reservation reservation = reserveQuota(maxItemsFor(dispatch)) ) {
+            addCheckedItem(name, item, dispatch);
+        }
+    }
+
+    /**
+     * Adds a batch of items (name => bytes), reserving room in the quota once for the whole batch
+     * (every presentation each item may get), and releasing each item's share once it's stored, or has failed.
+     * The items flow through a pipeline: each is processed on the cpu pool, and its presentations
+     * are stored on the io pool, while the next items are processed. At most batchPipelineDepth items
+     * are in the pipeline at once, so a slow stage holds the others back, rather than items piling up in memory.
+     * With deduplication or deferred presentations on, the items are added one at a time, as addItem() would.
+     * @return a result for each item, in the order of the batch
+     * @throws QuotaExceededException if there isn't room for the whole batch (and nothing is added)
+     */
+    public List<AddResult> addItems( Map<String,byte[]> items ) throws QuotaExceededException, InternalErrorException {
+        Map<String,UploadPreprocessor.Dispatch> dispatches = new HashMap<>();
+        long totalMaxItems = 0;
+        for( Map.Entry<String,byte[]> item : items.entrySet() ) {
+            UploadPreprocessor.Dispatch dispatch = uploadPreprocessor.dispatch(item.getValue());
+            dispatches.put(item.getKey(), dispatch);
+            totalMaxItems += maxItemsFor(dispatch);
+        }
+        try( QuotaService.Reservation reservation = reserveQuota(totalMaxItems) ) {
+            return addReservedItems(items, dispatches, reservation);
+        }
+    }
 
-        List<UploadPreprocessorPlugin> uploadPreprocessorPlugins = new ArrayList<>();
-        uploadPreprocessorPlugins.add(new ImagePreprocessorPlugin());
-        UploadPreprocessor uploadPreprocessor = new UploadPreprocessor( uploadPreprocessorPlugins );
-        Map<ItemSchema.PresentationType,byte[]> uploads = uploadPreprocessor.process(item);
+    /**
+     * addItems(), once the quota has been reserved.
+     */
+    private List<AddResult> addReservedItems( Map<String,byte[]> items,
+                                              Map<String,UploadPreprocessor.Dispatch> dispatches,
+                                              QuotaService.Reservation reservation ) throws InternalErrorException {
+        List<AddResult> results = new ArrayList<>(items.size());
+        if( deduplicate || deferPresentations ) {
+            for( Map.Entry<String,byte[]> item : items.entrySet() ) {
+                try {
+                    addCheckedItem(item.getKey(), item.getValue(), dispatches.get(item.getKey()));
+                    results.add(AddResult.added(item.getKey(), null));
+                } catch (InternalErrorException | RuntimeException e) {
+                    log.warn("Failed to add: " + item.getKey() + " in a batch: " + e.getMessage());
+                    results.add(AddResult.failed(item.getKey(), e.getMessage()));
+                } finally {
+                    reservation.release(maxItemsFor(dispatches.get(item.getKey())));
+                }
+            }
+            return results;
+        }
 
-        if( uploads.size() == 0 ) {
+        Semaphore inPipeline = new Semaphore(batchPipelineDepth);
+        List<CompletableFuture<AddResult>> pending = new ArrayList<>(items.size());
+        try {
+            for( Map.Entry<String,byte[]> item : items.entrySet() ) {
+                //waits here while the pipeline is full
+                inPipeline.acquire();
+                CompletableFuture<AddResult> result = new CompletableFuture<>();
+                //completed after the item's stored items are recorded (or rolled back)
+                result.whenComplete( (added, e) -> {
+                    reservation.release(maxItemsFor(dispatches.get(item.getKey())));
+                    inPipeline.release();
+                });
+                pending.add(result);
+                try {
+                    WorkerPools.cpu().execute( () -> processForBatch(item.getKey(), item.getValue(),
+                            dispatches.get(item.getKey()), result) );
+                } catch (RejectedExecutionException e) {
+                    result.complete(AddResult.failed(item.getKey(), "Rejected by the cpu pool: " + e.getMessage()));
+                }
+            }
+            for( CompletableFuture<AddResult> result : pending ) {
+                results.add(result.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalErrorException("Interrupted adding a batch of " + items.size() + " items, after "
+                    + pending.size() + " were started.");
+        } catch (ExecutionException e) {
+            //the stages complete results, rather than fail them
+            throw new InternalErrorException("Batch upload failed: " + e.getCause().getMessage());
+        } finally {
+            itemListCache.invalidate(getUserDir());
+        }
+        return results;
+    }
+
+    /**
+     * The cpu stage of a batch upload: makes the presentations of the item, and hands them to the io stage.
+     */
+    private void processForBatch( String name, byte[] item, UploadPreprocessor.Dispatch dispatch,
+                                  CompletableFuture<AddResult> result ) {
+        try {
+            ProcessedUpload processedUpload = uploadPreprocessor.process(item, dispatch);
+            if( processedUpload.size() == 0 ) {
+                throw new InternalErrorException("Upload processor returned empty upload set");
+            }
+            String contentType = processedUpload.getContentType();
+            Map<ItemSchema.PresentationType,byte[]> uploads = new EnumMap<>(ItemSchema.PresentationType.class);
+            Map<ItemSchema.PresentationType,String> itemNames = new EnumMap<>(ItemSchema.PresentationType.class);
+            collectPresentations(name, processedUpload, false, itemNames, uploads);
+            Map<String,byte[]> writes = new LinkedHashMap<>();
+            Map<String,Map<String,String>> metadata = new HashMap<>();
+            collectWrites(itemNames, uploads, contentType, compressUnknown(contentType, uploads), writes, metadata);
+            new BatchItemUpload(name, contentType, writes, result).start(metadata);
+        } catch (InternalErrorException | RuntimeException e) {
+            log.warn("Failed to process: " + name + " in a batch: " + e.getMessage());
+            result.complete(AddResult.failed(name, e.getMessage()));
+        }
+    }
+
+    /**
+     * The io stage of a batch upload, for one item: stores each presentation as its own io task
+     * (so no io thread waits on another), and the last one to finish completes the item.
+     * If any failed, the ones that were stored are deleted again, as with addItem().
+     */
+    private class BatchItemUpload {
+        private final String name;
+        private final String contentType;
+        private final Map<String,byte[]> writes;
+        private final CompletableFuture<AddResult> result;
+        private final AtomicInteger remaining;
+        private final AtomicLong bytesWritten = new AtomicLong();
+        private final ConcurrentLinkedQueue<String> written = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<>();
+
+        BatchItemUpload( String name, String contentType, Map<String,byte[]> writes,
+                         CompletableFuture<AddResult> result ) {
+            this.name = name;
+            this.contentType = contentType;
+            this.writes = writes;
+            this.result = result;
+            this.remaining = new AtomicInteger(writes.size());
+        }
+
+        void start( Map<String,Map<String,String>> metadata ) {
+            for( Map.Entry<String,byte[]> write : writes.entrySet() ) {
+                String itemLocation = write.getKey();
+                try {
+                    WorkerPools.io().execute( () -> put(itemLocation, write.getValue(), metadata.get(itemLocation)) );
+                } catch (RejectedExecutionException e) {
+                    failures.add(itemLocation + ": rejected by the io pool");
+                    finishOne();
+                }
+            }
+        }
+
+        private void put( String itemLocation, byte[] data, Map<String,String> metadata ) {
+            try {
+                itemStore.put(itemLocation, data, metadata);
+                written.add(itemLocation);
+                bytesWritten.addAndGet(data.length);
+            } catch (RuntimeException e) {
+                failures.add(itemLocation + ": " + e.getMessage());
+            } finally {
+                finishOne();
+            }
+        }
+
+        private void finishOne() {
+            if( remaining.decrementAndGet() > 0 ) {
+                return;
+            }
+            try {
+                if( failures.isEmpty() ) {
+                    quotaService.recordAdd(getUserDir(), writes.size(), bytesWritten.get());
+                } else {
+                    for( String itemLocation : written ) {
+                        try {
+                            itemStore.delete(itemLocation);
+                            log.info("Rolled back partial upload at: " + itemLocation);
+                        } catch (ItemStoreException e) {
+                            log.error("Failed to roll back partial upload at: " + itemLocation + ": " + e.getMessage());
+                        }
+                    }
+                }
+                for( String itemLocation : writes.keySet() ) {
+                    contentCache.invalidate(itemLocation);
+                }
+            } finally {
+                if( failures.isEmpty() ) {
+                    result.complete(AddResult.added(name, contentType));
+                } else {
+                    log.warn("Failed to store: " + name + " in a batch: " + failures);
+                    result.complete(AddResult.failed(name, "Failed to save item presentations: " + failures));
+                }
+            }
+        }
+    }
+
+    /**
+     * addItem(), once the quota has been checked.
+     * @param dispatch - what the upload preprocessor dispatched the item to
+     */
+    private void addCheckedItem( String name, byte[] item, UploadPreprocessor.Dispatch dispatch )
+            throws InternalErrorException {
+        String contentHash = null;
+        if( deduplicate ) {
+            contentHash = BlobStore.hash(item);
+            if( addReferences(name, contentHash) ) {
+                log.debug("Upload of: " + name + " matched shared content: " + contentHash);
+                return;
+            }
+        }
+
+        if( deferPresentations ) {
+            addOriginal(name, item, dispatch);
+            return;
+        }
+
+        ProcessedUpload processedUpload = uploadPreprocessor.process(item, dispatch);
+
+        if( processedUpload.size() == 0 ) {
             throw new InternalErrorException("Upload processor returned empty upload set");
         }
 
-        UploadPreprocessorPlugin pluginUsed = uploadPreprocessor.getProcessorPluginUsed();
-        String contentType = pluginUsed.getContentType();
+        String contentType = processedUpload.getContentType();
 
-        for( Map.Entry<ItemSchema.PresentationType,byte[]> uploadEntry : uploads.entrySet() ) {
+        Map<ItemSchema.PresentationType,byte[]> uploads = new EnumMap<>(ItemSchema.PresentationType.class);
+        Map<ItemSchema.PresentationType,String> itemNames = new EnumMap<>(ItemSchema.PresentationType.class);
+        collectPresentations(name, processedUpload, false, itemNames, uploads);
+        Map<ItemSchema.PresentationType,Map<String,String>> codecMetadata = compressUnknown(contentType, uploads);
+        if( contentHash != null ) {
+            addShared(name, contentHash, processedUpload, uploads, codecMetadata);
+            return;
+        }
+        try {
+            saveItems(itemNames, uploads, contentType, codecMetadata);
+            long bytesSaved = 0;
+            for( ItemSchema.PresentationType presentationType : itemNames.keySet() ) {
+                bytesSaved += uploads.get(presentationType).length;
+            }
+            quotaService.recordAdd(getUserDir(), itemNames.size(), bytesSaved);
+        } finally {
+            itemListCache.invalidate(getUserDir());
+            for( Map.Entry<ItemSchema.PresentationType,String> itemName : itemNames.entrySet() ) {
+                contentCache.invalidate(getItemLocation(itemName.getValue(), contentType, itemName.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Adds an item read from the stream (which is left open), so large items don't have to fit in memory.
+     * Uploads a plugin handles (images), and small ones (up to STREAM_HEADER_SIZE), are still read into memory
+     * and added as addItem(name, bytes) would. Anything else is only stored as its original, written to the
+     * item store as it's read (see ItemStore.put()), so it isn't deduplicated or compressed.
+     * @param length - the number of bytes in the stream, or negative if that isn't known
+     */
+    public void addItem( String name, InputStream content, long length )
+            throws InternalErrorException, QuotaExceededException, IOException {
+        byte[] header = new byte[length >= 0 ? (int)Math.min(length, STREAM_HEADER_SIZE) : STREAM_HEADER_SIZE];
+        int headerLength = Streams.readUpTo(content, header);
+        if( headerLength < STREAM_HEADER_SIZE ) {
+            addItem(name, Arrays.copyOf(header, headerLength));
+            return;
+        }
+        UploadPreprocessor.Dispatch dispatch = uploadPreprocessor.dispatch(header);
+        try( QuotaService.Reservation reservation = reserveQuota(maxItemsFor(dispatch)) ) {
+            addStreamedItem(name, header, dispatch, content, length);
+        }
+    }
+
+    /**
+     * addItem(name, stream, length), once the quota has been reserved, and the header read.
+     */
+    private void addStreamedItem( String name, byte[] header, UploadPreprocessor.Dispatch dispatch,
+                                  InputStream content, long length )
+            throws InternalErrorException, IOException {
+        if( dispatch.getPlugin() != null ) {
+            ByteArrayOutputStream item = new ByteArrayOutputStream(
+                    length > 0 ? (int)Math.min(length, ItemStore.MAX_INITIAL_BUFFER_SIZE) : 2 * STREAM_HEADER_SIZE);
+            item.write(header);
+            Streams.copy(content, item);
+            addCheckedItem(name, item.toByteArray(), dispatch);
+            return;
+        }
+
+        String itemLocation = getItemLocation(name, ItemSchema.UNKNOWN_CONTENT_TYPE,
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE);
+        InputStream item = new SequenceInputStream(new ByteArrayInputStream(header), content);
+        try {
+            long bytesSaved;
+            try {
+                bytesSaved = itemStore.put(itemLocation, item, length,
+                        makeItemMetadata(name, ItemSchema.UNKNOWN_CONTENT_TYPE));
+            } catch (ItemStoreException e) {
+                throw new InternalErrorException("Failed to save item at: " + itemLocation + ": " + e.getMessage());
+            }
+            quotaService.recordAdd(getUserDir(), 1, bytesSaved);
+        } finally {
+            itemListCache.invalidate(getUserDir());
+            contentCache.invalidate(itemLocation);
+        }
+    }
+
+    /**
+     * Sorts the processed presentations into the names to store them under, and their bytes.
+     * @param derivedOnly - leave out the original
+     */
+    private void collectPresentations( String name, ProcessedUpload processedUpload, boolean derivedOnly,
+                                       Map<ItemSchema.PresentationType,String> itemNames,
+                                       Map<ItemSchema.PresentationType,byte[]> uploads ) {
+        for( Map.Entry<ItemSchema.PresentationType,ProcessedUpload.Presentation> uploadEntry
+                : processedUpload.getPresentations().entrySet() ) {
             boolean found = false;
             ItemSchema.PresentationType presentationType = uploadEntry.getKey();
+            if( derivedOnly && presentationType.equals(ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE) ) {
+                continue;
+            }
             for( ItemSchema.PresentationType type : ItemSchema.PRESENTATION_TYPES) {
                 if( presentationType.equals(type) ) {
                     found = true;
@@ -108,24 +590,8 @@ public class UserItemManager {
                 //this is a little bit of a hack, but is necessary for downloads
                 //using the name of the item to work
                 //OK in user agents (browsers)
-                String preferredFileExtension = pluginUsed.getPreferredFileExtension();
-                String previewFileExtension = pluginUsed.getPreviewFileExtension();
-                if( presentationType.equals(ItemSchema.PresentationType.PREFERRED_PRESENTATION_TYPE) &&
-                    preferredFileExtension != null &&
-                    preferredFileExtension.length() > 0 &&
-                    !name.endsWith(preferredFileExtension)
-                   ) {
-                    saveItemWithExtension(uploadEntry, name, presentationType, contentType, preferredFileExtension);
-                } else if ( presentationType.equals(ItemSchema.PresentationType.PREVIEW_PRESENTATION_TYPE) &&
-                            previewFileExtension != null &&
-                            previewFileExtension.length() > 0 &&
-                            !name.endsWith(previewFileExtension)
-                        )  {
-                    saveItemWithExtension(uploadEntry, name, presentationType, contentType, previewFileExtension);
-                }
-                else {
-                    this.saveItemAtLocation(name, uploadEntry.getValue(), contentType, presentationType);
-                }
+                itemNames.put(presentationType, presentationName(name, uploadEntry.getValue().getFileExtension()));
+                uploads.put(presentationType, uploadEntry.getValue().getData());
             } else {
                 log.error( "Upload plugin had an entry with a presentation type of: " + presentationType
                         + " that was not found in the item types defined in the ItemSchema.");
@@ -133,18 +599,471 @@ public class UserItemManager {
         }
     }
 
-    private void saveItemWithExtension(Map.Entry<ItemSchema.PresentationType,byte[]> uploadEntry, String itemName,
-                                       ItemSchema.PresentationType presentationType,
-                                       String contentType, String extension ) throws InternalErrorException {
+    /**
+     * Compresses the original of unknown content, when that's on, and worth it (see setCompressUnknownItems()).
+     * The compressed bytes replace the original in the uploads.
+     * @return presentation type => the metadata to store the compressed presentations with
+     */
+    private Map<ItemSchema.PresentationType,Map<String,String>> compressUnknown(
+            String contentType, Map<ItemSchema.PresentationType,byte[]> uploads ) throws InternalErrorException {
+        Map<ItemSchema.PresentationType,Map<String,String>> codecMetadata = new EnumMap<>(ItemSchema.PresentationType.class);
+        byte[] original = uploads.get(ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE);
+        if( !compressUnknownItems || original == null || !contentType.equals(ItemSchema.UNKNOWN_CONTENT_TYPE) ) {
+            return codecMetadata;
+        }
+        byte[] compressed;
+        try {
+            compressed = ContentCodecs.gzip(original);
+        } catch (IOException e) {
+            throw new InternalErrorException("Failed to compress upload: " + e.getMessage());
+        }
+        if( compressed.length > original.length * (1 - minCompressionSavings) ) {
+            log.debug("Storing upload uncompressed, compression only saved: "
+                    + (original.length - compressed.length) + " of " + original.length + " bytes.");
+            return codecMetadata;
+        }
+        uploads.put(ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, compressed);
+        Map<String,String> metadata = new HashMap<>();
+        metadata.put(UploadMetadataFields.CONTENT_CODEC, ContentCodecs.GZIP);
+        metadata.put(UploadMetadataFields.DECODED_LENGTH, Long.toString(original.length));
+        codecMetadata.put(ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, metadata);
+        return codecMetadata;
+    }
+
+    private static String presentationName( String name, String fileExtension ) {
+        if( fileExtension != null &&
+            fileExtension.length() > 0 &&
+            !name.endsWith(fileExtension)
+           ) {
+            return nameWithExtension(name, fileExtension);
+        }
+        return name;
+    }
+
+    /**
+     * Stores the presentations of new content in the BlobStore (unless someone beat us to it),
+     * then references them from the item.
+     */
+    private void addShared( String name, String contentHash, ProcessedUpload processedUpload,
+                            Map<ItemSchema.PresentationType,byte[]> uploads,
+                            Map<ItemSchema.PresentationType,Map<String,String>> codecMetadata )
+            throws InternalErrorException {
+        String contentType = processedUpload.getContentType();
+        Map<ItemSchema.PresentationType,String> fileExtensions = new EnumMap<>(ItemSchema.PresentationType.class);
+        Map<String,byte[]> blobs = new LinkedHashMap<>();
+        Map<String,Map<String,String>> metadata = new HashMap<>();
+        for( Map.Entry<ItemSchema.PresentationType,byte[]> upload : uploads.entrySet() ) {
+            ItemSchema.PresentationType presentationType = upload.getKey();
+            fileExtensions.put(presentationType, processedUpload.get(presentationType).getFileExtension());
+            String blobKey = blobStore.getBlobKey(contentHash, presentationType);
+            blobs.put(blobKey, upload.getValue());
+            Map<String,String> blobMetadata = new HashMap<>();
+            blobMetadata.put(UploadMetadataFields.CONTENT_TYPE, contentType);
+            if( codecMetadata.containsKey(presentationType) ) {
+                blobMetadata.putAll(codecMetadata.get(presentationType));
+            }
+            metadata.put(blobKey, blobMetadata);
+        }
+        //the content can be deleted (by another process) as we reference it, and then we store it again
+        for( int attempt = 1; ; ++attempt ) {
+            Lock lock = BlobStore.lockFor(contentHash);
+            lock.lock();
+            try {
+                try {
+                    if( blobStore.readIntactManifest(contentHash) == null ) {
+                        putAll(blobs, metadata);
+                        blobStore.writeManifest(contentHash, new BlobStore.Manifest(contentType, fileExtensions));
+                    }
+                } catch (ItemStoreException e) {
+                    throw new InternalErrorException("Failed to save shared content: " + contentHash + ": "
+                            + e.getMessage());
+                }
+            } finally {
+                lock.unlock();
+            }
+            if( addReferences(name, contentHash) ) {
+                return;
+            }
+            if( attempt == MAX_SHARE_ATTEMPTS ) {
+                throw new InternalErrorException("Shared content: " + contentHash + " was deleted while it was being added, "
+                        + attempt + " times.");
+            }
+            log.info("Shared content: " + contentHash + " was deleted while it was being added, storing it again.");
+        }
+    }
+
+    /**
+     * Stores the item as references to the shared content with the given hash, if there is any.
+     * Presentations the item had before that referenced other content are released first.
+     * @return false if there is no shared content with the hash (or it was deleted as we referenced it).
+     */
+    private boolean addReferences( String name, String contentHash ) throws InternalErrorException {
+        BlobStore.Manifest manifest = blobStore.readManifest(contentHash);
+        if( manifest == null ) {
+            return false;
+        }
+        String contentType = manifest.getContentType();
+        Map<String,ItemSchema.PresentationType> itemLocations = new LinkedHashMap<>();
+        for( Map.Entry<ItemSchema.PresentationType,String> fileExtension : manifest.getFileExtensions().entrySet() ) {
+            ItemSchema.PresentationType presentationType = fileExtension.getKey();
+            itemLocations.put(getItemLocation(presentationName(name, fileExtension.getValue()), contentType,
+                    presentationType), presentationType);
+        }
+
+        //replacing an item: whatever it referenced before is released once the new references are in
+        long itemsAdded = 0;
+        Map<String,String> replacedHashes = new HashMap<>();
+        for( String itemLocation : itemLocations.keySet() ) {
+            try {
+                String existingHash = itemStore.head(itemLocation).getUserMetadata(UploadMetadataFields.CONTENT_HASH);
+                if( existingHash != null && !existingHash.equals(contentHash) ) {
+                    replacedHashes.put(itemLocation, existingHash);
+                }
+            } catch (ItemNotFoundException e) {
+                itemsAdded++;
+            }
+        }
+
+        Map<String,byte[]> references = new LinkedHashMap<>();
+        Map<String,Map<String,String>> metadata = new HashMap<>();
+        for( Map.Entry<String,ItemSchema.PresentationType> itemLocation : itemLocations.entrySet() ) {
+            Map<String,String> referenceMetadata = makeItemMetadata(
+                    presentationName(name, manifest.getFileExtensions().get(itemLocation.getValue())), contentType);
+            referenceMetadata.put(UploadMetadataFields.CONTENT_HASH, contentHash);
+            references.put(itemLocation.getKey(), new byte[0]);
+            metadata.put(itemLocation.getKey(), referenceMetadata);
+        }
+        Lock lock = BlobStore.lockFor(contentHash);
+        try {
+            lock.lock();
+            try {
+                //the content may have lost its last reference since we read the manifest
+                if( blobStore.readManifest(contentHash) == null ) {
+                    return false;
+                }
+                //counted before the items point at the content, so it can't be released from under them
+                for( String itemLocation : itemLocations.keySet() ) {
+                    blobStore.addReference(contentHash, itemLocation);
+                }
+                //another process may have released its last reference before it saw ours
+                if( blobStore.readIntactManifest(contentHash) == null ) {
+                    for( String itemLocation : itemLocations.keySet() ) {
+                        blobStore.releaseReference(contentHash, itemLocation);
+                    }
+                    return false;
+                }
+            } finally {
+                lock.unlock();
+            }
+            try {
+                putAll(references, metadata);
+            } catch (InternalErrorException e) {
+                lock.lock();
+                try {
+                    for( String itemLocation : itemLocations.keySet() ) {
+                        blobStore.releaseReference(contentHash, itemLocation);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                throw e;
+            }
+            quotaService.recordAdd(getUserDir(), itemsAdded, 0);
+            //one hash's lock at a time, so we can't deadlock with someone doing the opposite replacement
+            for( Map.Entry<String,String> replaced : replacedHashes.entrySet() ) {
+                Lock replacedLock = BlobStore.lockFor(replaced.getValue());
+                replacedLock.lock();
+                try {
+                    blobStore.releaseReference(replaced.getValue(), replaced.getKey());
+                } finally {
+                    replacedLock.unlock();
+                }
+            }
+        } catch (ItemStoreException e) {
+            throw new InternalErrorException("Failed to reference shared content: " + contentHash + ": " + e.getMessage());
+        } finally {
+            itemListCache.invalidate(getUserDir());
+            for( String itemLocation : itemLocations.keySet() ) {
+                contentCache.invalidate(itemLocation);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stores just the original, and queues up making the rest of the presentations
+     * (or makes them now, if the queue is full).
+     */
+    private void addOriginal( String name, byte[] item, UploadPreprocessor.Dispatch dispatch )
+            throws InternalErrorException {
+        UploadPreprocessorPlugin plugin = dispatch.getPlugin();
+        String contentType = plugin == null ? ItemSchema.UNKNOWN_CONTENT_TYPE : plugin.getContentType();
+        String originalLocation = getItemLocation(name, contentType, ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE);
+        Map<ItemSchema.PresentationType,byte[]> uploads = new EnumMap<>(ItemSchema.PresentationType.class);
+        uploads.put(ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, item);
+        Map<String,String> metadata = makeItemMetadata(name, contentType);
+        Map<String,String> codecMetadata = compressUnknown(contentType, uploads)
+                .get(ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE);
+        if( codecMetadata != null ) {
+            metadata.putAll(codecMetadata);
+        }
+        byte[] stored = uploads.get(ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE);
+        boolean queued = false;
+        try {
+            put(originalLocation, stored, metadata);
+            quotaService.recordAdd(getUserDir(), 1, stored.length);
+            //queued before the list is invalidated, so the next listing shows the item as pending
+            queued = plugin != null
+                    && presentationQueue.submit(originalLocation, () -> derivePresentations(contentType, name, item, dispatch),
+                    item.length);
+        } finally {
+            itemListCache.invalidate(getUserDir());
+            contentCache.invalidate(originalLocation);
+        }
+        if( plugin != null && !queued ) {
+            log.info("Presentation queue is full, making the presentations of: " + originalLocation + " now.");
+            derivePresentations(contentType, name, item, dispatch);
+        }
+    }
+
+    /**
+     * Makes and stores every presentation of an item but the original, replacing any that are already stored.
+     * This can safely be run again after a failure. If there's nothing to make (e.g., the plugin couldn't
+     * decode the original), the queue is told, so reads don't try again (see derivePresentationsOnRead()).
+     * @param dispatch - what the upload preprocessor dispatched the original to
+     * @return false if no presentations were made.
+     */
+    private boolean derivePresentations( String contentType, String name, byte[] original,
+                                         UploadPreprocessor.Dispatch dispatch ) throws InternalErrorException {
+        String originalLocation = getItemLocation(name, contentType, ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE);
+        if( !itemStore.exists(originalLocation) ) {
+            log.info("Item at: " + originalLocation + " was deleted before its presentations were made.");
+            return false;
+        }
+        ProcessedUpload processedUpload = uploadPreprocessor.process(original, dispatch);
+        Map<ItemSchema.PresentationType,byte[]> uploads = new EnumMap<>(ItemSchema.PresentationType.class);
+        Map<ItemSchema.PresentationType,String> itemNames = new EnumMap<>(ItemSchema.PresentationType.class);
+        collectPresentations(name, processedUpload, true, itemNames, uploads);
+        if( itemNames.isEmpty() ) {
+            log.info("No presentations to make of: " + originalLocation);
+            presentationQueue.markUnderivable(originalLocation);
+            return false;
+        }
+        //only count the presentations that weren't there already (e.g., from an earlier attempt)
+        long itemsAdded = 0;
+        long bytesAdded = 0;
+        for( Map.Entry<ItemSchema.PresentationType,String> itemName : itemNames.entrySet() ) {
+            try {
+                bytesAdded -= itemStore.head(getItemLocation(itemName.getValue(), contentType, itemName.getKey()))
+                        .getContentLength();
+            } catch (ItemNotFoundException e) {
+                itemsAdded++;
+            }
+            bytesAdded += uploads.get(itemName.getKey()).length;
+        }
+        try {
+            saveItems(itemNames, uploads, contentType, Collections.emptyMap());
+            quotaService.recordAdd(getUserDir(), itemsAdded, bytesAdded);
+            log.debug("Made " + itemNames.size() + " presentations of: " + originalLocation);
+            return true;
+        } finally {
+            itemListCache.invalidate(getUserDir());
+            for( Map.Entry<ItemSchema.PresentationType,String> itemName : itemNames.entrySet() ) {
+                contentCache.invalidate(getItemLocation(itemName.getValue(), contentType, itemName.getKey()));
+            }
+        }
+    }
+
+    /**
+     * With deferred presentations, makes the presentations of the item the name belongs to, if they haven't been
+     * made yet (running its queued job on this thread, if there is one). Items no plugin makes presentations of,
+     * and ones found to have none to make, are left alone.
+     * @return true if the presentations were made, and it's worth looking for the item again.
+     */
+    private boolean derivePresentationsOnRead( String fileType, ItemSchema.PresentationType presentationType,
+                                               String name ) throws IOException {
+        if( !deferPresentations || presentationType.equals(ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE)
+                || !uploadPreprocessor.handles(fileType) ) {
+            return false;
+        }
+        //the presentations may have a different extension from the original
+        String itemKey = itemKey(name);
+        String originalName = findItemName(fileType, ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, itemKey);
+        if( originalName == null ) {
+            return false;
+        }
+        String originalLocation = getItemLocation(originalName, fileType, ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE);
+        if( presentationQueue.runNow(originalLocation) ) {
+            return true;
+        }
+        if( presentationQueue.isUnderivable(originalLocation) ) {
+            return false;
+        }
+        //no job, so it's either been done (every item that gets presentations gets a preview),
+        //or it was given up on, or lost (e.g., on a restart)
+        if( findItemName(fileType, ItemSchema.PresentationType.PREVIEW_PRESENTATION_TYPE, itemKey) != null ) {
+            return false;
+        }
+        byte[] original;
+        try( StoredItem storedItem = itemStore.get(originalLocation) ) {
+            long contentLength = storedItem.getContentLength();
+            if (contentLength > Limits.MAX_RETRIEVE_SIZE) {
+                throw new IOException("Object is to large: " + contentLength + " bytes.");
+            }
+            original = new byte[(int)contentLength];
+            Streams.readFully(storedItem.getContent(), original);
+        }
+        try {
+            return derivePresentations(fileType, originalName, original, uploadPreprocessor.dispatch(original));
+        } catch (InternalErrorException e) {
+            throw new IOException("Failed to make the presentations of: " + originalLocation + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the name of the item with the given key (the name without its extension), or null if there isn't one.
+     */
+    private String findItemName( String contentType, ItemSchema.PresentationType presentationType, String itemKey ) {
+        String directory = getItemDirectory(contentType, presentationType);
+        for( ItemSummary itemSummary : itemStore.list(directory + itemKey) ) {
+            String itemName = itemSummary.getKey().substring(directory.length());
+            if( itemName.indexOf('/') < 0 && itemKey(itemName).equals(itemKey) ) {
+                return itemName;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The item key associates the different presentations of an item, see loadItemList().
+     */
+    private static String itemKey( String itemName ) {
+        int extIndex = itemName.lastIndexOf(".");
+        return extIndex > 0 ? itemName.substring(0, extIndex) : itemName;
+    }
+
+    private static String nameWithExtension( String itemName, String extension ) {
         if( !extension.startsWith(".") ) {
             extension = "." + extension;
         }
         int extIndex = itemName.lastIndexOf(".");
         if( extIndex > 0 ) {
-            this.saveItemAtLocation(itemName.substring(0, extIndex) + extension,
-                    uploadEntry.getValue(), contentType, presentationType);
+            return itemName.substring(0, extIndex) + extension;
         } else {
-            this.saveItemAtLocation(itemName + extension, uploadEntry.getValue(), contentType, presentationType);
+            return itemName + extension;
+        }
+    }
+
+    /**
+     * Writes the presentations of an item concurrently on the io pool, so an upload
+     * takes about as long as its slowest write, rather than the sum of them.
+     * This is all or nothing: if any write fails, the presentations that were written
+     * are deleted again, and the failure is reported.
+     */
+    private void saveItems( Map<ItemSchema.PresentationType,String> itemNames,
+                            Map<ItemSchema.PresentationType,byte[]> uploads, String contentType,
+                            Map<ItemSchema.PresentationType,Map<String,String>> extraMetadata )
+            throws InternalErrorException {
+        Map<String,byte[]> items = new LinkedHashMap<>();
+        Map<String,Map<String,String>> metadata = new HashMap<>();
+        collectWrites(itemNames, uploads, contentType, extraMetadata, items, metadata);
+        putAll(items, metadata);
+    }
+
+    /**
+     * Sorts the presentations into what to write at each item location: the bytes, and the metadata.
+     */
+    private void collectWrites( Map<ItemSchema.PresentationType,String> itemNames,
+                                Map<ItemSchema.PresentationType,byte[]> uploads, String contentType,
+                                Map<ItemSchema.PresentationType,Map<String,String>> extraMetadata,
+                                Map<String,byte[]> items, Map<String,Map<String,String>> metadata ) {
+        for( Map.Entry<ItemSchema.PresentationType,String> itemName : itemNames.entrySet() ) {
+            String itemLocation = getItemLocation(itemName.getValue(), contentType, itemName.getKey());
+            items.put(itemLocation, uploads.get(itemName.getKey()));
+            Map<String,String> itemMetadata = makeItemMetadata(itemName.getValue(), contentType);
+            if( extraMetadata.containsKey(itemName.getKey()) ) {
+                itemMetadata.putAll(extraMetadata.get(itemName.getKey()));
+            }
+            metadata.put(itemLocation, itemMetadata);
+        }
+    }
+
+    /**
+     * Writes the items (location => bytes) concurrently on the io pool, all or nothing (see saveItems()).
+     * On an io pool thread (e.g., reading through an AsyncUserItemManager), they're written one after another
+     * instead, as waiting on the pool from inside it can deadlock it.
+     */
+    private void putAll( Map<String,byte[]> items, Map<String,Map<String,String>> metadata )
+            throws InternalErrorException {
+        if( items.size() == 1 ) {
+            Map.Entry<String,byte[]> only = items.entrySet().iterator().next();
+            put(only.getKey(), only.getValue(), metadata.get(only.getKey()));
+            return;
+        }
+        if( WorkerPools.isIoThread() ) {
+            putAllInline(items, metadata);
+            return;
+        }
+
+        Map<String,Future<?>> writes = new LinkedHashMap<>();
+        for( Map.Entry<String,byte[]> item : items.entrySet() ) {
+            String itemLocation = item.getKey();
+            writes.put(itemLocation, WorkerPools.io().submit( () -> {
+                this.put(itemLocation, item.getValue(), metadata.get(itemLocation));
+                return null;
+            }));
+        }
+
+        List<String> written = new ArrayList<>();
+        StringBuilder failures = new StringBuilder();
+        for( Map.Entry<String,Future<?>> write : writes.entrySet() ) {
+            try {
+                write.getValue().get();
+                written.add(write.getKey());
+            } catch (ExecutionException e) {
+                failures.append(" ").append(e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                //we don't know how far the write got, so roll it back along with the rest
+                write.getValue().cancel(true);
+                written.add(write.getKey());
+                failures.append(" ").append(write.getKey()).append(": interrupted");
+            }
+        }
+        if( failures.length() == 0 ) {
+            return;
+        }
+
+        for( String itemLocation : written ) {
+            try {
+                itemStore.delete(itemLocation);
+                log.info("Rolled back partial upload at: " + itemLocation);
+            } catch (ItemStoreException e) {
+                log.error("Failed to roll back partial upload at: " + itemLocation + ": " + e.getMessage());
+            }
+        }
+        throw new InternalErrorException("Failed to save item presentations," + failures);
+    }
+
+    private void putAllInline( Map<String,byte[]> items, Map<String,Map<String,String>> metadata )
+            throws InternalErrorException {
+        List<String> written = new ArrayList<>();
+        for( Map.Entry<String,byte[]> item : items.entrySet() ) {
+            try {
+                put(item.getKey(), item.getValue(), metadata.get(item.getKey()));
+                written.add(item.getKey());
+            } catch (InternalErrorException | ItemStoreException e) {
+                for( String itemLocation : written ) {
+                    try {
+                        itemStore.delete(itemLocation);
+                        log.info("Rolled back partial upload at: " + itemLocation);
+                    } catch (ItemStoreException deleteFailure) {
+                        log.error("Failed to roll back partial upload at: " + itemLocation + ": "
+                                + deleteFailure.getMessage());
+                    }
+                }
+                throw new InternalErrorException("Failed to save item presentations, " + e.getMessage());
+            }
         }
     }
 
@@ -154,26 +1073,178 @@ public class UserItemManager {
      * @param presentationType
      * @param itemName
      * @return
-     * @throws AmazonClientException
+     * @throws ItemStoreException
      */
     public boolean deleteItemAtLocation(String fileType, ItemSchema.PresentationType presentationType, String itemName )
-            throws AmazonClientException {
-        AmazonS3Client s3Client = new AmazonS3Client(
-                new BasicAWSCredentials(SecretsService.amazonClientId, SecretsService.amazonClientSecret)
-        );
-
+            throws ItemStoreException {
         String itemLocation =  getItemLocation(itemName, fileType, presentationType);
-        if (!s3Client.doesObjectExist(ItemSchema.S3_BUCKET,
-               itemLocation)) {
+        ItemMetadata itemMetadata;
+        try {
+            itemMetadata = itemStore.head(itemLocation);
+        } catch (ItemNotFoundException e) {
             log.debug("Did not find item at: " + getItemLocation(itemName, fileType, presentationType));
             return false;
         }
-        s3Client.deleteObject(ItemSchema.S3_BUCKET,
-                itemLocation);
+        try {
+            itemStore.delete(itemLocation);
+            quotaService.recordDelete(getUserDir(), 1, itemMetadata.getContentLength());
+            String contentHash = itemMetadata.getUserMetadata(UploadMetadataFields.CONTENT_HASH);
+            if( contentHash != null ) {
+                Lock lock = BlobStore.lockFor(contentHash);
+                lock.lock();
+                try {
+                    blobStore.releaseReference(contentHash, itemLocation);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } finally {
+            itemListCache.invalidate(getUserDir());
+            contentCache.invalidate(itemLocation);
+        }
         log.debug("Deleted item at: " + itemLocation);
         return true;
     }
 
+    /**
+     * Deletes every presentation of the item (original, preview, resized, ...) with one listing
+     * and a bulk delete (see ItemStore.deleteAll()), rather than a lookup and a delete per presentation.
+     * @param name - the name of the item (the name of any of its presentations will do)
+     * @param contentType - the content type of the item, as given in the item list
+     * @return a result for each presentation found (none if the item isn't there)
+     */
+    public List<DeleteResult> deleteItem( String name, String contentType ) throws ItemStoreException {
+        String contentDirectory = getUserDir() + contentType + "/";
+        String itemKey = itemKey(name);
+        Map<String,Long> itemSizes = new LinkedHashMap<>();
+        for( ItemSummary itemSummary : itemStore.list(contentDirectory) ) {
+            //keys look like: [content directory][presentation type]/[name]
+            String key = itemSummary.getKey();
+            int nameStart = key.indexOf('/', contentDirectory.length()) + 1;
+            if( nameStart > 0 && nameStart < key.length() && key.indexOf('/', nameStart) < 0
+                    && itemKey(key.substring(nameStart)).equals(itemKey) ) {
+                itemSizes.put(key, itemSummary.getSize());
+            }
+        }
+        return deleteLocations(itemSizes, Collections.emptyList());
+    }
+
+    /**
+     * Deletes every presentation of each item (e.g., items from getItemList()),
+     * with one listing of the user's items, and bulk deletes.
+     * @return a result for each presentation of the items
+     */
+    public List<DeleteResult> deleteItems( Collection<UserItem> items ) throws ItemStoreException {
+        Set<String> itemLocations = new LinkedHashSet<>();
+        for( UserItem item : items ) {
+            for( ItemSchema.PresentationType presentationType : ItemSchema.PRESENTATION_TYPES ) {
+                UserItem.UserItemLocation location = item.getLocation(presentationType);
+                if( location != null ) {
+                    itemLocations.add(getItemLocation(location.itemName, item.getType(), presentationType));
+                }
+            }
+        }
+        //the listing tells us which items are there, and their sizes, without a lookup per item
+        Map<String,Long> listedSizes = new HashMap<>();
+        for( ItemSummary itemSummary : itemStore.list(getUserDir()) ) {
+            listedSizes.put(itemSummary.getKey(), itemSummary.getSize());
+        }
+        Map<String,Long> itemSizes = new LinkedHashMap<>();
+        List<String> missing = new ArrayList<>();
+        for( String itemLocation : itemLocations ) {
+            Long size = listedSizes.get(itemLocation);
+            if( size == null ) {
+                missing.add(itemLocation);
+            } else {
+                itemSizes.put(itemLocation, size);
+            }
+        }
+        return deleteLocations(itemSizes, missing);
+    }
+
+    /**
+     * Deletes everything the user has stored.
+     * @return a result for each item location deleted
+     */
+    public List<DeleteResult> deleteAllItems() throws ItemStoreException {
+        Map<String,Long> itemSizes = new LinkedHashMap<>();
+        for( ItemSummary itemSummary : itemStore.list(getUserDir()) ) {
+            itemSizes.put(itemSummary.getKey(), itemSummary.getSize());
+        }
+        return deleteLocations(itemSizes, Collections.emptyList());
+    }
+
+    /**
+     * Bulk deletes the item locations, then releases any shared content they referenced.
+     * @param itemSizes - item location => its size, from a listing
+     * @param missing - item locations that weren't found (reported, not deleted)
+     */
+    private List<DeleteResult> deleteLocations( Map<String,Long> itemSizes, Collection<String> missing )
+            throws ItemStoreException {
+        List<DeleteResult> results = new ArrayList<>(itemSizes.size() + missing.size());
+        for( String itemLocation : missing ) {
+            results.add(new DeleteResult(externalPath(itemLocation), DeleteResult.Status.NOT_FOUND, null));
+        }
+        if( itemSizes.isEmpty() ) {
+            return results;
+        }
+        //references to shared content are empty, so only empty items need their metadata looked at
+        Map<String,String> contentHashes = new HashMap<>();
+        for( Map.Entry<String,Long> itemSize : itemSizes.entrySet() ) {
+            if( itemSize.getValue() == 0 ) {
+                try {
+                    String contentHash = itemStore.head(itemSize.getKey()).getUserMetadata(UploadMetadataFields.CONTENT_HASH);
+                    if( contentHash != null ) {
+                        contentHashes.put(itemSize.getKey(), contentHash);
+                    }
+                } catch (ItemNotFoundException e) {
+                    //deleted since it was listed, the bulk delete will skip it
+                }
+            }
+        }
+        List<String> deleted = new ArrayList<>(itemSizes.size());
+        long bytesDeleted = 0;
+        try {
+            Map<String,ItemStoreException> failures = itemStore.deleteAll(itemSizes.keySet());
+            for( Map.Entry<String,Long> itemSize : itemSizes.entrySet() ) {
+                String itemLocation = itemSize.getKey();
+                contentCache.invalidate(itemLocation);
+                ItemStoreException failure = failures.get(itemLocation);
+                if( failure != null ) {
+                    log.warn("Failed to delete item at: " + itemLocation + ": " + failure.getMessage());
+                    results.add(new DeleteResult(externalPath(itemLocation), DeleteResult.Status.FAILED,
+                            failure.getMessage()));
+                } else {
+                    deleted.add(itemLocation);
+                    bytesDeleted += itemSize.getValue();
+                    results.add(new DeleteResult(externalPath(itemLocation), DeleteResult.Status.DELETED, null));
+                }
+            }
+        } finally {
+            quotaService.recordDelete(getUserDir(), deleted.size(), bytesDeleted);
+            itemListCache.invalidate(getUserDir());
+        }
+        for( String itemLocation : deleted ) {
+            String contentHash = contentHashes.get(itemLocation);
+            if( contentHash != null ) {
+                Lock lock = BlobStore.lockFor(contentHash);
+                lock.lock();
+                try {
+                    blobStore.releaseReference(contentHash, itemLocation);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        log.debug("Deleted " + deleted.size() + " of " + itemSizes.size() + " items under: " + getUserDir());
+        return results;
+    }
+
+    private String externalPath( String itemLocation ) {
+        UserItem.UserItemLocation location = makeExternalLocation(itemLocation);
+        return location != null ? location.fullPath : itemLocation;
+    }
+
     /**
      *
      * @param fileType - the content type of the object - this value is given in the file listing.
@@ -190,80 +1261,372 @@ public class UserItemManager {
     public byte[] getItem(String fileType, ItemSchema.PresentationType presentationType,
                             String name, String encoding ) throws UnsupportedEncodingException, IOException {
 
-        if( encoding != null && encoding.length() > 0 && !AvailableEncodings.isAvailable(encoding) ) {
-            throw new UnsupportedEncodingException( "Requested Encoding Type: " + encoding + " for item: "
-                    + name + "  not available");
-        }
-
-        AmazonS3Client s3Client = new AmazonS3Client(
-                new BasicAWSCredentials(SecretsService.amazonClientId, SecretsService.amazonClientSecret)
-        );
+        checkEncoding(encoding, name);
 
-        S3Object object = s3Client.getObject(
-                ItemSchema.S3_BUCKET,
-                getItemLocation(name, fileType, presentationType)
-        );
-        try( S3ObjectInputStream inputStream = object.getObjectContent() ) {
-            long contentLength = object.getObjectMetadata().getContentLength();
+        ItemContent itemContent = openItemContent(fileType, presentationType, name);
+        if( itemContent.cached != null ) {
+            try( CachedContent cached = itemContent.cached ) {
+                byte[] item = cached.toByteArray();
+                return isBase64(encoding) ? Base64.getEncoder().encode(item) : item;
+            }
+        }
+        try( StoredItem storedItem = itemContent.storedItem ) {
+            long contentLength = storedItem.getContentLength();
             if (contentLength > Limits.MAX_RETRIEVE_SIZE) {
                 throw new IOException("Object is to large: " + contentLength + " bytes.");
             }
-            int bufferSize = Math.min((int) contentLength, 10 * 8192);
-            byte[] buffer = new byte[bufferSize];
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            int bytesRead;
-            int totalBytesRead = 0;
-            while ((bytesRead = inputStream.read(buffer)) > 0) {
-                outputStream.write(buffer, 0, bytesRead);
-                totalBytesRead += bytesRead;
-            }
-            log.debug("GET in file resource read: " + totalBytesRead + " bytes.");
-            if( encoding == null || encoding.length() == 0 || encoding.equals(AvailableEncodings.IDENTITY) ) {
-                return outputStream.toByteArray();
-            } else if( encoding.equals(AvailableEncodings.BASE64) ) {
-                return Base64.encodeAsString(outputStream.toByteArray()).getBytes(StandardCharsets.UTF_8);
+            //we know the final size up front, so read straight into the array we return
+            byte[] item;
+            if( isBase64(encoding) ) {
+                item = new byte[(int)Base64EncodingInputStream.encodedLength(contentLength)];
+                Streams.readFully(new Base64EncodingInputStream(storedItem.getContent()), item);
             } else {
-                throw new UnsupportedEncodingException("Encoding: " + encoding + " not supported for item:" +
-                        "" + name);
+                item = new byte[(int)contentLength];
+                Streams.readFully(storedItem.getContent(), item);
+            }
+            log.debug("GET in file resource read: " + contentLength + " bytes.");
+            return item;
+        }
+    }
+
+    /**
+     * Streams the item to the given output stream through a fixed size buffer, so memory use
+     * doesn't grow with the size of the item (and MAX_RETRIEVE_SIZE doesn't apply).
+     * The output stream is not closed.
+     * @param encoding - same as getItem(), base64 is encoded as the bytes go by.
+     * @return the number of bytes written to the output stream
+     * @throws UnsupportedEncodingException
+     * @throws IOException
+     */
+    public long getItem(String fileType, ItemSchema.PresentationType presentationType,
+                        String name, String encoding, OutputStream outputStream )
+            throws UnsupportedEncodingException, IOException {
+        try( InputStream inputStream = getItemStream(fileType, presentationType, name, encoding) ) {
+            long bytesWritten = Streams.copy(inputStream, outputStream);
+            log.debug("GET in file resource streamed: " + bytesWritten + " bytes.");
+            return bytesWritten;
+        }
+    }
+
+    /**
+     * Opens the item for reading - the bytes are pulled from the item store as the stream is read
+     * (unless the item is small enough to be served from the content cache).
+     * The caller must close the stream (which releases the underlying connection).
+     * @param encoding - same as getItem(), base64 is encoded as the bytes go by.
+     * @throws UnsupportedEncodingException
+     * @throws IOException
+     */
+    public InputStream getItemStream(String fileType, ItemSchema.PresentationType presentationType,
+                                     String name, String encoding )
+            throws UnsupportedEncodingException, IOException {
+        return getItemStream(fileType, presentationType, name, encoding, Collections.emptySet());
+    }
+
+    /**
+     * Same as getItemStream(), except that items stored compressed with one of the accepted codecs
+     * (see ContentCodecs) are passed through compressed, rather than decompressed on the way.
+     * Check the stream's content codec to see which you got (e.g., to set the HTTP Content-Encoding).
+     * Items that are in the content cache are served from it, already decoded.
+     * @param acceptedCodecs - codec names, e.g., ContentCodecs.GZIP
+     */
+    public EncodedInputStream getItemStream(String fileType, ItemSchema.PresentationType presentationType,
+                                            String name, String encoding, Collection<String> acceptedCodecs )
+            throws UnsupportedEncodingException, IOException {
+        checkEncoding(encoding, name);
+        ItemContent itemContent = openItemContent(fileType, presentationType, name, acceptedCodecs);
+        InputStream content = itemContent.cached != null ? new ByteBufferInputStream(itemContent.cached)
+                : itemContent.storedItem.getContent();
+        if( isBase64(encoding) ) {
+            content = new Base64EncodingInputStream(content);
+        }
+        return new EncodedInputStream(content, itemContent.contentCodec);
+    }
+
+    /**
+     * Returns a read-only view of the item's bytes, straight from the content cache when it's there
+     * (which may be off heap, see ContentCache.Storage), reading it through the cache otherwise.
+     * Close the view as soon as you're done with it.
+     * @return the item bytes, or null if the item is too large to cache (use getItemStream() for those).
+     * @throws IOException
+     */
+    public CachedContent getItemBuffer(String fileType, ItemSchema.PresentationType presentationType,
+                                       String name ) throws IOException {
+        ItemContent itemContent = openItemContent(fileType, presentationType, name);
+        if( itemContent.storedItem != null ) {
+            itemContent.storedItem.close();
+            return null;
+        }
+        return itemContent.cached;
+    }
+
+    /**
+     * Either the cached bytes of an item, or the item opened in the item store.
+     */
+    private static class ItemContent {
+        final CachedContent cached;
+        final StoredItem storedItem;
+        //the codec the stored item's content is still encoded with, null once it's decoded
+        final String contentCodec;
+
+        ItemContent( CachedContent cached, StoredItem storedItem ) {
+            this(cached, storedItem, null);
+        }
+
+        ItemContent( CachedContent cached, StoredItem storedItem, String contentCodec ) {
+            this.cached = cached;
+            this.storedItem = storedItem;
+            this.contentCodec = contentCodec;
+        }
+    }
+
+    /**
+     * Looks the item up in the content cache, and opens it in the item store on a miss.
+     * Items small enough to cache are read in full, and cached, on the way through.
+     * Deferred presentations that haven't been made yet are made first (see setDeferPresentations()).
+     */
+    private ItemContent openItemContent( String fileType, ItemSchema.PresentationType presentationType, String name )
+            throws IOException {
+        return openItemContent(fileType, presentationType, name, Collections.emptySet());
+    }
+
+    /**
+     * Compressed items are decompressed (and cached that way), unless the caller accepts their codec,
+     * in which case they're passed through as they're stored.
+     */
+    private ItemContent openItemContent( String fileType, ItemSchema.PresentationType presentationType, String name,
+                                         Collection<String> acceptedCodecs ) throws IOException {
+        String itemLocation = getItemLocation(name, fileType, presentationType);
+        CachedContent cached = contentCache.get(itemLocation);
+        if( cached != null ) {
+            return new ItemContent(cached, null);
+        }
+        long generation = contentCache.getGeneration();
+        StoredItem storedItem;
+        try {
+            storedItem = itemStore.get(itemLocation);
+        } catch (ItemNotFoundException e) {
+            if( !derivePresentationsOnRead(fileType, presentationType, name) ) {
+                throw e;
+            }
+            generation = contentCache.getGeneration();
+            storedItem = itemStore.get(itemLocation);
+        }
+        String contentHash = storedItem.getMetadata().getUserMetadata(UploadMetadataFields.CONTENT_HASH);
+        if( contentHash != null ) {
+            storedItem.close();
+            storedItem = itemStore.get(blobStore.getBlobKey(contentHash, presentationType));
+        }
+        String contentCodec = storedItem.getMetadata().getUserMetadata(UploadMetadataFields.CONTENT_CODEC);
+        if( contentCodec != null ) {
+            if( acceptedCodecs.contains(contentCodec) ) {
+                return new ItemContent(null, storedItem, contentCodec);
             }
+            storedItem = decode(storedItem, contentCodec);
+        }
+        if( !contentCache.isCacheable(storedItem.getContentLength()) ) {
+            return new ItemContent(null, storedItem);
+        }
+        try( StoredItem cacheable = storedItem ) {
+            byte[] item = new byte[(int)cacheable.getContentLength()];
+            Streams.readFully(cacheable.getContent(), item);
+            contentCache.put(itemLocation, presentationType, item, generation);
+            return new ItemContent(CachedContent.wrap(item), null);
         }
     }
 
     /**
-     * Writes items to S3, and item metadata to Redis
+     * Reads part of an item (e.g., to resume a download, or to seek in a video),
+     * using a ranged read on the item store.
+     * @param offset - the first byte to read
+     * @param length - how many bytes to read, clipped to the end of the item. Negative reads to the end.
+     * @return the bytes read, along with the total length of the item (enough to answer with an HTTP 206).
+     * @throws InvalidRangeException if the offset is past the end of the item
+     * @throws IOException
+     */
+    public ItemRange getItemRange(String fileType, ItemSchema.PresentationType presentationType,
+                                  String name, long offset, long length ) throws IOException {
+        String itemLocation = getItemLocation(name, fileType, presentationType);
+        try( CachedContent cached = contentCache.peek(itemLocation) ) {
+            if( cached != null ) {
+                long rangeLength = Ranges.clip(itemLocation, offset, length, cached.getLength());
+                byte[] range = new byte[(int)rangeLength];
+                ByteBuffer buffer = cached.getBuffer().duplicate();
+                ((Buffer)buffer).position((int)offset);
+                buffer.get(range);
+                return new ItemRange(offset, rangeLength, cached.getLength(), range);
+            }
+        }
+        try( StoredItem storedItem = openRange(itemLocation, presentationType, offset, length) ) {
+            long contentLength = storedItem.getContentLength();
+            if (contentLength > Limits.MAX_RETRIEVE_SIZE) {
+                throw new IOException("Range is to large: " + contentLength + " bytes.");
+            }
+            byte[] range = new byte[(int)contentLength];
+            Streams.readFully(storedItem.getContent(), range);
+            return new ItemRange(storedItem.getOffset(), contentLength, storedItem.getTotalLength(), range);
+        }
+    }
+
+    /**
+     * Streams part of an item to the given output stream (which is not closed).
+     * @see #getItemRange(String, ItemSchema.PresentationType, String, long, long)
+     * @return the range written (without its bytes), along with the total length of the item.
+     * @throws InvalidRangeException if the offset is past the end of the item
+     * @throws IOException
+     */
+    public ItemRange getItemRange(String fileType, ItemSchema.PresentationType presentationType,
+                                  String name, long offset, long length, OutputStream outputStream )
+            throws IOException {
+        String itemLocation = getItemLocation(name, fileType, presentationType);
+        try( CachedContent cached = contentCache.peek(itemLocation) ) {
+            if( cached != null ) {
+                long rangeLength = Ranges.clip(itemLocation, offset, length, cached.getLength());
+                try( InputStream range = new BoundedInputStream(new ByteBufferInputStream(cached), offset + rangeLength) ) {
+                    range.skip(offset);
+                    Streams.copy(range, outputStream);
+                }
+                return new ItemRange(offset, rangeLength, cached.getLength(), null);
+            }
+        }
+        try( StoredItem storedItem = openRange(itemLocation, presentationType, offset, length) ) {
+            long bytesWritten = Streams.copy(storedItem.getContent(), outputStream);
+            return new ItemRange(storedItem.getOffset(), bytesWritten, storedItem.getTotalLength(), null);
+        }
+    }
+
+    /**
+     * Opens a range of the item, or of the shared content it references.
+     * Compressed items are decompressed from the start, up to the end of the range.
+     */
+    private StoredItem openRange( String itemLocation, ItemSchema.PresentationType presentationType,
+                                  long offset, long length ) throws IOException {
+        StoredItem storedItem = null;
+        ItemMetadata metadata;
+        try {
+            storedItem = itemStore.get(itemLocation, offset, length);
+            metadata = storedItem.getMetadata();
+        } catch (InvalidRangeException e) {
+            //references are empty, and compressed items are shorter than their content,
+            //so a range past the end of what's stored may still be in the item
+            metadata = itemStore.head(itemLocation);
+            if( metadata.getUserMetadata(UploadMetadataFields.CONTENT_HASH) == null
+                    && metadata.getUserMetadata(UploadMetadataFields.CONTENT_CODEC) == null ) {
+                throw e;
+            }
+        }
+        String contentHash = metadata.getUserMetadata(UploadMetadataFields.CONTENT_HASH);
+        String contentCodec = metadata.getUserMetadata(UploadMetadataFields.CONTENT_CODEC);
+        if( contentHash == null && contentCodec == null ) {
+            return storedItem;
+        }
+        if( storedItem != null ) {
+            storedItem.close();
+        }
+        if( contentHash != null ) {
+            return openRange(blobStore.getBlobKey(contentHash, presentationType), presentationType, offset, length);
+        }
+        long rangeLength = Ranges.clip(itemLocation, offset, length, getDecodedLength(metadata));
+        StoredItem decoded = decode(itemStore.get(itemLocation), contentCodec);
+        try {
+            Streams.skipFully(decoded.getContent(), offset);
+        } catch (IOException e) {
+            decoded.close();
+            throw e;
+        }
+        return new StoredItem(new BoundedInputStream(decoded.getContent(), rangeLength), decoded.getMetadata(),
+                offset, rangeLength);
+    }
+
+    /**
+     * @return the stored item, decoding its content as it's read (closing it closes the stored item).
+     * The returned item's metadata describes the decoded content.
+     */
+    private StoredItem decode( StoredItem storedItem, String contentCodec ) throws IOException {
+        ItemMetadata metadata = storedItem.getMetadata();
+        try {
+            InputStream decoded = ContentCodecs.decode(storedItem.getContent(), contentCodec);
+            return new StoredItem(decoded, new ItemMetadata(getDecodedLength(metadata), metadata.getUserMetadata()));
+        } catch (IOException e) {
+            storedItem.close();
+            throw e;
+        }
+    }
+
+    private static long getDecodedLength( ItemMetadata metadata ) throws IOException {
+        String decodedLength = metadata.getUserMetadata(UploadMetadataFields.DECODED_LENGTH);
+        if( decodedLength == null ) {
+            throw new IOException("Compressed item is missing its decoded length.");
+        }
+        return Long.parseLong(decodedLength);
+    }
+
+    private void checkEncoding( String encoding, String name ) throws UnsupportedEncodingException {
+        if( encoding != null && encoding.length() > 0 && !AvailableEncodings.isAvailable(encoding) ) {
+            throw new UnsupportedEncodingException( "Requested Encoding Type: " + encoding + " for item: "
+                    + name + "  not available");
+        }
+    }
+
+    private static boolean isBase64( String encoding ) {
+        return encoding != null && encoding.equals(AvailableEncodings.BASE64);
+    }
+
+    /**
+     * Writes items to the item store, and item metadata to Redis
      */
     private void saveItemAtLocation(String name, byte[] itemData, String fileType,
                                     ItemSchema.PresentationType presentationType  )
             throws InternalErrorException {
-
         String itemLocation = this.getItemLocation(name, fileType, presentationType);
-        AmazonS3Client s3Client = new AmazonS3Client(
-                new BasicAWSCredentials(SecretsService.amazonClientId, SecretsService.amazonClientSecret)
-        );
-        ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(itemData);
-        ObjectMetadata metadata = this.makeBasicMetadata(itemData.length, false, name);
-        metadata.addUserMetadata(UploadMetadataFields.CONTENT_TYPE, fileType);
+        put(itemLocation, itemData, makeItemMetadata(name, fileType));
+    }
+
+    private void put( String itemLocation, byte[] itemData, Map<String,String> metadata )
+            throws InternalErrorException {
         //TODO: save this metadata, along with location, to local Redis
-        s3Client.putObject(ItemSchema.S3_BUCKET, itemLocation, byteArrayInputStream, metadata);
+        try {
+            itemStore.put(itemLocation, itemData, metadata);
+        } catch (ItemStoreException e) {
+            throw new InternalErrorException("Failed to save item at: " + itemLocation + ": " + e.getMessage());
+        }
     }
 
-    private ObjectMetadata makeBasicMetadata( int bufferLength, boolean isPublic, String itemName ) {
-        ObjectMetadata fileMetadata = new ObjectMetadata();
-        fileMetadata.setContentEncoding(APPLICATION_OCTET_STREAM.toString());
+    private Map<String,String> makeItemMetadata( String name, String fileType ) {
+        Map<String,String> metadata = this.makeBasicMetadata(false, name);
+        metadata.put(UploadMetadataFields.CONTENT_TYPE, fileType);
+        return metadata;
+    }
+
+    private Map<String,String> makeBasicMetadata( boolean isPublic, String itemName ) {
+        Map<String,String> fileMetadata = new HashMap<>();
         if (isPublic) {
-            fileMetadata.addUserMetadata(UploadMetadataFields.PUBLIC, UploadMetadataFields.TRUE_VALUE);
+            fileMetadata.put(UploadMetadataFields.PUBLIC, UploadMetadataFields.TRUE_VALUE);
         } else {
-            fileMetadata.addUserMetadata(UploadMetadataFields.PUBLIC, UploadMetadataFields.FALSE_VALUE);
+            fileMetadata.put(UploadMetadataFields.PUBLIC, UploadMetadataFields.FALSE_VALUE);
         }
-        fileMetadata.addUserMetadata(UploadMetadataFields.DISPLAY_NAME, itemName);
-        fileMetadata.setContentLength(bufferLength);
+        fileMetadata.put(UploadMetadataFields.DISPLAY_NAME, itemName);
         return fileMetadata;
     }
 
     /**
+     * Served from the item list cache when we can, addItem() and deleteItemAtLocation()
+     * invalidate the user's cached list.
+     * Note that the UserItems in the returned list may be shared with other callers, don't modify them.
      * @return
      */
     public List<UserItem> getItemList() {
+        String userDir = getUserDir();
+        List<UserItem> cachedItemList = itemListCache.get(userDir);
+        if( cachedItemList != null ) {
+            return cachedItemList;
+        }
+        long generation = itemListCache.getGeneration();
+        List<UserItem> itemList = loadItemList();
+        itemListCache.put(userDir, itemList, generation);
+        return itemList;
+    }
+
+    private List<UserItem> loadItemList() {
         HashMap<String,HashMap<ItemSchema.PresentationType,List<UserItem.UserItemLocation>>> itemLocations
                 = getItemLocations();
         List<UserItem> itemList = new ArrayList<>();
@@ -301,6 +1664,11 @@ public class UserItemManager {
             }
         }
         for( Map.Entry<String, UserItem> userItem : userItems.entrySet() ) {
+            UserItem.UserItemLocation originalLocation = userItem.getValue().getOriginalLocation();
+            if( originalLocation != null && presentationQueue.isPending(getItemLocation(originalLocation.itemName,
+                    userItem.getValue().getType(), ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE)) ) {
+                userItem.getValue().addAttr(UserItem.PENDING_ATTR, UploadMetadataFields.TRUE_VALUE);
+            }
             //Note that this maps to the actual name in all cases (original, preview, preferred w/out added extension)
             //except when we add an extension to a preferred format of the item.
             userItem.getValue().addAttr(UploadMetadataFields.DISPLAY_NAME, userItem.getKey());
@@ -309,92 +1677,122 @@ public class UserItemManager {
         return itemList;
     }
 
+    /**
+     * Lists the user directory once (following the store's pages as we go), and buckets
+     * each item by the content type and presentation type in its path.
+     * @return content type => presentation type => locations
+     */
     public HashMap<String,HashMap<ItemSchema.PresentationType,List<UserItem.UserItemLocation>>> getItemLocations() {
 
         HashMap<String,HashMap<ItemSchema.PresentationType,List<UserItem.UserItemLocation>>> itemLocations
                 = new HashMap<>();
 
-        AmazonS3Client s3Client = new AmazonS3Client(
-                new BasicAWSCredentials(SecretsService.amazonClientId, SecretsService.amazonClientSecret));
-
-        for( String contentType : ItemSchema.CONTENT_TYPES ) {
-            for( ItemSchema.PresentationType presentationType : ItemSchema.PRESENTATION_TYPES ) {
-
-                ObjectListing listing = s3Client.listObjects( ItemSchema.S3_BUCKET,
-                        this.getItemDirectory(contentType, presentationType) );
-
-                HashSet<UserItem.UserItemLocation> locations = getExternalItemListing(listing);
-                String curDirectory = makeExternalLocation(getItemDirectory(contentType, presentationType)).fullPath;
-                for( UserItem.UserItemLocation location : locations ) {
-                    //it would be nice if s3 didn't return stuff that doesn't technically match the prefix
-                    //(due to trailing /), but it looks like it might
-                    if( curDirectory.endsWith(location.itemName) ) {
-                        log.debug( "Skipping location: " + location + " because it looks like a group (folder)" +
-                                ", not an object" );
-                        continue;
-                    }
-                    if( !itemLocations.containsKey(contentType) ) {
-                        itemLocations.put(contentType, new HashMap<>() );
-                    }
-                    if( !itemLocations.get(contentType).containsKey(presentationType) ) {
-                        itemLocations.get(contentType).put(presentationType, new ArrayList<>());
-                    }
-                    itemLocations.get(contentType).get(presentationType).add(location);
-                }
+        String userDir = this.getUserDir();
+        for( ItemSummary itemSummary : itemStore.list(userDir) ) {
+            //keys look like: [user dir][content type]/[presentation type]/[name]
+            String key = itemSummary.getKey();
+            int contentTypeEnd = key.indexOf('/', userDir.length());
+            int presentationTypeEnd = contentTypeEnd < 0 ? -1 : key.indexOf('/', contentTypeEnd + 1);
+            //it would be nice if s3 didn't return stuff that doesn't technically match the prefix
+            //(due to trailing /), but it looks like it might
+            if( presentationTypeEnd < 0 || presentationTypeEnd == key.length() - 1 ) {
+                log.debug( "Skipping location: " + key + " because it looks like a group (folder)" +
+                        ", not an object" );
+                continue;
+            }
+            String contentType = matchContentType(key, userDir.length(), contentTypeEnd);
+            ItemSchema.PresentationType presentationType =
+                    matchPresentationType(key, contentTypeEnd + 1, presentationTypeEnd);
+            if( contentType == null || presentationType == null ) {
+                log.info("Skipping location: " + key + " with an unrecognized content or presentation type.");
+                continue;
+            }
+            UserItem.UserItemLocation location = makeExternalLocation(key);
+            if( location == null ) {
+                log.info("External path for object list was null?");
+                continue;
+            }
+            log.debug("External path was " + location);
+            HashMap<ItemSchema.PresentationType,List<UserItem.UserItemLocation>> contentTypeLocations =
+                    itemLocations.get(contentType);
+            if( contentTypeLocations == null ) {
+                contentTypeLocations = new HashMap<>();
+                itemLocations.put(contentType, contentTypeLocations);
             }
+            List<UserItem.UserItemLocation> locations = contentTypeLocations.get(presentationType);
+            if( locations == null ) {
+                locations = new ArrayList<>();
+                contentTypeLocations.put(presentationType, locations);
+            }
+            locations.add(location);
         }
 
         return itemLocations;
     }
 
-    /**
-     * Gets a listing of items in S3, and translates the locations to those
-     * recgonized by the external item API (used in the RESTful interface)
-     * @param objectListing
-     * @return
-     */
-    private HashSet<UserItem.UserItemLocation> getExternalItemListing(ObjectListing objectListing ) {
-        HashSet<UserItem.UserItemLocation> itemLocations = new HashSet<>();
-        for( S3ObjectSummary obj : objectListing.getObjectSummaries() ) {
-            String internalPath = obj.getKey();
-            UserItem.UserItemLocation externalLocation = makeExternalLocation(internalPath);
-            if( externalLocation != null ) {
-                itemLocations.add(externalLocation);
-                log.debug("External path was " + externalLocation);
-            } else {
-                log.info("External path for object list was null?");
+    private static String matchContentType( String key, int start, int end ) {
+        for( String contentType : ItemSchema.CONTENT_TYPES ) {
+            if( contentType.length() == end - start && key.startsWith(contentType, start) ) {
+                return contentType;
             }
         }
-        return itemLocations;
+        return null;
+    }
+
+    private static ItemSchema.PresentationType matchPresentationType( String key, int start, int end ) {
+        for( ItemSchema.PresentationType presentationType : ItemSchema.PRESENTATION_TYPES ) {
+            String type = presentationType.toString();
+            if( type.length() == end - start && key.startsWith(type, start) ) {
+                return presentationType;
+            }
+        }
+        return null;
     }
 
     /**
-     * Translates an internal S3 path to the path used in the external API
+     * Translates an internal item store path to the path used in the external API.
+     * Walks the path by index, rather than splitting it, so the only allocations are the
+     * external path and the item name.
      * @param internalPath
-     * @return
+     * @return null if there is nothing in the path past the root
      */
     private UserItem.UserItemLocation makeExternalLocation(String internalPath ) {
-        //"/root/" is not used in the external API, strip it off
-        String[] itemPath = internalPath.split("/");
-        if( itemPath.length > 2 ) {
-            String externalPath = "";
-            String itemName = "";
-            for (int i = 0; i < itemPath.length; ++i) {
-                if( itemPath[i].equals("root")  && i < 2 ) {
-                    continue;
-                }
-                if( itemPath[i].trim().length() == 0 ) {
-                    continue;
-                }
-                externalPath += "/";
-                externalPath += itemPath[i];
+        StringBuilder externalPath = new StringBuilder(internalPath.length());
+        int nameStart = -1;
+        int nameEnd = -1;
+        int segment = 0;
+        int segmentStart = 0;
+        while( segmentStart <= internalPath.length() ) {
+            int segmentEnd = internalPath.indexOf('/', segmentStart);
+            if( segmentEnd < 0 ) {
+                segmentEnd = internalPath.length();
+            }
+            //"/root/" is not used in the external API, strip it off
+            boolean isRoot = segment < 2 && segmentEnd - segmentStart == ROOT_SEGMENT.length()
+                    && internalPath.startsWith(ROOT_SEGMENT, segmentStart);
+            if( !isRoot && !isBlank(internalPath, segmentStart, segmentEnd) ) {
+                externalPath.append('/').append(internalPath, segmentStart, segmentEnd);
                 //just keep updating this with valid entries
                 //don't want to use length() and end up with empty dirs or root dirs
-                itemName = itemPath[i];
+                nameStart = segmentStart;
+                nameEnd = segmentEnd;
             }
-            return new UserItem.UserItemLocation(externalPath, itemName);
+            segment++;
+            segmentStart = segmentEnd + 1;
         }
-        return null;
+        if( nameStart < 0 ) {
+            return null;
+        }
+        return new UserItem.UserItemLocation(externalPath.toString(), internalPath.substring(nameStart, nameEnd));
+    }
+
+    private static boolean isBlank( String s, int start, int end ) {
+        for( int i = start; i < end; ++i ) {
+            if( s.charAt(i) > ' ' ) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public String getUserDir() {
@@ -412,48 +1810,22 @@ public class UserItemManager {
     }
 
     /**
-     * This is not good enough. It slows things down, and still costs money.
-     * Eventually, we should have an async task that updates a local cache of
-     * used storage. If the cache says your below X of the limit (think atms),
-     * you're good. Once you get up close, ping Amazon every time.
-     * @param objectListing
-     * @param maxSize
-     * @return
+     * Reserves room in the quota against the local counts kept by the QuotaService,
+     * which only goes to the item store when the user is close to a limit.
+     * @param newItems - the most items about to be added (see maxItemsFor())
      */
-    private boolean isListingMaxExceeded( ObjectListing objectListing,
-                                          AmazonS3Client s3Client, int maxSize )
-    {
-        long totalNumFiles = objectListing.getObjectSummaries().size();
-        if( totalNumFiles >= maxSize ) {
-            log.error("Error, too many uploads");
-            return true;
-        }
-
-        int numListings = 0;
-        while( objectListing.isTruncated()) {
-            objectListing = s3Client.listNextBatchOfObjects(objectListing);
-            totalNumFiles += objectListing.getObjectSummaries().size();
-            numListings++;
-            if( totalNumFiles >= maxSize ) {
-                log.error("Error, too many uploads, performed: " + numListings + " listings.");
-                return true;
-            }
-        }
-        return false;
+    private QuotaService.Reservation reserveQuota( long newItems )
+        throws QuotaExceededException  {
+        String userDir = this.getUserDir();
+        quotaService.checkItemQuota(userDir, Limits.MAX_TOTAL_FILES, newItems, "max files for the whole system");
+        return quotaService.reserveItems(userDir, Limits.MAX_NUM_FILES_PER_USER, newItems, "max files per user");
     }
 
-    private void checkQuota()
-        throws QuotaExceededException  {
-        AmazonS3Client s3Client = new AmazonS3Client(
-                new BasicAWSCredentials(SecretsService.amazonClientId, SecretsService.amazonClientSecret));
-        ObjectListing curList = s3Client.listObjects(ItemSchema.S3_BUCKET, this.getUserDir());
-        if (isListingMaxExceeded(curList, s3Client, Limits.MAX_NUM_FILES_PER_USER)) {
-            throw new QuotaExceededException("Too many items stored for user, exceeded max files per user: " +
-                Limits.MAX_NUM_FILES_PER_USER);
-        }
-        if (isListingMaxExceeded(curList, s3Client, Limits.MAX_TOTAL_FILES)) {
-            throw new QuotaExceededException("Too many items stored for user, exceeded max files for the whole system: " +
-                    Limits.MAX_TOTAL_FILES);
-        }
+    /**
+     * @return the most items adding the upload can store: every presentation, if a plugin processes it,
+     * otherwise just the original.
+     */
+    private static int maxItemsFor( UploadPreprocessor.Dispatch dispatch ) {
+        return dispatch.getPlugin() == null ? 1 : ItemSchema.PRESENTATION_TYPES.length;
     }
 }
@@ -0,0 +1,59 @@
+package com.shareplaylearn.cache;
+
+import java.io.Closeable;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * A read-only view of cached item bytes - no copy is made when it is handed out.
+ * When the cache keeps its bytes off heap, the memory behind the view is only reserved for
+ * the view until it's closed, so close it as soon as you're done with it, and don't hold on to the buffer.
+ */
+public class CachedContent
+    implements Closeable {
+    private final ByteBuffer buffer;
+    private final Runnable release;
+    private boolean closed = false;
+
+    CachedContent( ByteBuffer buffer, Runnable release ) {
+        this.buffer = buffer;
+        this.release = release;
+    }
+
+    /**
+     * Wraps bytes that aren't (or are no longer) in a cache, so they can be handed out the same way.
+     */
+    public static CachedContent wrap( byte[] data ) {
+        return new CachedContent(ByteBuffer.wrap(data).asReadOnlyBuffer(), null);
+    }
+
+    /**
+     * @return the item bytes, from position to limit.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getLength() {
+        return buffer.limit();
+    }
+
+    /**
+     * @return a copy of the item bytes on the heap.
+     */
+    public byte[] toByteArray() {
+        byte[] data = new byte[getLength()];
+        ByteBuffer copy = buffer.duplicate();
+        ((Buffer)copy).rewind();
+        copy.get(data);
+        return data;
+    }
+
+    @Override
+    public synchronized void close() {
+        if( !closed && release != null ) {
+            release.run();
+        }
+        closed = true;
+    }
+}
@@ -0,0 +1,318 @@
+package com.shareplaylearn.cache;
+
+import com.shareplaylearn.Limits;
+import com.shareplaylearn.models.ItemSchema;
+import com.shareplaylearn.storage.ItemStore;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A read-through cache of item bytes, keyed by item location, bounded by both entry count and total bytes.
+ * Items over the max entry size are never cached.
+ *
+ * Previews are rendered over and over on listing pages, and are small, so they are kept in
+ * preference to other presentations: when we need room, the least recently used non-preview
+ * is evicted first, and previews only once there are no other entries left.
+ *
+ * The bytes can be kept on the heap, or off heap (Storage.OFF_HEAP), in direct memory
+ * handed out by a SlabAllocator - so a big cache doesn't add to the old gen, or to GC pauses.
+ * Either way, hits are handed out as read-only views of the cached bytes (CachedContent), without copying.
+ * An evicted entry's off heap memory is only reused once every view of it has been closed.
+ *
+ * As with the ItemListCache, writers invalidate the locations they change, and a read only
+ * populates the cache if nothing was invalidated while it ran (see getGeneration()).
+ * There is one cache per item store (see forStore()).
+ */
+public class ContentCache {
+    public static final int DEFAULT_MAX_ENTRIES = Limits.IN_MEMORY_CACHE_MAX_ITEMS;
+    public static final long DEFAULT_MAX_BYTES = Limits.IN_MEMORY_CACHE_LIMIT * 1024L * 1024L;
+    public static final int DEFAULT_MAX_ENTRY_BYTES = Limits.IN_MEMORY_CACHE_MAX_ITEM_SIZE;
+
+    public enum Storage {
+        HEAP,
+        OFF_HEAP
+    }
+
+    private static final Map<ItemStore,ContentCache> caches = new WeakHashMap<>();
+
+    private static class Entry {
+        final ByteBuffer data;
+        //only set for off heap entries
+        final SlabAllocator.Chunk chunk;
+        int openViews = 0;
+        boolean removed = false;
+
+        Entry( ByteBuffer data, SlabAllocator.Chunk chunk ) {
+            this.data = data;
+            this.chunk = chunk;
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final int maxEntryBytes;
+    private final Storage storage;
+    private final SlabAllocator slabAllocator;
+    //both access ordered, so iteration starts with the least recently used entry
+    private final LinkedHashMap<String,Entry> previews = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String,Entry> others = new LinkedHashMap<>(16, 0.75f, true);
+    //every entry in either, for lookups that mustn't count as a use
+    private final Map<String,Entry> entries = new HashMap<>();
+    private long byteCount = 0;
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ContentCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, DEFAULT_MAX_ENTRY_BYTES);
+    }
+
+    public ContentCache( int maxEntries, long maxBytes, int maxEntryBytes ) {
+        this(maxEntries, maxBytes, maxEntryBytes, Storage.HEAP);
+    }
+
+    /**
+     * @param storage - OFF_HEAP allocates (up to) maxBytes of direct memory, in pages big enough for maxEntryBytes
+     */
+    public ContentCache( int maxEntries, long maxBytes, int maxEntryBytes, Storage storage ) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = (int)Math.min(maxEntryBytes, maxBytes);
+        this.storage = storage;
+        this.slabAllocator = storage == Storage.OFF_HEAP ? new SlabAllocator(maxBytes, this.maxEntryBytes) : null;
+    }
+
+    /**
+     * @return the cache for the given store, creating one with the default settings if needed.
+     */
+    public static ContentCache forStore( ItemStore itemStore ) {
+        synchronized (caches) {
+            ContentCache cache = caches.get(itemStore);
+            if( cache == null ) {
+                cache = new ContentCache();
+                caches.put(itemStore, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Sets the cache to use for the given store (e.g., with different limits, or off heap),
+     * call this before any manager uses the store.
+     */
+    public static void register( ItemStore itemStore, ContentCache cache ) {
+        synchronized (caches) {
+            caches.put(itemStore, cache);
+        }
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * @return whether an item of the given length would be cached.
+     */
+    public boolean isCacheable( long length ) {
+        return length <= maxEntryBytes && maxEntries > 0;
+    }
+
+    /**
+     * @return a view of the cached bytes (close it when done), or null on a miss.
+     */
+    public synchronized CachedContent get( String location ) {
+        Entry entry = previews.get(location);
+        if( entry == null ) {
+            entry = others.get(location);
+        }
+        if( entry == null ) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return openView(entry);
+    }
+
+    /**
+     * Same as get(), but doesn't count towards the hit/miss counts, or as a use of the entry
+     * (so it's evicted no later than it would have been), for opportunistic lookups like ranged reads.
+     */
+    public synchronized CachedContent peek( String location ) {
+        Entry entry = entries.get(location);
+        return entry == null ? null : openView(entry);
+    }
+
+    /**
+     * Read this before reading an item from the store, and pass it to put().
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Caches the bytes, unless something was invalidated since the given generation was read.
+     * On the heap, the cache keeps a reference to the array, so the caller must not modify it after this.
+     * Off heap, the bytes are copied into a chunk of direct memory.
+     * @return whether the bytes were cached.
+     */
+    public synchronized boolean put( String location, ItemSchema.PresentationType presentationType,
+                                     byte[] data, long loadedAtGeneration ) {
+        if( !isCacheable(data.length) || loadedAtGeneration != generation.get() ) {
+            return false;
+        }
+        remove(location);
+        Entry entry;
+        if( storage == Storage.OFF_HEAP ) {
+            SlabAllocator.Chunk chunk = allocate(data.length);
+            if( chunk == null ) {
+                return false;
+            }
+            ByteBuffer target = chunk.getBuffer().duplicate();
+            target.put(data);
+            ByteBuffer view = chunk.getBuffer().duplicate();
+            ((Buffer)view).limit(data.length);
+            entry = new Entry(view, chunk);
+        } else {
+            entry = new Entry(ByteBuffer.wrap(data), null);
+        }
+        if( presentationType == ItemSchema.PresentationType.PREVIEW_PRESENTATION_TYPE ) {
+            previews.put(location, entry);
+        } else {
+            others.put(location, entry);
+        }
+        entries.put(location, entry);
+        byteCount += data.length;
+        evict(others);
+        evict(previews);
+        return true;
+    }
+
+    public synchronized void invalidate( String location ) {
+        generation.incrementAndGet();
+        remove(location);
+    }
+
+    public synchronized void clear() {
+        generation.incrementAndGet();
+        for( Entry entry : previews.values() ) {
+            release(entry);
+        }
+        for( Entry entry : others.values() ) {
+            release(entry);
+        }
+        previews.clear();
+        others.clear();
+        entries.clear();
+        byteCount = 0;
+    }
+
+    public synchronized int size() {
+        return previews.size() + others.size();
+    }
+
+    public synchronized long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * @return the direct memory held by the cache (0 on the heap).
+     */
+    public synchronized long getOffHeapBytes() {
+        return slabAllocator == null ? 0 : slabAllocator.getAllocatedBytes();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    private CachedContent openView( Entry entry ) {
+        entry.openViews++;
+        return new CachedContent(entry.data.asReadOnlyBuffer(), () -> closeView(entry));
+    }
+
+    private synchronized void closeView( Entry entry ) {
+        entry.openViews--;
+        if( entry.removed && entry.openViews == 0 && entry.chunk != null ) {
+            slabAllocator.free(entry.chunk);
+        }
+    }
+
+    /**
+     * Gets a chunk from the slab allocator, evicting entries of the same size class
+     * (non-previews first) until one frees up. Entries with open views are skipped, as evicting them
+     * frees nothing yet, so this gives up (returns null) once every entry left in the size class is being read.
+     */
+    private SlabAllocator.Chunk allocate( int length ) {
+        SlabAllocator.Chunk chunk = slabAllocator.allocate(length);
+        int sizeClass = slabAllocator.sizeClassOf(length);
+        while( chunk == null && (evictSizeClass(others, sizeClass) || evictSizeClass(previews, sizeClass)) ) {
+            chunk = slabAllocator.allocate(length);
+        }
+        return chunk;
+    }
+
+    private boolean evictSizeClass( LinkedHashMap<String,Entry> segment, int sizeClass ) {
+        Iterator<Map.Entry<String,Entry>> leastRecentlyUsed = segment.entrySet().iterator();
+        while( leastRecentlyUsed.hasNext() ) {
+            Map.Entry<String,Entry> next = leastRecentlyUsed.next();
+            Entry entry = next.getValue();
+            if( entry.chunk.getSizeClass() == sizeClass && entry.openViews == 0 ) {
+                leastRecentlyUsed.remove();
+                entries.remove(next.getKey());
+                byteCount -= entry.data.limit();
+                release(entry);
+                evictions.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void remove( String location ) {
+        Entry removed = previews.remove(location);
+        if( removed == null ) {
+            removed = others.remove(location);
+        }
+        entries.remove(location);
+        if( removed != null ) {
+            byteCount -= removed.data.limit();
+            release(removed);
+        }
+    }
+
+    private void release( Entry entry ) {
+        entry.removed = true;
+        if( entry.openViews == 0 && entry.chunk != null ) {
+            slabAllocator.free(entry.chunk);
+        }
+    }
+
+    private void evict( LinkedHashMap<String,Entry> segment ) {
+        Iterator<Map.Entry<String,Entry>> leastRecentlyUsed = segment.entrySet().iterator();
+        while( (size() > maxEntries || byteCount > maxBytes) && leastRecentlyUsed.hasNext() ) {
+            Map.Entry<String,Entry> next = leastRecentlyUsed.next();
+            Entry entry = next.getValue();
+            leastRecentlyUsed.remove();
+            entries.remove(next.getKey());
+            byteCount -= entry.data.limit();
+            release(entry);
+            evictions.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.shareplaylearn.cache;
+
+import com.shareplaylearn.models.UserItem;
+import com.shareplaylearn.storage.ItemStore;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches each user's item list (keyed by user dir), so listing items doesn't have to list
+ * the item store every time. Entries expire after a fixed time, and the least recently used
+ * entries are evicted once the cache is full.
+ *
+ * Writers invalidate the user's entry once they're done changing the store. To keep a list
+ * that was loaded before a change from being cached after it, a load only gets cached if
+ * nothing was invalidated while it ran (see getGeneration()).
+ *
+ * There is one cache per item store (see forStore()), so managers on different stores
+ * never see each other's lists.
+ */
+public class ItemListCache {
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final long DEFAULT_TTL_MS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final Map<ItemStore,ItemListCache> caches = new WeakHashMap<>();
+
+    private static class Entry {
+        final List<UserItem> itemList;
+        final long expiresAt;
+
+        Entry( List<UserItem> itemList, long expiresAt ) {
+            this.itemList = itemList;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LinkedHashMap<String,Entry> entries;
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ItemListCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MS);
+    }
+
+    public ItemListCache( int maxEntries, long ttlMillis ) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        //access ordered, so iteration starts with the least recently used entry
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * @return the cache for the given store, creating one with the default settings if needed.
+     */
+    public static ItemListCache forStore( ItemStore itemStore ) {
+        synchronized (caches) {
+            ItemListCache cache = caches.get(itemStore);
+            if( cache == null ) {
+                cache = new ItemListCache();
+                caches.put(itemStore, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Sets the cache to use for the given store (e.g., with different limits),
+     * call this before any manager uses the store.
+     */
+    public static void register( ItemStore itemStore, ItemListCache cache ) {
+        synchronized (caches) {
+            caches.put(itemStore, cache);
+        }
+    }
+
+    /**
+     * @return a copy of the cached list, or null if we don't have an unexpired one.
+     */
+    public synchronized List<UserItem> get( String userDir ) {
+        Entry entry = entries.get(userDir);
+        if( entry != null && entry.expiresAt - System.nanoTime() <= 0 ) {
+            entries.remove(userDir);
+            evictions.incrementAndGet();
+            entry = null;
+        }
+        if( entry == null ) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return new ArrayList<>(entry.itemList);
+    }
+
+    /**
+     * Read this before loading a list from the store, and pass it to put().
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Caches the list, unless something was invalidated since the given generation was read
+     * (in which case the list may already be stale).
+     * @return whether the list was cached.
+     */
+    public synchronized boolean put( String userDir, List<UserItem> itemList, long loadedAtGeneration ) {
+        if( loadedAtGeneration != generation.get() ) {
+            return false;
+        }
+        entries.put(userDir, new Entry(new ArrayList<>(itemList), System.nanoTime() + ttlNanos));
+        Iterator<Entry> leastRecentlyUsed = entries.values().iterator();
+        while( entries.size() > maxEntries && leastRecentlyUsed.hasNext() ) {
+            leastRecentlyUsed.next();
+            leastRecentlyUsed.remove();
+            evictions.incrementAndGet();
+        }
+        return true;
+    }
+
+    public synchronized void invalidate( String userDir ) {
+        generation.incrementAndGet();
+        entries.remove(userDir);
+    }
+
+    public synchronized void clear() {
+        generation.incrementAndGet();
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of entries dropped for being expired, or to make room
+     * (invalidations aren't counted).
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+}
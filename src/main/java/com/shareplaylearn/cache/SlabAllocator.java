@@ -0,0 +1,172 @@
+package com.shareplaylearn.cache;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands out chunks of off-heap (direct) memory for the content cache.
+ *
+ * Memory is allocated in fixed size pages, up to a total budget, and never given back to the JVM -
+ * so the GC never sees the cached bytes, and we don't churn direct memory.
+ * Each page is carved into equal chunks of one size class (powers of two, from MIN_CHUNK_SIZE up to
+ * the page size), and an item goes in the smallest chunk it fits in.
+ * Once the budget is used up, a page whose chunks are all free can be re-carved for another size class,
+ * otherwise the caller has to free chunks of the size class it needs (see ContentCache).
+ *
+ * Not thread-safe, the ContentCache only calls it while holding its own lock.
+ */
+public class SlabAllocator {
+    public static final int MIN_CHUNK_SIZE = 1024;
+
+    /**
+     * A slice of a page, holding at most one item.
+     */
+    public static class Chunk {
+        private final Page page;
+        private final ByteBuffer buffer;
+        private final int sizeClass;
+
+        Chunk( Page page, ByteBuffer buffer, int sizeClass ) {
+            this.page = page;
+            this.buffer = buffer;
+            this.sizeClass = sizeClass;
+        }
+
+        /**
+         * @return the chunk's memory, position 0, limit at the chunk size.
+         * Callers should duplicate() it rather than moving its position.
+         */
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        public int getSizeClass() {
+            return sizeClass;
+        }
+    }
+
+    private static class Page {
+        final ByteBuffer buffer;
+        final List<Chunk> chunks = new ArrayList<>();
+        int sizeClass = -1;
+        int chunksInUse = 0;
+
+        Page( ByteBuffer buffer ) {
+            this.buffer = buffer;
+        }
+    }
+
+    private final int pageSize;
+    private final int maxPages;
+    private final List<Page> pages = new ArrayList<>();
+    private final List<ArrayDeque<Chunk>> freeChunks = new ArrayList<>();
+
+    /**
+     * @param maxBytes - the most direct memory to allocate (rounded down to whole pages, at least one page)
+     * @param maxChunkSize - the largest item we'll need room for, this sets the page size
+     */
+    public SlabAllocator( long maxBytes, int maxChunkSize ) {
+        int size = MIN_CHUNK_SIZE;
+        freeChunks.add(new ArrayDeque<>());
+        while( size < maxChunkSize ) {
+            size <<= 1;
+            freeChunks.add(new ArrayDeque<>());
+        }
+        this.pageSize = size;
+        this.maxPages = (int)Math.max(1, maxBytes / pageSize);
+    }
+
+    /**
+     * @return the size class a chunk for the given length comes from, or -1 if it is too big for any chunk.
+     */
+    public int sizeClassOf( int length ) {
+        int size = MIN_CHUNK_SIZE;
+        for( int sizeClass = 0; sizeClass < freeChunks.size(); ++sizeClass ) {
+            if( length <= size ) {
+                return sizeClass;
+            }
+            size <<= 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return a free chunk that can hold length bytes, or null if there is none (and no memory left to make one).
+     */
+    public Chunk allocate( int length ) {
+        int sizeClass = sizeClassOf(length);
+        if( sizeClass < 0 ) {
+            return null;
+        }
+        ArrayDeque<Chunk> free = freeChunks.get(sizeClass);
+        if( free.isEmpty() ) {
+            Page page = newPage();
+            if( page == null ) {
+                page = reclaimEmptyPage();
+            }
+            if( page == null ) {
+                return null;
+            }
+            carve(page, sizeClass);
+        }
+        Chunk chunk = free.pop();
+        chunk.page.chunksInUse++;
+        return chunk;
+    }
+
+    public void free( Chunk chunk ) {
+        chunk.page.chunksInUse--;
+        freeChunks.get(chunk.sizeClass).push(chunk);
+    }
+
+    /**
+     * @return the direct memory allocated so far.
+     */
+    public long getAllocatedBytes() {
+        return (long)pages.size() * pageSize;
+    }
+
+    public long getCapacity() {
+        return (long)maxPages * pageSize;
+    }
+
+    private Page newPage() {
+        if( pages.size() >= maxPages ) {
+            return null;
+        }
+        Page page = new Page(ByteBuffer.allocateDirect(pageSize));
+        pages.add(page);
+        return page;
+    }
+
+    private Page reclaimEmptyPage() {
+        for( Page page : pages ) {
+            if( page.chunksInUse == 0 ) {
+                if( page.sizeClass >= 0 ) {
+                    freeChunks.get(page.sizeClass).removeIf( chunk -> chunk.page == page );
+                }
+                return page;
+            }
+        }
+        return null;
+    }
+
+    private void carve( Page page, int sizeClass ) {
+        int chunkSize = MIN_CHUNK_SIZE << sizeClass;
+        page.sizeClass = sizeClass;
+        page.chunks.clear();
+        ArrayDeque<Chunk> free = freeChunks.get(sizeClass);
+        for( int offset = 0; offset + chunkSize <= pageSize; offset += chunkSize ) {
+            ByteBuffer slice = page.buffer.duplicate();
+            //go through Buffer, so a class built on a newer JDK still links on java 8
+            ((Buffer)slice).position(offset);
+            ((Buffer)slice).limit(offset + chunkSize);
+            Chunk chunk = new Chunk(page, slice.slice(), sizeClass);
+            page.chunks.add(chunk);
+            free.push(chunk);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.shareplaylearn.exceptions;
+
+/**
+ * Thrown when a ranged read starts past the end of the item
+ * (the HTTP 416 case).
+ */
+public class InvalidRangeException
+    extends ItemStoreException {
+
+    public InvalidRangeException( String key, long offset ) {
+        super( "Range starting at: " + offset + " is past the end of item: " + key );
+    }
+}
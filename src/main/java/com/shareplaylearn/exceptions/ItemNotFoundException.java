@@ -0,0 +1,12 @@
+package com.shareplaylearn.exceptions;
+
+/**
+ * Thrown by an ItemStore when there is nothing stored under the requested key.
+ */
+public class ItemNotFoundException
+    extends ItemStoreException {
+
+    public ItemNotFoundException( String key ) {
+        super( "No item stored at: " + key );
+    }
+}
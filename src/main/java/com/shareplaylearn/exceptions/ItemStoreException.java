@@ -0,0 +1,17 @@
+package com.shareplaylearn.exceptions;
+
+/**
+ * Thrown by an ItemStore backend when a storage operation fails.
+ * Unchecked, like the AmazonClientExceptions it replaces.
+ */
+public class ItemStoreException
+    extends RuntimeException {
+
+    public ItemStoreException( String msg ) {
+        super( msg );
+    }
+
+    public ItemStoreException( String msg, Throwable cause ) {
+        super( msg, cause );
+    }
+}
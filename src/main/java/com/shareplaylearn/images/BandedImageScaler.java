@@ -0,0 +1,110 @@
+package com.shareplaylearn.images;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a FilteredImageScaler over horizontal bands of the image in parallel, on a ForkJoinPool,
+ * for the very large images where one thread would leave the other cores idle.
+ *
+ * Reading the pixels, the box reduction and the filter passes are all split into bands of rows.
+ * A band of target rows draws from a few more source rows than it "owns" (the filter's footprint
+ * overlaps the next band's), each band resamples those shared rows itself, so the result is
+ * exactly what the FilteredImageScaler makes on its own.
+ */
+public class BandedImageScaler
+    implements ImageScaler {
+    public static final int DEFAULT_MIN_BAND_ROWS = 32;
+
+    /**
+     * Does the work for one band of rows.
+     */
+    private interface Band {
+        void run( int fromRow, int toRow );
+    }
+
+    private class Bands
+        extends RecursiveAction {
+        private final int fromRow;
+        private final int toRow;
+        private final Band band;
+
+        Bands( int fromRow, int toRow, Band band ) {
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.band = band;
+        }
+
+        @Override
+        protected void compute() {
+            if( toRow - fromRow <= minBandRows ) {
+                band.run(fromRow, toRow);
+                return;
+            }
+            int middle = (fromRow + toRow) >>> 1;
+            invokeAll(new Bands(fromRow, middle, band), new Bands(middle, toRow, band));
+        }
+    }
+
+    private final FilteredImageScaler scaler;
+    private final ForkJoinPool pool;
+    private final int minBandRows;
+
+    /**
+     * Scales with the given scaler's filter, on the common pool.
+     */
+    public BandedImageScaler( FilteredImageScaler scaler ) {
+        this(scaler, ForkJoinPool.commonPool(), DEFAULT_MIN_BAND_ROWS);
+    }
+
+    /**
+     * @param minBandRows - bands aren't split any further than this, as each band costs a little overlap
+     */
+    public BandedImageScaler( FilteredImageScaler scaler, ForkJoinPool pool, int minBandRows ) {
+        this.scaler = scaler;
+        this.pool = pool;
+        this.minBandRows = Math.max(1, minBandRows);
+    }
+
+    public FilteredImageScaler getScaler() {
+        return scaler;
+    }
+
+    @Override
+    public BufferedImage scale( BufferedImage source, int targetWidth, int targetHeight ) {
+        int sourceWidth = source.getWidth();
+        int sourceHeight = source.getHeight();
+        int[] sourcePixels = new int[sourceWidth * sourceHeight];
+        inBands(sourceHeight, (fromRow, toRow) -> FilteredImageScaler.readRows(source, sourcePixels, fromRow, toRow));
+
+        int[] pixels = sourcePixels;
+        int xFactor = FilteredImageScaler.reductionFactor(sourceWidth, targetWidth);
+        int yFactor = FilteredImageScaler.reductionFactor(sourceHeight, targetHeight);
+        if( xFactor > 1 || yFactor > 1 ) {
+            int reducedWidth = FilteredImageScaler.reducedSize(sourceWidth, xFactor);
+            int reducedHeight = FilteredImageScaler.reducedSize(sourceHeight, yFactor);
+            int[] reduced = new int[reducedWidth * reducedHeight];
+            int width = sourceWidth;
+            int height = sourceHeight;
+            inBands(reducedHeight, (fromRow, toRow) -> FilteredImageScaler.reduceRows(sourcePixels, width, height,
+                    xFactor, yFactor, reduced, fromRow, toRow));
+            pixels = reduced;
+            sourceWidth = reducedWidth;
+            sourceHeight = reducedHeight;
+        }
+
+        FilteredImageScaler.Weights horizontal = scaler.weights(sourceWidth, targetWidth);
+        FilteredImageScaler.Weights vertical = scaler.weights(sourceHeight, targetHeight);
+        int[] scaled = new int[targetWidth * targetHeight];
+        int[] filterSource = pixels;
+        int filterSourceWidth = sourceWidth;
+        inBands(targetHeight, (fromRow, toRow) -> scaler.scaleRows(filterSource, filterSourceWidth,
+                horizontal, vertical, scaled, fromRow, toRow));
+        return FilteredImageScaler.toImage(scaled, targetWidth, targetHeight);
+    }
+
+    private void inBands( int rows, Band band ) {
+        pool.invoke(new Bands(0, rows, band));
+    }
+}
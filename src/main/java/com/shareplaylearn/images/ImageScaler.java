@@ -0,0 +1,14 @@
+package com.shareplaylearn.images;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Resizes decoded images. Implementations must be thread-safe, as one scaler is shared by every upload.
+ */
+public interface ImageScaler {
+    /**
+     * @return a new TYPE_INT_RGB image of the given size (any transparency is flattened onto black).
+     * The source image is not modified.
+     */
+    BufferedImage scale( BufferedImage source, int targetWidth, int targetHeight );
+}
@@ -0,0 +1,55 @@
+package com.shareplaylearn.images;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+/**
+ * Downscales by repeatedly halving the image with Java2D's bilinear (or bicubic) interpolation,
+ * then making one last step to the target size.
+ * A single bilinear step skips most of the source pixels when shrinking a lot (and aliases),
+ * halving keeps every step within the 2x the interpolation handles well.
+ */
+public class ProgressiveImageScaler
+    implements ImageScaler {
+    private final Object interpolation;
+
+    /**
+     * Uses bilinear interpolation.
+     */
+    public ProgressiveImageScaler() {
+        this(RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    }
+
+    /**
+     * @param interpolation - one of the RenderingHints.VALUE_INTERPOLATION_ values
+     */
+    public ProgressiveImageScaler( Object interpolation ) {
+        this.interpolation = interpolation;
+    }
+
+    @Override
+    public BufferedImage scale( BufferedImage source, int targetWidth, int targetHeight ) {
+        BufferedImage current = source;
+        int width = source.getWidth();
+        int height = source.getHeight();
+        do {
+            width = width / 2 >= targetWidth ? width / 2 : targetWidth;
+            height = height / 2 >= targetHeight ? height / 2 : targetHeight;
+            current = draw(current, width, height);
+        } while( width != targetWidth || height != targetHeight );
+        return current;
+    }
+
+    private BufferedImage draw( BufferedImage image, int width, int height ) {
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+}
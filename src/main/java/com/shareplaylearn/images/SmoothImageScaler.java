@@ -0,0 +1,26 @@
+package com.shareplaylearn.images;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+
+/**
+ * The original scaling path: AWT's area averaging filter (Image.SCALE_SMOOTH), drawn into a new buffer.
+ * Good quality, but slow on large images - kept as the reference the other scalers are measured against.
+ */
+public class SmoothImageScaler
+    implements ImageScaler {
+
+    @Override
+    public BufferedImage scale( BufferedImage source, int targetWidth, int targetHeight ) {
+        Image scaledImage = source.getScaledInstance(targetWidth, targetHeight, Image.SCALE_SMOOTH);
+        BufferedImage scaledImageBuffer = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaledImageBuffer.createGraphics();
+        try {
+            graphics.drawImage(scaledImage, 0, 0, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaledImageBuffer;
+    }
+}
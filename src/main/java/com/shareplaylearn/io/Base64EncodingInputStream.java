@@ -0,0 +1,114 @@
+package com.shareplaylearn.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Base64 encodes (standard alphabet, padded, no line breaks) another stream as it is read,
+ * a chunk at a time, so encoding a large item doesn't need the whole item in memory.
+ */
+public class Base64EncodingInputStream
+    extends InputStream {
+    private static final byte[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+    private static final int RAW_CHUNK_SIZE = 3 * 4096;
+
+    private final InputStream source;
+    private final byte[] raw = new byte[RAW_CHUNK_SIZE];
+    private final byte[] encoded = new byte[RAW_CHUNK_SIZE / 3 * 4];
+    private int encodedPosition = 0;
+    private int encodedLimit = 0;
+    private boolean sourceDone = false;
+
+    public Base64EncodingInputStream( InputStream source ) {
+        this.source = source;
+    }
+
+    /**
+     * @return the number of bytes the encoding of rawLength bytes takes.
+     */
+    public static long encodedLength( long rawLength ) {
+        return ((rawLength + 2) / 3) * 4;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if( encodedPosition == encodedLimit && !fill() ) {
+            return -1;
+        }
+        return encoded[encodedPosition++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if( length == 0 ) {
+            return 0;
+        }
+        if( encodedPosition == encodedLimit && !fill() ) {
+            return -1;
+        }
+        int count = Math.min(length, encodedLimit - encodedPosition);
+        System.arraycopy(encoded, encodedPosition, buffer, offset, count);
+        encodedPosition += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return encodedLimit - encodedPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    /**
+     * Encodes the next chunk. Only the last chunk may hold a length that isn't a multiple of 3,
+     * so we keep reading until the raw buffer is full (or the source runs out).
+     */
+    private boolean fill() throws IOException {
+        if( sourceDone ) {
+            return false;
+        }
+        int rawLength = 0;
+        while( rawLength < raw.length ) {
+            int bytesRead = source.read(raw, rawLength, raw.length - rawLength);
+            if( bytesRead < 0 ) {
+                sourceDone = true;
+                break;
+            }
+            rawLength += bytesRead;
+        }
+        if( rawLength == 0 ) {
+            return false;
+        }
+        encodedLimit = encode(rawLength);
+        encodedPosition = 0;
+        return true;
+    }
+
+    private int encode( int rawLength ) {
+        int out = 0;
+        int in = 0;
+        for( ; in + 3 <= rawLength; in += 3 ) {
+            int bits = (raw[in] & 0xff) << 16 | (raw[in + 1] & 0xff) << 8 | (raw[in + 2] & 0xff);
+            encoded[out++] = ALPHABET[(bits >>> 18) & 0x3f];
+            encoded[out++] = ALPHABET[(bits >>> 12) & 0x3f];
+            encoded[out++] = ALPHABET[(bits >>> 6) & 0x3f];
+            encoded[out++] = ALPHABET[bits & 0x3f];
+        }
+        int remaining = rawLength - in;
+        if( remaining > 0 ) {
+            int bits = (raw[in] & 0xff) << 16;
+            if( remaining == 2 ) {
+                bits |= (raw[in + 1] & 0xff) << 8;
+            }
+            encoded[out++] = ALPHABET[(bits >>> 18) & 0x3f];
+            encoded[out++] = ALPHABET[(bits >>> 12) & 0x3f];
+            encoded[out++] = remaining == 2 ? ALPHABET[(bits >>> 6) & 0x3f] : (byte)'=';
+            encoded[out++] = '=';
+        }
+        return out;
+    }
+}
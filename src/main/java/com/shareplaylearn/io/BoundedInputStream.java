@@ -0,0 +1,59 @@
+package com.shareplaylearn.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads at most a fixed number of bytes from another stream.
+ */
+public class BoundedInputStream
+    extends FilterInputStream {
+    private long remaining;
+
+    public BoundedInputStream( InputStream inputStream, long limit ) {
+        super(inputStream);
+        this.remaining = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if( remaining <= 0 ) {
+            return -1;
+        }
+        int b = super.read();
+        if( b >= 0 ) {
+            remaining--;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if( remaining <= 0 ) {
+            return -1;
+        }
+        int bytesRead = super.read(buffer, offset, (int)Math.min(length, remaining));
+        if( bytesRead > 0 ) {
+            remaining -= bytesRead;
+        }
+        return bytesRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(Math.min(n, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int)Math.min(super.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
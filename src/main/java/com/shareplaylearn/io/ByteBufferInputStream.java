@@ -0,0 +1,60 @@
+package com.shareplaylearn.io;
+
+import com.shareplaylearn.cache.CachedContent;
+
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads cached content, without copying it to the heap first.
+ * Closing the stream closes the content.
+ */
+public class ByteBufferInputStream
+    extends InputStream {
+    private final CachedContent content;
+    private final ByteBuffer buffer;
+
+    public ByteBufferInputStream( CachedContent content ) {
+        this.content = content;
+        this.buffer = content.getBuffer().duplicate();
+    }
+
+    @Override
+    public int read() {
+        if( !buffer.hasRemaining() ) {
+            return -1;
+        }
+        return buffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] target, int offset, int length) {
+        if( length == 0 ) {
+            return 0;
+        }
+        if( !buffer.hasRemaining() ) {
+            return -1;
+        }
+        int bytesRead = Math.min(length, buffer.remaining());
+        buffer.get(target, offset, bytesRead);
+        return bytesRead;
+    }
+
+    @Override
+    public long skip(long n) {
+        int skipped = (int)Math.max(0, Math.min(n, buffer.remaining()));
+        ((Buffer)buffer).position(buffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public void close() {
+        content.close();
+    }
+}
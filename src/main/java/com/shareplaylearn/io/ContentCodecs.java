@@ -0,0 +1,54 @@
+package com.shareplaylearn.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The codecs items can be stored with (recorded in their UploadMetadataFields.CONTENT_CODEC),
+ * named as in HTTP's Content-Encoding, so compressed bytes can be passed straight through to clients that accept them.
+ */
+public class ContentCodecs {
+    public static final String GZIP = "gzip";
+
+    private ContentCodecs() {
+    }
+
+    public static boolean isSupported( String codec ) {
+        return GZIP.equals(codec);
+    }
+
+    /**
+     * @param level - the Deflater compression level (0-9, or Deflater.DEFAULT_COMPRESSION)
+     */
+    public static byte[] gzip( byte[] data, int level ) throws IOException {
+        //text compresses to a fraction of its size, so start small
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+        try( GZIPOutputStream gzipOutputStream = new GZIPOutputStream(compressed, Streams.BUFFER_SIZE) {
+            {
+                def.setLevel(level);
+            }
+        } ) {
+            gzipOutputStream.write(data);
+        }
+        return compressed.toByteArray();
+    }
+
+    public static byte[] gzip( byte[] data ) throws IOException {
+        return gzip(data, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @return a stream of the decoded content, closing it closes the encoded stream.
+     * @throws IOException if the codec isn't supported
+     */
+    public static InputStream decode( InputStream encoded, String codec ) throws IOException {
+        if( GZIP.equals(codec) ) {
+            return new GZIPInputStream(encoded, Streams.BUFFER_SIZE);
+        }
+        throw new IOException("Unsupported content codec: " + codec);
+    }
+}
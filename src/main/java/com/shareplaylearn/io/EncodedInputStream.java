@@ -0,0 +1,25 @@
+package com.shareplaylearn.io;
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+
+/**
+ * An item's bytes, along with the codec they're still encoded with (see ContentCodecs),
+ * so the caller can pass them on as they are (e.g., with a matching Content-Encoding header).
+ */
+public class EncodedInputStream
+    extends FilterInputStream {
+    private final String contentCodec;
+
+    public EncodedInputStream( InputStream inputStream, String contentCodec ) {
+        super(inputStream);
+        this.contentCodec = contentCodec;
+    }
+
+    /**
+     * @return the codec the bytes are encoded with, or null if they're the item's content as is.
+     */
+    public String getContentCodec() {
+        return contentCodec;
+    }
+}
@@ -0,0 +1,82 @@
+package com.shareplaylearn.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Stream helpers that work through a fixed size buffer.
+ */
+public class Streams {
+    public static final int BUFFER_SIZE = 8 * 8192;
+
+    private Streams() {
+    }
+
+    /**
+     * Copies everything left in the input to the output.
+     * Neither stream is closed.
+     * @return the number of bytes copied
+     */
+    public static long copy( InputStream inputStream, OutputStream outputStream ) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long totalBytes = 0;
+        int bytesRead;
+        while( (bytesRead = inputStream.read(buffer)) >= 0 ) {
+            outputStream.write(buffer, 0, bytesRead);
+            totalBytes += bytesRead;
+        }
+        return totalBytes;
+    }
+
+    /**
+     * Fills the whole buffer from the stream.
+     * @throws EOFException if the stream ends first
+     */
+    public static void readFully( InputStream inputStream, byte[] buffer ) throws IOException {
+        int offset = 0;
+        while( offset < buffer.length ) {
+            int bytesRead = inputStream.read(buffer, offset, buffer.length - offset);
+            if( bytesRead < 0 ) {
+                throw new EOFException("Stream ended after " + offset + " of " + buffer.length + " bytes.");
+            }
+            offset += bytesRead;
+        }
+    }
+
+    /**
+     * Reads into the buffer until it's full, or the stream ends.
+     * @return the number of bytes read, less than the buffer's length only if the stream ended
+     */
+    public static int readUpTo( InputStream inputStream, byte[] buffer ) throws IOException {
+        int offset = 0;
+        while( offset < buffer.length ) {
+            int bytesRead = inputStream.read(buffer, offset, buffer.length - offset);
+            if( bytesRead < 0 ) {
+                break;
+            }
+            offset += bytesRead;
+        }
+        return offset;
+    }
+
+    /**
+     * Skips exactly n bytes of the stream (skip() alone may skip fewer).
+     * @throws EOFException if the stream ends first
+     */
+    public static void skipFully( InputStream inputStream, long n ) throws IOException {
+        long remaining = n;
+        while( remaining > 0 ) {
+            long skipped = inputStream.skip(remaining);
+            if( skipped <= 0 ) {
+                //skip() may give up without being at the end, read() tells us for sure
+                if( inputStream.read() < 0 ) {
+                    throw new EOFException("Stream ended after skipping " + (n - remaining) + " of " + n + " bytes.");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.shareplaylearn.models;
+
+/**
+ * What happened to one item in a batch upload.
+ */
+public class AddResult {
+    public enum Status {
+        ADDED,
+        FAILED
+    }
+
+    private final String name;
+    //the content type the item was stored as, null if it wasn't
+    private final String contentType;
+    private final Status status;
+    //null unless the add failed
+    private final String error;
+
+    public AddResult( String name, String contentType, Status status, String error ) {
+        this.name = name;
+        this.contentType = contentType;
+        this.status = status;
+        this.error = error;
+    }
+
+    public static AddResult added( String name, String contentType ) {
+        return new AddResult(name, contentType, Status.ADDED, null);
+    }
+
+    public static AddResult failed( String name, String error ) {
+        return new AddResult(name, null, Status.FAILED, error);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + status + (contentType != null ? " as " + contentType : "")
+                + (error != null ? " (" + error + ")" : "");
+    }
+}
@@ -0,0 +1,41 @@
+package com.shareplaylearn.models;
+
+/**
+ * What happened to one item location in a bulk delete.
+ */
+public class DeleteResult {
+    public enum Status {
+        DELETED,
+        NOT_FOUND,
+        FAILED
+    }
+
+    //the location as it appears in item listings (see UserItem.UserItemLocation.fullPath)
+    private final String location;
+    private final Status status;
+    //null unless the delete failed
+    private final String error;
+
+    public DeleteResult( String location, Status status, String error ) {
+        this.location = location;
+        this.status = status;
+        this.error = error;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return location + ": " + status + (error != null ? " (" + error + ")" : "");
+    }
+}
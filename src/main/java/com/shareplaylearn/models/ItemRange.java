@@ -0,0 +1,47 @@
+package com.shareplaylearn.models;
+
+/**
+ * A slice of an item, as returned by a ranged read.
+ * Carries the total length of the item, so callers can answer with a 206 (partial content)
+ * without a separate metadata request.
+ */
+public class ItemRange {
+    private final long offset;
+    private final long length;
+    private final long totalLength;
+    //null when the range was streamed to the caller instead
+    private final byte[] data;
+
+    public ItemRange( long offset, long length, long totalLength, byte[] data ) {
+        this.offset = offset;
+        this.length = length;
+        this.totalLength = totalLength;
+        this.data = data;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getTotalLength() {
+        return totalLength;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return the value of an HTTP Content-Range header for this range: bytes [first]-[last]/[total]
+     */
+    public String getContentRange() {
+        if( length == 0 ) {
+            return "bytes */" + totalLength;
+        }
+        return "bytes " + offset + "-" + (offset + length - 1) + "/" + totalLength;
+    }
+}
@@ -9,21 +9,35 @@ public class ItemSchema {
      * And represent the context in which this instance of an item should be presented.
      * Something like "mobile" or "crappy_network :D" might be a good addition, though.
      * The Content Types will hopefully grow and grown! We'll see ;)
+     * The resized presentations make up a ladder of widths, so clients can pick the smallest one
+     * that fills the space they have (see UserItem.getLocationForWidth()).
      */
     public enum PresentationType {
-        PREVIEW_PRESENTATION_TYPE("preview"),
-        ORIGINAL_PRESENTATION_TYPE("original"),
-        PREFERRED_PRESENTATION_TYPE("preferred");
+        PREVIEW_PRESENTATION_TYPE("preview", 200),
+        ORIGINAL_PRESENTATION_TYPE("original", 0),
+        PREFERRED_PRESENTATION_TYPE("preferred", 768),
+        SMALL_PRESENTATION_TYPE("small", 400),
+        LARGE_PRESENTATION_TYPE("large", 1536);
         private final String type;
+        private final int width;
 
-        PresentationType(String type ) {
+        PresentationType(String type, int width ) {
             this.type = type;
+            this.width = width;
         }
 
         public String toString() {
             return this.type;
         }
 
+        /**
+         * @return the width (in pixels) images are resized to for this presentation,
+         * or 0 if they're kept as they are.
+         */
+        public int getWidth() {
+            return this.width;
+        }
+
         public static PresentationType fromString( String type ) {
             if( type.equals("preview") ) {
                 return PREVIEW_PRESENTATION_TYPE;
@@ -31,6 +45,10 @@ public class ItemSchema {
                 return ORIGINAL_PRESENTATION_TYPE;
             } else if( type.equals("preferred") ) {
                 return PREFERRED_PRESENTATION_TYPE;
+            } else if( type.equals("small") ) {
+                return SMALL_PRESENTATION_TYPE;
+            } else if( type.equals("large") ) {
+                return LARGE_PRESENTATION_TYPE;
             } else {
                 throw new IllegalArgumentException("Invalid presentation type: " + type);
             }
@@ -41,7 +59,19 @@ public class ItemSchema {
     public static final PresentationType[] PRESENTATION_TYPES = {
             PresentationType.PREVIEW_PRESENTATION_TYPE,
             PresentationType.ORIGINAL_PRESENTATION_TYPE,
-            PresentationType.PREFERRED_PRESENTATION_TYPE
+            PresentationType.PREFERRED_PRESENTATION_TYPE,
+            PresentationType.SMALL_PRESENTATION_TYPE,
+            PresentationType.LARGE_PRESENTATION_TYPE
+    };
+
+    /**
+     * The resized presentations, from narrowest to widest.
+     */
+    public static final PresentationType[] SIZE_LADDER = {
+            PresentationType.PREVIEW_PRESENTATION_TYPE,
+            PresentationType.SMALL_PRESENTATION_TYPE,
+            PresentationType.PREFERRED_PRESENTATION_TYPE,
+            PresentationType.LARGE_PRESENTATION_TYPE
     };
 
     public static final String UNKNOWN_CONTENT_TYPE = "unknown";
@@ -14,4 +14,9 @@ public class UploadMetadataFields {
     public static String TRUE_VALUE = "true";
     public static String FALSE_VALUE = "false";
     public static String CONTENT_TYPE = "type";
+    //set on items that are references to a shared copy of their content (see BlobStore)
+    public static final String CONTENT_HASH = "content_hash";
+    //set on items stored compressed (see ContentCodecs), along with the length of the content before it was
+    public static final String CONTENT_CODEC = "codec";
+    public static final String DECODED_LENGTH = "decoded_length";
 }
\ No newline at end of file
@@ -4,7 +4,11 @@ import com.google.gson.Gson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 /**
  * Created by stu on 6/29/15.
@@ -24,6 +28,10 @@ public class UserItem {
         public String itemName;
     }
 
+    //set (to "true") on items whose derived presentations (preview, etc) are still being made.
+    //Until they're done, only the original is listed (and the preferred location is the original).
+    public static final String PENDING_ATTR = "pending";
+
     public String toString() {
         Gson gson = new Gson();
         return gson.toJson(this);
@@ -32,6 +40,8 @@ public class UserItem {
     private UserItemLocation preferredLocation;
     private UserItemLocation previewLocation;
     private UserItemLocation originalLocation;
+    //width => location, for every resized presentation of the item (preview, small, preferred, large)
+    private TreeMap<Integer,UserItemLocation> sizes;
     private String type;
     private HashMap<String,String> attr;
     //keep it static so Gson doesn't bother with it
@@ -41,6 +51,7 @@ public class UserItem {
         this.previewLocation = null;
         this.originalLocation = null;
         this.preferredLocation = null;
+        this.sizes = new TreeMap<>();
         this.type = type;
         this.attr = new HashMap<>();
         this.log = LoggerFactory.getLogger(UserItem.class);
@@ -52,6 +63,15 @@ public class UserItem {
         this.previewLocation = previewLocation;
         this.originalLocation = originalLocation;
         this.preferredLocation = preferredLocation;
+        this.sizes = new TreeMap<>();
+        if( previewLocation != null ) {
+            this.sizes.put(ItemSchema.PresentationType.PREVIEW_PRESENTATION_TYPE.getWidth(), previewLocation);
+        }
+        //the preferred location may just be the original, which isn't one of the resized presentations
+        if( preferredLocation != null && (originalLocation == null
+                || !preferredLocation.fullPath.equals(originalLocation.fullPath)) ) {
+            this.sizes.put(ItemSchema.PresentationType.PREFERRED_PRESENTATION_TYPE.getWidth(), preferredLocation);
+        }
         this.type = type;
         this.attr = new HashMap<>();
         this.log = LoggerFactory.getLogger(UserItem.class);
@@ -62,6 +82,9 @@ public class UserItem {
     }
 
     public UserItem setLocation(ItemSchema.PresentationType presentationType, UserItemLocation location ) {
+        if( presentationType.getWidth() > 0 ) {
+            this.sizes.put(presentationType.getWidth(), location);
+        }
         if( presentationType.equals(ItemSchema.PresentationType.PREVIEW_PRESENTATION_TYPE) ) {
             return this.setPreviewLocation(location);
         } else if( presentationType.equals(ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE) ) {
@@ -71,6 +94,9 @@ public class UserItem {
             return this.setOriginalLocation(location);
         } else if( presentationType.equals(ItemSchema.PresentationType.PREFERRED_PRESENTATION_TYPE) ) {
             return this.setPreferredLocation(location);
+        } else if( presentationType.equals(ItemSchema.PresentationType.SMALL_PRESENTATION_TYPE)
+                || presentationType.equals(ItemSchema.PresentationType.LARGE_PRESENTATION_TYPE) ) {
+            return this;
         } else {
             String message = "Tried to set location with an unrecognized presentation type";
             log.warn( message );
@@ -78,6 +104,41 @@ public class UserItem {
         }
     }
 
+    /**
+     * @return the location stored for the given presentation, or null if the item doesn't have one.
+     * (Unlike getPreferredLocation(), this doesn't fall back to the original.)
+     */
+    public UserItemLocation getLocation(ItemSchema.PresentationType presentationType ) {
+        if( presentationType.equals(ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE) ) {
+            return this.originalLocation;
+        }
+        return this.sizes.get(presentationType.getWidth());
+    }
+
+    /**
+     * @return width => location, for each resized presentation of the item, narrowest first.
+     */
+    public SortedMap<Integer,UserItemLocation> getSizes() {
+        return Collections.unmodifiableSortedMap(this.sizes);
+    }
+
+    /**
+     * Picks the smallest presentation that's at least the given width, so clients don't download
+     * more than they can show. If none is that wide, the image is smaller than the width asked for,
+     * and the original (or, failing that, the widest presentation) is returned.
+     * @return null if the item has no locations at all
+     */
+    public UserItemLocation getLocationForWidth( int width ) {
+        Map.Entry<Integer,UserItemLocation> size = this.sizes.ceilingEntry(width);
+        if( size != null ) {
+            return size.getValue();
+        }
+        if( this.originalLocation != null ) {
+            return this.originalLocation;
+        }
+        return this.sizes.isEmpty() ? null : this.sizes.lastEntry().getValue();
+    }
+
     private UserItem setPreviewLocation(UserItemLocation previewLocation) {
         this.previewLocation = previewLocation;
         return this;
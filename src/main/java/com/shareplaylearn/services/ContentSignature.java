@@ -0,0 +1,80 @@
+package com.shareplaylearn.services;
+
+import java.util.Arrays;
+
+/**
+ * The "magic number" that identifies a file format: a fixed run of bytes at a fixed offset near the start
+ * of the file (e.g., a PNG always starts with 0x89 'P' 'N' 'G').
+ * Plugins declare the signatures they handle, so the UploadPreprocessor can pick the plugin for an upload
+ * from its first few bytes, and tell the plugin what it found.
+ */
+public class ContentSignature {
+    private final String formatName;
+    private final String mimeType;
+    private final int offset;
+    private final byte[] magic;
+
+    /**
+     * @param formatName - the format's name, as the plugin knows it (e.g., the ImageIO format name)
+     */
+    public ContentSignature( String formatName, String mimeType, int offset, byte... magic ) {
+        if( magic.length == 0 ) {
+            throw new IllegalArgumentException("Empty signature for format: " + formatName);
+        }
+        this.formatName = formatName;
+        this.mimeType = mimeType;
+        this.offset = offset;
+        this.magic = magic.clone();
+    }
+
+    /**
+     * For signatures that are (mostly) text, e.g., "GIF89a".
+     */
+    public static ContentSignature ascii( String formatName, String mimeType, int offset, String magic ) {
+        byte[] bytes = new byte[magic.length()];
+        for( int i = 0; i < bytes.length; ++i ) {
+            bytes[i] = (byte)magic.charAt(i);
+        }
+        return new ContentSignature(formatName, mimeType, offset, bytes);
+    }
+
+    public String getFormatName() {
+        return formatName;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the first byte of the signature, which the UploadPreprocessor indexes signatures by.
+     */
+    public byte getFirstByte() {
+        return magic[0];
+    }
+
+    public int getLength() {
+        return magic.length;
+    }
+
+    public boolean matches( byte[] fileBuffer ) {
+        if( fileBuffer.length < offset + magic.length ) {
+            return false;
+        }
+        for( int i = 0; i < magic.length; ++i ) {
+            if( fileBuffer[offset + i] != magic[i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return formatName + " " + Arrays.toString(magic) + (offset > 0 ? " at " + offset : "");
+    }
+}
@@ -0,0 +1,168 @@
+package com.shareplaylearn.services;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.stream.ImageInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps ImageReaders and ImageWriters around for reuse, rather than having ImageIO
+ * create (and us leak) new ones for every image.
+ *
+ * Readers and writers aren't thread-safe, so each is lent to one thread at a time: borrow one,
+ * and give it back when you're done, even on failure. Returned instances are reset before reuse,
+ * and disposed of (freeing any native resources) once the pool for their format is full.
+ */
+public class ImageCodecPool {
+    public static final int DEFAULT_MAX_IDLE_PER_FORMAT = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The idle instances for one reader or writer provider.
+     */
+    private static class Idle<T> {
+        final ConcurrentLinkedDeque<T> instances = new ConcurrentLinkedDeque<>();
+        final AtomicInteger size = new AtomicInteger();
+    }
+
+    private final int maxIdlePerFormat;
+    private final Map<String,ImageReaderSpi> readerProviders = new ConcurrentHashMap<>();
+    private final Map<ImageReaderSpi,Idle<ImageReader>> readers = new ConcurrentHashMap<>();
+    private final Map<String,ImageWriterSpi> writerProviders = new ConcurrentHashMap<>();
+    private final Map<ImageWriterSpi,Idle<ImageWriter>> writers = new ConcurrentHashMap<>();
+
+    public ImageCodecPool() {
+        this(DEFAULT_MAX_IDLE_PER_FORMAT);
+    }
+
+    public ImageCodecPool( int maxIdlePerFormat ) {
+        this.maxIdlePerFormat = maxIdlePerFormat;
+    }
+
+    /**
+     * Finds the reader provider for the image in the stream, the same way ImageIO does,
+     * but without creating a reader for every provider that's asked.
+     * The stream is left where it was.
+     * @return the provider, or null if no registered reader can decode the stream.
+     */
+    public ImageReaderSpi findReaderProvider( ImageInputStream imageInputStream ) throws IOException {
+        Iterator<ImageReaderSpi> providers = IIORegistry.getDefaultInstance()
+                .getServiceProviders(ImageReaderSpi.class, true);
+        while( providers.hasNext() ) {
+            ImageReaderSpi provider = providers.next();
+            if( provider.canDecodeInput(imageInputStream) ) {
+                return provider;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the reader provider for the given format name (e.g., "png"), or null if there is none.
+     */
+    public ImageReaderSpi findReaderProvider( String formatName ) {
+        ImageReaderSpi cached = readerProviders.get(formatName);
+        if( cached != null ) {
+            return cached;
+        }
+        Iterator<ImageReaderSpi> providers = IIORegistry.getDefaultInstance()
+                .getServiceProviders(ImageReaderSpi.class, true);
+        while( providers.hasNext() ) {
+            ImageReaderSpi provider = providers.next();
+            for( String name : provider.getFormatNames() ) {
+                if( name.equalsIgnoreCase(formatName) ) {
+                    readerProviders.put(formatName, provider);
+                    return provider;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return a reader from the given provider, with no input set.
+     */
+    public ImageReader borrowReader( ImageReaderSpi provider ) throws IOException {
+        ImageReader reader = poll(readers.get(provider));
+        return reader != null ? reader : provider.createReaderInstance();
+    }
+
+    public void returnReader( ImageReader reader ) {
+        reader.reset();
+        Idle<ImageReader> idle = readers.computeIfAbsent(reader.getOriginatingProvider(), provider -> new Idle<>());
+        if( !offer(idle, reader) ) {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * @return a writer for the given mime type (e.g., image/jpeg), with no output set.
+     */
+    public ImageWriter borrowWriter( String mimeType ) throws IOException {
+        ImageWriterSpi provider = writerProviders.get(mimeType);
+        if( provider == null ) {
+            Iterator<ImageWriter> available = ImageIO.getImageWritersByMIMEType(mimeType);
+            if( available == null || !available.hasNext() ) {
+                throw new IOException("Error retrieving image writer, no writers returned for: " + mimeType);
+            }
+            //this writer is as good as any other, so use it rather than throw it away
+            ImageWriter writer = available.next();
+            writerProviders.putIfAbsent(mimeType, writer.getOriginatingProvider());
+            return writer;
+        }
+        ImageWriter writer = poll(writers.get(provider));
+        return writer != null ? writer : provider.createWriterInstance();
+    }
+
+    public void returnWriter( ImageWriter writer ) {
+        writer.reset();
+        Idle<ImageWriter> idle = writers.computeIfAbsent(writer.getOriginatingProvider(), provider -> new Idle<>());
+        if( !offer(idle, writer) ) {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Disposes of every idle reader and writer. Borrowed ones are disposed of as they're returned, if the pool is full.
+     */
+    public void clear() {
+        for( Idle<ImageReader> idle : readers.values() ) {
+            for( ImageReader reader = poll(idle); reader != null; reader = poll(idle) ) {
+                reader.dispose();
+            }
+        }
+        for( Idle<ImageWriter> idle : writers.values() ) {
+            for( ImageWriter writer = poll(idle); writer != null; writer = poll(idle) ) {
+                writer.dispose();
+            }
+        }
+    }
+
+    private static <T> T poll( Idle<T> idle ) {
+        if( idle == null ) {
+            return null;
+        }
+        T instance = idle.instances.pollFirst();
+        if( instance != null ) {
+            idle.size.decrementAndGet();
+        }
+        return instance;
+    }
+
+    private <T> boolean offer( Idle<T> idle, T instance ) {
+        if( idle.size.incrementAndGet() > maxIdlePerFormat ) {
+            idle.size.decrementAndGet();
+            return false;
+        }
+        idle.instances.offerFirst(instance);
+        return true;
+    }
+}
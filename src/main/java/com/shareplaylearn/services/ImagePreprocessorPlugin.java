@@ -1,58 +1,104 @@
 package com.shareplaylearn.services;
 
 import com.shareplaylearn.exceptions.Exceptions;
+import com.shareplaylearn.images.BandedImageScaler;
+import com.shareplaylearn.images.FilteredImageScaler;
+import com.shareplaylearn.images.ImageScaler;
 import com.shareplaylearn.models.ItemSchema;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
+import javax.imageio.spi.ImageReaderSpi;
 import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.MemoryCacheImageOutputStream;
-import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * Created by stu on 6/10/15.
+ * Resizes uploaded images to each width on a ladder of presentations (see setSizeLadder()):
+ * a preview always, and the wider rungs for images wider than the rung.
+ * The image is decoded once, subsampled as it's decoded to about the resolution of the widest rung
+ * (see decode()), and each rung is scaled down from the one above it, rather than from the full image.
+ * The plugin keeps no per-upload state, so one instance can be shared by every upload;
+ * readers and writers are borrowed from an ImageCodecPool, and each rung is encoded on the cpu pool
+ * (see WorkerPools) while the next one is scaled.
+ * Presentations are encoded at the image quality, unless they're given a byte budget
+ * (see setByteBudget()), in which case the quality is lowered as far as needed to fit it.
  */
 public class ImagePreprocessorPlugin
     implements UploadPreprocessorPlugin {
 
-    public static final int PREVIEW_WIDTH = 200;
-    public static final int RESIZE_LIMIT = 768;
-    public float imageQuality;
-    private String preferredFileExtension;
-    private String previewFileExtension;
-    //set when we calculate a preview
-    private int lastPreviewHeight;
-    //always set when we adjust the height,
-    //just used for the methods to talk internally
-    private int lastHeight;
+    public static final int PREVIEW_WIDTH = ItemSchema.PresentationType.PREVIEW_PRESENTATION_TYPE.getWidth();
+    public static final int RESIZE_LIMIT = ItemSchema.PresentationType.PREFERRED_PRESENTATION_TYPE.getWidth();
+    public static final int DEFAULT_DECODE_OVERSAMPLING = 1;
+    public static final long DEFAULT_BANDED_SCALING_THRESHOLD = 2000000;
+    public static final int DEFAULT_MAX_BUDGET_ENCODES = 6;
+    public static final float DEFAULT_MIN_BUDGET_QUALITY = 0.1f;
     private static final String encodeMimeType = "image/jpeg";
+    private static final String encodeFileExtension = "jpg";
+    private static final ImageCodecPool sharedCodecPool = new ImageCodecPool();
+    //the formats the JDK's ImageIO readers decode (the plugin only claims those it finds a reader for)
+    private static final List<ContentSignature> IMAGE_SIGNATURES = Arrays.asList(
+            new ContentSignature("jpeg", "image/jpeg", 0, (byte)0xff, (byte)0xd8, (byte)0xff),
+            new ContentSignature("png", "image/png", 0, (byte)0x89, (byte)'P', (byte)'N', (byte)'G',
+                    (byte)0x0d, (byte)0x0a, (byte)0x1a, (byte)0x0a),
+            ContentSignature.ascii("gif", "image/gif", 0, "GIF87a"),
+            ContentSignature.ascii("gif", "image/gif", 0, "GIF89a"),
+            ContentSignature.ascii("bmp", "image/bmp", 0, "BM"),
+            new ContentSignature("tiff", "image/tiff", 0, (byte)'I', (byte)'I', (byte)42, (byte)0),
+            new ContentSignature("tiff", "image/tiff", 0, (byte)'M', (byte)'M', (byte)0, (byte)42)
+    );
+    private volatile float imageQuality;
+    private volatile ImageScaler imageScaler = new FilteredImageScaler();
+    private volatile int decodeOversampling = DEFAULT_DECODE_OVERSAMPLING;
+    private volatile long bandedScalingThreshold = DEFAULT_BANDED_SCALING_THRESHOLD;
+    private volatile boolean probesUnsigned = false;
+    private volatile ItemSchema.PresentationType[] sizeLadder = ItemSchema.SIZE_LADDER.clone();
+    //copied on write, so encodes in progress see one consistent set of budgets
+    private volatile Map<ItemSchema.PresentationType,Integer> byteBudgets =
+            new EnumMap<>(ItemSchema.PresentationType.class);
+    private volatile int maxBudgetEncodes = DEFAULT_MAX_BUDGET_ENCODES;
+    private volatile float minBudgetQuality = DEFAULT_MIN_BUDGET_QUALITY;
+    private final ImageCodecPool codecPool;
     private final Logger log = LoggerFactory.getLogger(ImagePreprocessorPlugin.class);
+    private final List<ContentSignature> signatures;
 
     public ImagePreprocessorPlugin() {
-        this.lastPreviewHeight = -1;
-        this.lastHeight = -1;
-        this.preferredFileExtension = "";
-        this.previewFileExtension = "";
-        this.imageQuality = 0.7f;
+        this(0.7f);
     }
 
     public ImagePreprocessorPlugin( float imageQuality ) {
-        this.lastPreviewHeight = -1;
-        this.lastHeight = -1;
-        this.preferredFileExtension = "";
-        this.previewFileExtension = "";
+        this(imageQuality, sharedCodecPool);
+    }
+
+    public ImagePreprocessorPlugin( float imageQuality, ImageCodecPool codecPool ) {
         this.imageQuality = imageQuality;
+        this.codecPool = codecPool;
+        List<ContentSignature> readable = new ArrayList<>();
+        for( ContentSignature signature : IMAGE_SIGNATURES ) {
+            if( codecPool.findReaderProvider(signature.getFormatName()) != null ) {
+                readable.add(signature);
+            }
+        }
+        this.signatures = Collections.unmodifiableList(readable);
     }
 
     public float getImageQuality() {
@@ -64,14 +110,154 @@ public class ImagePreprocessorPlugin
         return this;
     }
 
-    @Override
-    public String getPreferredFileExtension() {
-        return this.preferredFileExtension;
+    public int getDecodeOversampling() {
+        return decodeOversampling;
+    }
+
+    /**
+     * Sets how many times wider than the largest presentation we make a decoded image must be, at least.
+     * Large images are subsampled as they're decoded, down to this. Subsampling skips pixels, so a little
+     * headroom lets the scaler smooth over the gaps, but the widest rung of the default ladder is wide enough
+     * that any headroom means decoding most photos in full. Use Integer.MAX_VALUE to always decode in full.
+     */
+    public ImagePreprocessorPlugin setDecodeOversampling(int decodeOversampling) {
+        this.decodeOversampling = Math.max(1, decodeOversampling);
+        return this;
+    }
+
+    public long getBandedScalingThreshold() {
+        return bandedScalingThreshold;
+    }
+
+    /**
+     * Decoded images with at least this many pixels are scaled in parallel bands (see BandedImageScaler),
+     * when the image scaler is a FilteredImageScaler. Use Long.MAX_VALUE to always scale on the calling thread.
+     */
+    public ImagePreprocessorPlugin setBandedScalingThreshold(long bandedScalingThreshold) {
+        this.bandedScalingThreshold = bandedScalingThreshold;
+        return this;
+    }
+
+    /**
+     * @return the most bytes the given presentation should be encoded in, or 0 if it has no budget.
+     */
+    public int getByteBudget(ItemSchema.PresentationType presentationType) {
+        Integer byteBudget = byteBudgets.get(presentationType);
+        return byteBudget == null ? 0 : byteBudget;
+    }
+
+    /**
+     * Caps the encoded size of a resized presentation (e.g., previews, so a listing page costs about the same
+     * however busy the photos on it are). The image quality is still the most we encode at,
+     * but when that's over the budget we search for the highest quality that fits (see setMaxBudgetEncodes()).
+     * @param maxBytes - the budget, or 0 to always encode at the image quality
+     */
+    public synchronized ImagePreprocessorPlugin setByteBudget(ItemSchema.PresentationType presentationType, int maxBytes) {
+        if( presentationType.getWidth() <= 0 ) {
+            throw new IllegalArgumentException("Presentation type: " + presentationType + " isn't a resized presentation.");
+        }
+        Map<ItemSchema.PresentationType,Integer> updated = new EnumMap<>(ItemSchema.PresentationType.class);
+        updated.putAll(byteBudgets);
+        if( maxBytes > 0 ) {
+            updated.put(presentationType, maxBytes);
+        } else {
+            updated.remove(presentationType);
+        }
+        this.byteBudgets = updated;
+        return this;
+    }
+
+    public int getMaxBudgetEncodes() {
+        return maxBudgetEncodes;
+    }
+
+    /**
+     * Sets the most times a presentation is encoded to fit its byte budget, counting the first try,
+     * at the image quality. The search halves the range of qualities with each encode, so the default
+     * gets within a few percent of the best quality that fits.
+     */
+    public ImagePreprocessorPlugin setMaxBudgetEncodes(int maxBudgetEncodes) {
+        this.maxBudgetEncodes = Math.max(1, maxBudgetEncodes);
+        return this;
+    }
+
+    public float getMinBudgetQuality() {
+        return minBudgetQuality;
+    }
+
+    /**
+     * Sets the lowest quality we'll go to, to fit a byte budget. If even that's over the budget,
+     * the presentation is stored over budget, rather than as mush.
+     */
+    public ImagePreprocessorPlugin setMinBudgetQuality(float minBudgetQuality) {
+        this.minBudgetQuality = minBudgetQuality;
+        return this;
+    }
+
+    public List<ItemSchema.PresentationType> getSizeLadder() {
+        return Collections.unmodifiableList(Arrays.asList(sizeLadder));
+    }
+
+    /**
+     * Sets which resized presentations are made, by default every one in ItemSchema.SIZE_LADDER.
+     * The preview is always made, whether it's listed or not.
+     */
+    public ImagePreprocessorPlugin setSizeLadder(ItemSchema.PresentationType... sizeLadder) {
+        List<ItemSchema.PresentationType> rungs = new ArrayList<>();
+        rungs.add(ItemSchema.PresentationType.PREVIEW_PRESENTATION_TYPE);
+        for( ItemSchema.PresentationType rung : sizeLadder ) {
+            if( rung.getWidth() <= 0 ) {
+                throw new IllegalArgumentException("Presentation type: " + rung + " isn't a resized presentation.");
+            }
+            if( !rungs.contains(rung) ) {
+                rungs.add(rung);
+            }
+        }
+        rungs.sort( (a, b) -> Integer.compare(a.getWidth(), b.getWidth()) );
+        this.sizeLadder = rungs.toArray(new ItemSchema.PresentationType[rungs.size()]);
+        return this;
+    }
+
+    /**
+     * @return the rungs of the ladder to make for an image of the given width, widest first.
+     */
+    private static List<ItemSchema.PresentationType> rungsFor( ItemSchema.PresentationType[] sizeLadder, int width ) {
+        List<ItemSchema.PresentationType> rungs = new ArrayList<>();
+        for( int i = sizeLadder.length - 1; i >= 0; --i ) {
+            ItemSchema.PresentationType rung = sizeLadder[i];
+            if( width > rung.getWidth() || rung == ItemSchema.PresentationType.PREVIEW_PRESENTATION_TYPE ) {
+                rungs.add(rung);
+            }
+        }
+        return rungs;
+    }
+
+    public ImageScaler getImageScaler() {
+        return imageScaler;
+    }
+
+    /**
+     * Sets how presentations are resized, by default a FilteredImageScaler with a bicubic filter.
+     * (A SmoothImageScaler gives the results of the original, much slower, resizing.)
+     */
+    public ImagePreprocessorPlugin setImageScaler(ImageScaler imageScaler) {
+        this.imageScaler = imageScaler;
+        return this;
     }
 
     @Override
-    public String getPreviewFileExtension() {
-        return this.previewFileExtension;
+    public boolean probesUnsigned() {
+        return probesUnsigned;
+    }
+
+    /**
+     * Whether to also be asked about uploads that match none of the signatures, to find formats
+     * with no magic number (e.g., WBMP). That asks every installed ImageIO reader about every upload
+     * of unknown content, so it's off by default.
+     */
+    public ImagePreprocessorPlugin setProbesUnsigned(boolean probesUnsigned) {
+        this.probesUnsigned = probesUnsigned;
+        return this;
     }
 
     @Override
@@ -80,9 +266,14 @@ public class ImagePreprocessorPlugin
     }
 
     @Override
-    public synchronized boolean canProcess(byte[] fileBuffer) {
-        try {
-            return ImageIO.getImageReaders(toImageInputStream(fileBuffer)).hasNext();
+    public List<ContentSignature> getSignatures() {
+        return signatures;
+    }
+
+    @Override
+    public boolean canProcess(byte[] fileBuffer) {
+        try( ImageInputStream imageInputStream = toImageInputStream(fileBuffer) ) {
+            return codecPool.findReaderProvider(imageInputStream) != null;
         } catch (IOException e) {
             log.info("Error attempting to retrieve image readers: " + e.getMessage());
             log.debug(Exceptions.asString(e));
@@ -90,96 +281,201 @@ public class ImagePreprocessorPlugin
         }
     }
 
-    private synchronized BufferedImage getBufferedImage(byte[] fileBuffer) throws IOException {
-        return ImageIO.read(this.toImageInputStream(fileBuffer));
+    /**
+     * A decoded image, which may have been subsampled, along with the dimensions of the original.
+     */
+    static class DecodedImage {
+        final BufferedImage image;
+        final int width;
+        final int height;
+
+        DecodedImage( BufferedImage image, int width, int height ) {
+            this.image = image;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * Reads the dimensions from the image header, then decodes only every Nth pixel of every Nth row,
+     * keeping at least decodeOversampling times the pixels of the widest rung of the ladder we'll make
+     * from it (see setDecodeOversampling()). For a big photo, that's a fraction of the memory and time
+     * of decoding the whole thing, just to throw most of it away when scaling down.
+     * @param signature - the format, if the upload preprocessor already matched it, otherwise the readers are asked.
+     */
+    DecodedImage decode(byte[] fileBuffer, ContentSignature signature) throws IOException {
+        return decode(fileBuffer, signature, sizeLadder);
+    }
+
+    private DecodedImage decode(byte[] fileBuffer, ContentSignature signature,
+                                ItemSchema.PresentationType[] sizeLadder) throws IOException {
+        try( ImageInputStream imageInputStream = toImageInputStream(fileBuffer) ) {
+            ImageReaderSpi readerProvider = signature != null ? codecPool.findReaderProvider(signature.getFormatName())
+                    : codecPool.findReaderProvider(imageInputStream);
+            if( readerProvider == null ) {
+                throw new IOException("Error retrieving image reader, no readers can decode the upload.");
+            }
+            ImageReader imageReader = codecPool.borrowReader(readerProvider);
+            try {
+                imageReader.setInput(imageInputStream, true, true);
+                int width = imageReader.getWidth(0);
+                int height = imageReader.getHeight(0);
+                int largestWidth = rungsFor(sizeLadder, width).get(0).getWidth();
+                int subsampling = (int)Math.max(1, width / ((long)largestWidth * decodeOversampling));
+                ImageReadParam readParam = imageReader.getDefaultReadParam();
+                if( subsampling > 1 ) {
+                    readParam.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                    log.debug("Decoding " + width + "x" + height + " image, subsampled by: " + subsampling);
+                }
+                return new DecodedImage(imageReader.read(0, readParam), width, height);
+            } finally {
+                codecPool.returnReader(imageReader);
+            }
+        }
     }
 
-    private synchronized ImageInputStream toImageInputStream( byte[] fileBuffer ) throws IOException {
+    private ImageInputStream toImageInputStream( byte[] fileBuffer ) throws IOException {
         ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(fileBuffer);
         return ImageIO.createImageInputStream(byteArrayInputStream);
     }
 
     @Override
-    public Map<ItemSchema.PresentationType, byte[]> process(byte[] fileBuffer) {
-        HashMap<ItemSchema.PresentationType, byte[]> uploadList = new HashMap<>();
+    public ProcessedUpload process(byte[] fileBuffer) {
+        return process(fileBuffer, null);
+    }
 
-        uploadList.put(ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, fileBuffer);
+    @Override
+    public ProcessedUpload process(byte[] fileBuffer, ContentSignature signature) {
+        ProcessedUpload upload = new ProcessedUpload(getContentType());
 
-        int originalWidth = -1;
-        BufferedImage bufferedImage = null;
+        //read once, so a concurrent setSizeLadder() can't change the ladder between decoding and scaling
+        ItemSchema.PresentationType[] sizeLadder = this.sizeLadder;
+        DecodedImage decodedImage;
         try {
-            bufferedImage = this.getBufferedImage(fileBuffer);
-            originalWidth = bufferedImage.getWidth();
-            byte[] previewBuffer = scaleImageToWidth(bufferedImage, PREVIEW_WIDTH);
-            this.previewFileExtension = "jpg";
-            uploadList.put(ItemSchema.PresentationType.PREVIEW_PRESENTATION_TYPE, previewBuffer);
-            this.lastPreviewHeight = this.lastHeight;
+            decodedImage = this.decode(fileBuffer, signature, sizeLadder);
         } catch( IOException e ) {
             log.error(Exceptions.asString(e));
+            return upload.put(ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE,
+                    new ProcessedUpload.Presentation(fileBuffer));
+        }
+        upload.put(ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE,
+                new ProcessedUpload.Presentation(fileBuffer, "", decodedImage.width, decodedImage.height));
+
+        Map<ItemSchema.PresentationType,Integer> byteBudgets = this.byteBudgets;
+        Map<ItemSchema.PresentationType,FutureTask<ProcessedUpload.Presentation>> encodings = new LinkedHashMap<>();
+        BufferedImage source = decodedImage.image;
+        for( ItemSchema.PresentationType rung : rungsFor(sizeLadder, decodedImage.width) ) {
+            int targetWidth = rung.getWidth();
+            int targetHeight = scaledHeight(decodedImage, targetWidth);
+            BufferedImage scaled = scale(source, targetWidth, targetHeight);
+            Integer byteBudget = byteBudgets.get(rung);
+            FutureTask<ProcessedUpload.Presentation> encoding = new FutureTask<>( () ->
+                    new ProcessedUpload.Presentation(byteBudget == null ? encode(scaled, imageQuality)
+                            : encodeWithinBudget(scaled, byteBudget), encodeFileExtension, targetWidth, targetHeight) );
+            WorkerPools.cpu().execute(encoding);
+            encodings.put(rung, encoding);
+            //the next (narrower) rung is scaled from this one
+            source = scaled;
         }
 
-        if( bufferedImage != null && originalWidth > 0
-                && originalWidth > RESIZE_LIMIT ) {
+        for( Map.Entry<ItemSchema.PresentationType,FutureTask<ProcessedUpload.Presentation>> encoding
+                : encodings.entrySet() ) {
+            //if the pool hasn't started it yet, do it ourselves (this does nothing if it has),
+            //so we never wait on the queue - or deadlock, when we're called from a pool thread.
+            encoding.getValue().run();
             try {
-                byte[] modifiedBuffer = scaleImageToWidth(bufferedImage, RESIZE_LIMIT);
-                uploadList.put(ItemSchema.PresentationType.PREFERRED_PRESENTATION_TYPE,modifiedBuffer);
-                this.preferredFileExtension = "jpg";
-            } catch (IOException e) {
-                e.printStackTrace();
+                upload.put(encoding.getKey(), encoding.getValue().get());
+            } catch (ExecutionException e) {
+                log.error(Exceptions.asString(e.getCause()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.error("Interrupted making the " + encoding.getKey() + " presentation.");
+                break;
             }
         }
-        return uploadList;
+        return upload;
     }
 
-    private byte[] scaleImageToWidth(BufferedImage bufferedImage, int targetWidth) throws IOException {
-        //first, ensure we have a jpg writer
-        Iterator<ImageWriter> writers;
-        ImageWriter imageWriter;
-        if( (writers = ImageIO.getImageWritersByMIMEType(encodeMimeType)) != null
-                && writers.hasNext()) {
-            imageWriter = writers.next();
-        } else {
-            throw new IOException("Error retrieving image writer, no writers returned.");
-        }
-
-        //next, calculate the height
-        //using the ratio from the target width && existing width.
-        double scaleRatio = (double)targetWidth / (double)bufferedImage.getWidth();
-        int newHeight = (int)(scaleRatio*bufferedImage.getHeight());
-        this.lastHeight = newHeight;
+    /**
+     * Calculates the height using the ratio from the target width && original width
+     * (the decoded image may have been subsampled, and rounded off a little).
+     */
+    private int scaledHeight(DecodedImage decodedImage, int targetWidth) {
+        double scaleRatio = (double)targetWidth / (double)decodedImage.width;
+        int newHeight = Math.max(1, (int)(scaleRatio*decodedImage.height));
 
         log.debug("Scaled image ratio: " + scaleRatio);
         log.debug("Target width: " + targetWidth);
-        log.debug("Original height: " + bufferedImage.getHeight());
-        log.debug("original width: " + bufferedImage.getWidth());
+        log.debug("Original height: " + decodedImage.height);
+        log.debug("original width: " + decodedImage.width);
         log.debug("Scaled image height: " + newHeight);
+        return newHeight;
+    }
 
-        //draw our original image, and scale it, to a buffer.
-        Image scaledImage = bufferedImage.getScaledInstance(targetWidth, newHeight, BufferedImage.SCALE_SMOOTH);
-        BufferedImage scaledImageBuffer = new BufferedImage(targetWidth, newHeight, BufferedImage.TYPE_INT_RGB);
-        scaledImageBuffer.createGraphics().drawImage(scaledImage, 0, 0, null);
-
-        //wrap the scaled image buffer in something an image writer will accept.
-        IIOImage scaledImageContainer = new IIOImage(scaledImageBuffer, null, null);
-
-        //set up our encoding parameters (jpg compression quality)
-        ImageWriteParam imageParams = imageWriter.getDefaultWriteParam();
-        imageParams.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-        imageParams.setCompressionQuality(imageQuality);
-
-        //prep the image writer with an appropriate output buffer
-        ByteArrayOutputStream previewOutputStream = new ByteArrayOutputStream();
-        MemoryCacheImageOutputStream memoryCacheImageInputStream =
-                new MemoryCacheImageOutputStream(previewOutputStream);
-        imageWriter.setOutput(memoryCacheImageInputStream);
+    private BufferedImage scale(BufferedImage image, int targetWidth, int targetHeight) {
+        ImageScaler scaler = imageScaler;
+        if( scaler instanceof FilteredImageScaler
+                && (long)image.getWidth() * image.getHeight() >= bandedScalingThreshold ) {
+            scaler = new BandedImageScaler((FilteredImageScaler)scaler);
+        }
+        return scaler.scale(image, targetWidth, targetHeight);
+    }
 
-        imageWriter.write(scaledImageContainer);
+    /**
+     * Encodes at the image quality if that fits in the budget. Otherwise, tries the lowest quality we'll go to,
+     * and if that fits, binary searches between the two for the highest quality that does,
+     * for as many encodes as we're allowed.
+     * @return the best encoding that fits, or the smallest one we made if none does.
+     */
+    byte[] encodeWithinBudget( BufferedImage image, int byteBudget ) throws IOException {
+        float maxQuality = imageQuality;
+        float minQuality = Math.min(minBudgetQuality, maxQuality);
+        int encodesLeft = maxBudgetEncodes;
 
-        return previewOutputStream.toByteArray();
+        byte[] encoded = encode(image, maxQuality);
+        encodesLeft--;
+        if( encoded.length <= byteBudget || encodesLeft == 0 || minQuality >= maxQuality ) {
+            return encoded;
+        }
+        byte[] best = encode(image, minQuality);
+        encodesLeft--;
+        if( best.length > byteBudget ) {
+            log.debug("Image is over its budget of " + byteBudget + " bytes even at quality: " + minQuality);
+            return best;
+        }
+        //invariant: minQuality fits (best holds it), maxQuality doesn't
+        float bestQuality = minQuality;
+        for( ; encodesLeft > 0; --encodesLeft ) {
+            float quality = (minQuality + maxQuality) / 2;
+            encoded = encode(image, quality);
+            if( encoded.length <= byteBudget ) {
+                best = encoded;
+                bestQuality = quality;
+                minQuality = quality;
+            } else {
+                maxQuality = quality;
+            }
+        }
+        log.debug("Encoded image in " + best.length + " bytes (budget: " + byteBudget + ") at quality: " + bestQuality);
+        return best;
     }
 
-    public int getLastPreviewHeight() {
-        System.out.println("Returning a preview height of " + this.lastPreviewHeight);
-        return this.lastPreviewHeight;
+    private byte[] encode( BufferedImage image, float quality ) throws IOException {
+        //wrap the image buffer in something an image writer will accept.
+        IIOImage imageContainer = new IIOImage(image, null, null);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ImageWriter imageWriter = codecPool.borrowWriter(encodeMimeType);
+        try( MemoryCacheImageOutputStream imageOutputStream = new MemoryCacheImageOutputStream(outputStream) ) {
+            //set up our encoding parameters (jpg compression quality)
+            ImageWriteParam imageParams = imageWriter.getDefaultWriteParam();
+            imageParams.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            imageParams.setCompressionQuality(quality);
+
+            imageWriter.setOutput(imageOutputStream);
+            imageWriter.write(null, imageContainer, imageParams);
+        } finally {
+            codecPool.returnWriter(imageWriter);
+        }
+        return outputStream.toByteArray();
     }
 }
@@ -0,0 +1,287 @@
+package com.shareplaylearn.services;
+
+import com.shareplaylearn.storage.ItemStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Makes the derived presentations of uploads (previews, resized images) in the background,
+ * so an upload only has to wait for its original to be stored (see UserItemManager.setDeferPresentations()).
+ *
+ * Each job is keyed by the location of the original it derives from. A failed job is retried,
+ * after a delay that doubles with each attempt, until it has been tried maxAttempts times.
+ * Readers that can't wait for a queued job can run it themselves (see runNow()).
+ * Jobs must be safe to run again, as a retry may follow a partial failure.
+ *
+ * The queue holds the bytes of every job waiting in it (the upload each one derives from), so it takes
+ * at most maxPendingBytes of them. Once it's full, submit() refuses more, and the caller does the work
+ * itself (like the WorkerPools do), which slows uploads down instead of running out of memory.
+ *
+ * It also remembers (up to MAX_UNDERIVABLE) the keys whose jobs had nothing to make, e.g. an upload its plugin
+ * couldn't decode, so readers don't try again on every read (see markUnderivable()).
+ *
+ * There is one queue per item store (see forStore()).
+ */
+public class PresentationQueue {
+    public static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_RETRY_DELAY_MS = 1000;
+    public static final long DEFAULT_MAX_PENDING_BYTES = 256L * 1024 * 1024;
+    public static final int MAX_UNDERIVABLE = 10000;
+
+    private static final Map<ItemStore,PresentationQueue> queues = new WeakHashMap<>();
+    private static final Logger log = LoggerFactory.getLogger(PresentationQueue.class);
+
+    /**
+     * The work a job does, which may fail with any exception (and be retried).
+     */
+    public interface Work {
+        void run() throws Exception;
+    }
+
+    private class Job
+        implements Runnable {
+        private final String key;
+        private final Work work;
+        private final long bytes;
+        private final ReentrantLock running = new ReentrantLock();
+        private int attempts;
+        private boolean finished;
+
+        Job( String key, Work work, long bytes ) {
+            this.key = key;
+            this.work = work;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Makes one attempt at the job, unless it's finished (or been replaced by a newer job for the same key).
+         * Locked, so a reader running the job waits for a worker that's already at it, rather than
+         * doing it twice. The work calls the store, so it's a ReentrantLock rather than synchronized,
+         * which would pin a virtual thread (e.g., a reader on the io pool) to its carrier while it waits.
+         */
+        @Override
+        public void run() {
+            running.lock();
+            try {
+                attempt();
+            } finally {
+                running.unlock();
+            }
+        }
+
+        private void attempt() {
+            if( finished ) {
+                return;
+            }
+            if( pending.get(key) != this ) {
+                finished = true;
+                return;
+            }
+            attempts++;
+            try {
+                work.run();
+                //counted before the job leaves the queue, so anyone who saw it go sees the count
+                completed.incrementAndGet();
+                finish();
+            } catch (Exception e) {
+                if( attempts >= maxAttempts ) {
+                    log.error("Giving up on presentations for: " + key + " after " + attempts + " attempts: "
+                            + e.getMessage());
+                    failed.incrementAndGet();
+                    finish();
+                } else {
+                    long delay = retryDelayMs << (attempts - 1);
+                    log.warn("Failed making presentations for: " + key + " (attempt " + attempts
+                            + "), retrying in " + delay + "ms: " + e.getMessage());
+                    retries.incrementAndGet();
+                    executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+
+        private void finish() {
+            finished = true;
+            //whoever takes the job out of the queue gives its bytes back (a newer job for the key may have)
+            if( pending.remove(key, this) ) {
+                pendingBytes.addAndGet(-bytes);
+            }
+            synchronized (PresentationQueue.this) {
+                PresentationQueue.this.notifyAll();
+            }
+        }
+    }
+
+    private final int maxAttempts;
+    private final long retryDelayMs;
+    private final long maxPendingBytes;
+    private final ConcurrentHashMap<String,Job> pending = new ConcurrentHashMap<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final Set<String> underivable = Collections.newSetFromMap(Collections.synchronizedMap(
+            new LinkedHashMap<String,Boolean>() {
+                @Override
+                protected boolean removeEldestEntry( Map.Entry<String,Boolean> eldest ) {
+                    return size() > MAX_UNDERIVABLE;
+                }
+            }));
+    private final ScheduledThreadPoolExecutor executor;
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+
+    public PresentationQueue() {
+        this(DEFAULT_WORKERS, DEFAULT_MAX_ATTEMPTS, DEFAULT_RETRY_DELAY_MS, DEFAULT_MAX_PENDING_BYTES);
+    }
+
+    /**
+     * @param workers - how many jobs run at once
+     * @param maxAttempts - how many times a job is tried before we give up on it
+     * @param retryDelayMs - how long to wait before the first retry (doubled for each one after that)
+     * @param maxPendingBytes - how many bytes the jobs waiting (or retrying) can hold at once
+     */
+    public PresentationQueue( int workers, int maxAttempts, long retryDelayMs, long maxPendingBytes ) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryDelayMs = retryDelayMs;
+        this.maxPendingBytes = maxPendingBytes;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ScheduledThreadPoolExecutor(Math.max(1, workers), runnable -> {
+            Thread thread = new Thread(runnable, "uim-presentations-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return the queue for the given store, creating one with the default settings if needed.
+     */
+    public static PresentationQueue forStore( ItemStore itemStore ) {
+        synchronized (queues) {
+            PresentationQueue queue = queues.get(itemStore);
+            if( queue == null ) {
+                queue = new PresentationQueue();
+                queues.put(itemStore, queue);
+            }
+            return queue;
+        }
+    }
+
+    /**
+     * Sets the queue to use for the given store (e.g., with more workers),
+     * call this before any manager uses the store.
+     */
+    public static void register( ItemStore itemStore, PresentationQueue queue ) {
+        synchronized (queues) {
+            queues.put(itemStore, queue);
+        }
+    }
+
+    /**
+     * Queues the work, replacing any job still waiting for the same key (e.g., when an item is uploaded again).
+     * @param bytes - how much memory the work holds on to until it's run (e.g., the length of the upload)
+     * @return false if the queue is full, and the work wasn't queued.
+     */
+    public boolean submit( String key, Work work, long bytes ) {
+        if( pendingBytes.addAndGet(bytes) > maxPendingBytes ) {
+            pendingBytes.addAndGet(-bytes);
+            return false;
+        }
+        underivable.remove(key);
+        Job job = new Job(key, work, bytes);
+        Job replaced = pending.put(key, job);
+        if( replaced != null ) {
+            pendingBytes.addAndGet(-replaced.bytes);
+        }
+        executor.execute(job);
+        return true;
+    }
+
+    public boolean isPending( String key ) {
+        return pending.containsKey(key);
+    }
+
+    /**
+     * Records that there was nothing to make for the key, until it's submitted again.
+     */
+    public void markUnderivable( String key ) {
+        underivable.add(key);
+    }
+
+    public boolean isUnderivable( String key ) {
+        return underivable.contains(key);
+    }
+
+    /**
+     * Runs the job for the key on the calling thread, if one is waiting, or waits for the attempt
+     * that's in progress. If the attempt fails, the job is still retried in the background.
+     * @return false if there was no job for the key.
+     */
+    public boolean runNow( String key ) {
+        Job job = pending.get(key);
+        if( job == null ) {
+            return false;
+        }
+        job.run();
+        return true;
+    }
+
+    /**
+     * Waits for every queued job to finish (or be given up on).
+     * @return false if we ran out of time first.
+     */
+    public synchronized boolean awaitIdle( long timeoutMs ) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while( !pending.isEmpty() ) {
+            long remaining = deadline - System.currentTimeMillis();
+            if( remaining <= 0 ) {
+                return false;
+            }
+            //jobs replaced by newer ones for the same key don't notify, so don't wait forever on them
+            wait(Math.min(remaining, 100));
+        }
+        return true;
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    /**
+     * @return how many jobs we gave up on.
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * Stops the workers, jobs that haven't finished are dropped.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        pending.clear();
+        pendingBytes.set(0);
+    }
+}
@@ -0,0 +1,92 @@
+package com.shareplaylearn.services;
+
+import com.shareplaylearn.models.ItemSchema;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * What an upload preprocessor plugin made of one upload: the presentations to store,
+ * and what it learned about each of them along the way.
+ * Built fresh for every upload, so the plugins themselves don't need to hold any per-upload state.
+ */
+public class ProcessedUpload {
+    public static final int UNKNOWN_DIMENSION = -1;
+
+    /**
+     * One presentation of the upload.
+     */
+    public static class Presentation {
+        private final byte[] data;
+        private final String fileExtension;
+        private final int width;
+        private final int height;
+
+        public Presentation( byte[] data ) {
+            this(data, "", UNKNOWN_DIMENSION, UNKNOWN_DIMENSION);
+        }
+
+        /**
+         * @param fileExtension - the extension the stored item should have (e.g., when it was re-encoded
+         *                      to a different format), or an empty string to keep the uploaded name.
+         */
+        public Presentation( byte[] data, String fileExtension, int width, int height ) {
+            this.data = data;
+            this.fileExtension = fileExtension;
+            this.width = width;
+            this.height = height;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public String getFileExtension() {
+            return fileExtension;
+        }
+
+        /**
+         * @return the width in pixels, or UNKNOWN_DIMENSION if it doesn't apply
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+    }
+
+    private final String contentType;
+    private final Map<ItemSchema.PresentationType,Presentation> presentations =
+            new EnumMap<>(ItemSchema.PresentationType.class);
+
+    /**
+     * @param contentType - the ItemSchema content type, not an HTTP content type
+     */
+    public ProcessedUpload( String contentType ) {
+        this.contentType = contentType;
+    }
+
+    public ProcessedUpload put( ItemSchema.PresentationType presentationType, Presentation presentation ) {
+        presentations.put(presentationType, presentation);
+        return this;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public Presentation get( ItemSchema.PresentationType presentationType ) {
+        return presentations.get(presentationType);
+    }
+
+    public Map<ItemSchema.PresentationType,Presentation> getPresentations() {
+        return Collections.unmodifiableMap(presentations);
+    }
+
+    public int size() {
+        return presentations.size();
+    }
+}
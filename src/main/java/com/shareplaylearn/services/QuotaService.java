@@ -0,0 +1,307 @@
+package com.shareplaylearn.services;
+
+import com.shareplaylearn.exceptions.ItemStoreException;
+import com.shareplaylearn.exceptions.QuotaExceededException;
+import com.shareplaylearn.storage.ItemStore;
+import com.shareplaylearn.storage.ItemSummary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a local count of the items (and bytes) each user has stored, so checking the quota
+ * before an upload doesn't mean listing the user's whole directory.
+ *
+ * Think of it like an ATM: while the local count says you're well below the limit, you're good.
+ * Once you get up close (exactCheckFraction of the limit), we count the store every time.
+ * The counts are kept up to date by the managers as they add and delete items, and refreshed
+ * from the store in the background, to correct any drift (e.g., from other processes writing).
+ * Users we haven't seen in a while are dropped, and counted again on their next upload.
+ *
+ * Uploads reserve the items they may store before they start (see reserveItems()), so concurrent uploads
+ * can't all pass the check and then together go over the limit. The reservation is released as the items
+ * are recorded (or fail), until then they count against the limit along with the stored items.
+ */
+public class QuotaService {
+    public static final double DEFAULT_EXACT_CHECK_FRACTION = 0.9;
+    public static final long DEFAULT_REFRESH_INTERVAL_MS = TimeUnit.MINUTES.toMillis(10);
+    public static final long DEFAULT_IDLE_EXPIRY_MS = TimeUnit.HOURS.toMillis(1);
+
+    private static final Map<ItemStore,QuotaService> quotaServices = new WeakHashMap<>();
+    private static final Logger log = LoggerFactory.getLogger(QuotaService.class);
+
+    /**
+     * What we know of a user's storage use.
+     */
+    public static class Usage {
+        private final AtomicLong itemCount = new AtomicLong();
+        private final AtomicLong byteCount = new AtomicLong();
+        private final AtomicLong reservedCount = new AtomicLong();
+        private volatile long countedAt;
+        private volatile long lastUsedAt;
+
+        public long getItemCount() {
+            return itemCount.get();
+        }
+
+        public long getByteCount() {
+            return byteCount.get();
+        }
+
+        /**
+         * @return how many items uploads in progress may still add.
+         */
+        public long getReservedCount() {
+            return reservedCount.get();
+        }
+    }
+
+    /**
+     * Items set aside for an upload in progress. Release them as they're recorded, or as they fail,
+     * and close the reservation when the upload is done, to release whatever's left.
+     */
+    public static class Reservation
+        implements AutoCloseable {
+        private final Usage usage;
+        private final AtomicLong remaining;
+
+        Reservation( Usage usage, long items ) {
+            this.usage = usage;
+            this.remaining = new AtomicLong(items);
+        }
+
+        /**
+         * Releases up to the given number of the reserved items.
+         */
+        public void release( long items ) {
+            long left;
+            long released;
+            do {
+                left = remaining.get();
+                released = Math.min(items, left);
+            } while( !remaining.compareAndSet(left, left - released) );
+            usage.reservedCount.addAndGet(-released);
+        }
+
+        public long getRemaining() {
+            return remaining.get();
+        }
+
+        @Override
+        public void close() {
+            release(Long.MAX_VALUE);
+        }
+    }
+
+    private final ItemStore itemStore;
+    private final double exactCheckFraction;
+    private final long refreshIntervalMs;
+    private final long idleExpiryMs;
+    private final ConcurrentHashMap<String,Usage> usageByUser = new ConcurrentHashMap<>();
+    private final AtomicLong exactCounts = new AtomicLong();
+    private ScheduledExecutorService refresher;
+
+    public QuotaService( ItemStore itemStore ) {
+        this(itemStore, DEFAULT_EXACT_CHECK_FRACTION, DEFAULT_REFRESH_INTERVAL_MS, DEFAULT_IDLE_EXPIRY_MS);
+    }
+
+    /**
+     * @param exactCheckFraction - once a user is at this fraction of a limit, count the store on every check
+     * @param refreshIntervalMs - how often the background task recounts each user
+     * @param idleExpiryMs - how long we keep counts for a user we haven't seen
+     */
+    public QuotaService( ItemStore itemStore, double exactCheckFraction, long refreshIntervalMs,
+                         long idleExpiryMs ) {
+        this.itemStore = itemStore;
+        this.exactCheckFraction = exactCheckFraction;
+        this.refreshIntervalMs = refreshIntervalMs;
+        this.idleExpiryMs = idleExpiryMs;
+    }
+
+    /**
+     * @return the quota service for the given store, creating one with the default settings if needed.
+     */
+    public static QuotaService forStore( ItemStore itemStore ) {
+        synchronized (quotaServices) {
+            QuotaService quotaService = quotaServices.get(itemStore);
+            if( quotaService == null ) {
+                quotaService = new QuotaService(itemStore);
+                quotaServices.put(itemStore, quotaService);
+            }
+            return quotaService;
+        }
+    }
+
+    /**
+     * Sets the quota service to use for the given store (e.g., with different thresholds),
+     * call this before any manager uses the store.
+     */
+    public static void register( ItemStore itemStore, QuotaService quotaService ) {
+        synchronized (quotaServices) {
+            quotaServices.put(itemStore, quotaService);
+        }
+    }
+
+    /**
+     * @param description - what the limit is, for the exception message
+     * @throws QuotaExceededException if the user has maxItems or more items stored
+     */
+    public void checkItemQuota( String userDir, long maxItems, String description )
+            throws QuotaExceededException {
+        checkItemQuota(userDir, maxItems, 1, description);
+    }
+
+    /**
+     * Checks there's room for a batch of new items, with one check for the whole batch.
+     * @param newItems - how many items are about to be added
+     * @throws QuotaExceededException if the new items would take the user past maxItems
+     */
+    public void checkItemQuota( String userDir, long maxItems, long newItems, String description )
+            throws QuotaExceededException {
+        Usage usage = prepareCheck(userDir, maxItems, newItems);
+        synchronized (usage) {
+            checkRoom(userDir, usage, maxItems, newItems, description);
+        }
+    }
+
+    /**
+     * Checks there's room for the new items, and counts them against the limit until they're released
+     * (as checkItemQuota() would, but two uploads can't both take the last of the room).
+     * @param newItems - the most items the upload can add
+     * @throws QuotaExceededException if the new items would take the user past maxItems
+     */
+    public Reservation reserveItems( String userDir, long maxItems, long newItems, String description )
+            throws QuotaExceededException {
+        Usage usage = prepareCheck(userDir, maxItems, newItems);
+        synchronized (usage) {
+            checkRoom(userDir, usage, maxItems, newItems, description);
+            usage.reservedCount.addAndGet(newItems);
+        }
+        return new Reservation(usage, newItems);
+    }
+
+    /**
+     * @return the user's usage, counted from the store if they're near the limit.
+     */
+    private Usage prepareCheck( String userDir, long maxItems, long newItems ) {
+        Usage usage = getUsage(userDir);
+        if( usage.getItemCount() + usage.getReservedCount() + newItems - 1 >= maxItems * exactCheckFraction ) {
+            count(userDir, usage);
+        }
+        return usage;
+    }
+
+    private void checkRoom( String userDir, Usage usage, long maxItems, long newItems, String description )
+            throws QuotaExceededException {
+        if( usage.getItemCount() + usage.getReservedCount() + newItems > maxItems ) {
+            log.error("Error, too many uploads for: " + userDir + ", counted: " + usage.getItemCount() + " items, "
+                    + usage.getReservedCount() + " reserved.");
+            throw new QuotaExceededException("Too many items stored for user, exceeded " + description + ": " +
+                    maxItems);
+        }
+    }
+
+    /**
+     * @return the user's current usage, counting the store if we aren't tracking the user yet.
+     */
+    public Usage getUsage( String userDir ) {
+        Usage usage = usageByUser.get(userDir);
+        if( usage == null ) {
+            Usage counted = new Usage();
+            count(userDir, counted);
+            usage = usageByUser.putIfAbsent(userDir, counted);
+            if( usage == null ) {
+                usage = counted;
+                startRefresher();
+            }
+        }
+        usage.lastUsedAt = System.currentTimeMillis();
+        return usage;
+    }
+
+    public void recordAdd( String userDir, long items, long bytes ) {
+        Usage usage = usageByUser.get(userDir);
+        if( usage != null ) {
+            usage.itemCount.addAndGet(items);
+            usage.byteCount.addAndGet(bytes);
+        }
+    }
+
+    public void recordDelete( String userDir, long items, long bytes ) {
+        Usage usage = usageByUser.get(userDir);
+        if( usage != null ) {
+            usage.itemCount.addAndGet(-items);
+            usage.byteCount.addAndGet(-bytes);
+        }
+    }
+
+    /**
+     * Forget the user's counts, they'll be counted again on next use.
+     */
+    public void invalidate( String userDir ) {
+        usageByUser.remove(userDir);
+    }
+
+    /**
+     * @return how many times we've listed a user's directory to count it.
+     */
+    public long getExactCountCount() {
+        return exactCounts.get();
+    }
+
+    public synchronized void shutdown() {
+        if( refresher != null ) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    }
+
+    private void count( String userDir, Usage usage ) {
+        long items = 0;
+        long bytes = 0;
+        for( ItemSummary itemSummary : itemStore.list(userDir) ) {
+            items++;
+            bytes += itemSummary.getSize();
+        }
+        usage.itemCount.set(items);
+        usage.byteCount.set(bytes);
+        usage.countedAt = System.currentTimeMillis();
+        exactCounts.incrementAndGet();
+    }
+
+    private synchronized void startRefresher() {
+        if( refresher != null ) {
+            return;
+        }
+        refresher = Executors.newSingleThreadScheduledExecutor( runnable -> {
+            Thread thread = new Thread(runnable, "uim-quota-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, refreshIntervalMs / 2);
+        refresher.scheduleWithFixedDelay(this::refresh, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void refresh() {
+        long now = System.currentTimeMillis();
+        for( Map.Entry<String,Usage> entry : usageByUser.entrySet() ) {
+            Usage usage = entry.getValue();
+            if( now - usage.lastUsedAt > idleExpiryMs ) {
+                usageByUser.remove(entry.getKey(), usage);
+            } else if( now - usage.countedAt > refreshIntervalMs ) {
+                try {
+                    count(entry.getKey(), usage);
+                } catch (ItemStoreException e) {
+                    log.warn("Failed to refresh storage use for: " + entry.getKey() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+}
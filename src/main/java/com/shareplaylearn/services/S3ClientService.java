@@ -0,0 +1,115 @@
+package com.shareplaylearn.services;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the single S3 client shared by every UserItemManager.
+ * The client is thread-safe, and owns the http connection pool, so
+ * building one per request meant paying for a new pool (and TLS handshake) on every call.
+ *
+ * Call configure() before the first getClient() to change the pool settings
+ * (and before the first WorkerPools.io(), which sizes a virtual thread io pool to the connection pool).
+ * The client is shut down by a JVM shutdown hook, or explicitly via shutdown()
+ * (after which the next getClient() builds a fresh one).
+ */
+public class S3ClientService {
+    public static final int DEFAULT_MAX_CONNECTIONS = 50;
+    public static final int DEFAULT_CONNECTION_TIMEOUT_MS = 10 * 1000;
+    public static final int DEFAULT_SOCKET_TIMEOUT_MS = 50 * 1000;
+    //recycle pooled connections once in a while, so we pick up DNS changes on the S3 side
+    public static final long DEFAULT_CONNECTION_TTL_MS = 5 * 60 * 1000;
+    public static final long DEFAULT_CONNECTION_MAX_IDLE_MS = 60 * 1000;
+    public static final boolean DEFAULT_TCP_KEEP_ALIVE = true;
+
+    private static final Logger log = LoggerFactory.getLogger(S3ClientService.class);
+    private static ClientConfiguration clientConfiguration = makeClientConfiguration(
+            DEFAULT_MAX_CONNECTIONS, DEFAULT_CONNECTION_TIMEOUT_MS, DEFAULT_SOCKET_TIMEOUT_MS,
+            DEFAULT_CONNECTION_TTL_MS, DEFAULT_CONNECTION_MAX_IDLE_MS, DEFAULT_TCP_KEEP_ALIVE);
+    private static volatile AmazonS3Client s3Client;
+    private static boolean shutdownHookRegistered = false;
+
+    private S3ClientService() {
+    }
+
+    /**
+     * @param maxConnections - size of the http connection pool shared by all callers
+     * @param connectionTimeoutMs - how long to wait when opening a connection
+     * @param socketTimeoutMs - how long to wait for data on an open connection
+     * @param connectionTtlMs - max lifetime of a pooled connection, -1 for no limit
+     * @param connectionMaxIdleMs - how long an unused connection stays in the pool
+     * @param tcpKeepAlive - whether to enable TCP keep-alive on pooled connections
+     * @throws IllegalStateException if the shared client has already been built (call shutdown() first)
+     */
+    public static synchronized void configure( int maxConnections, int connectionTimeoutMs, int socketTimeoutMs,
+                                               long connectionTtlMs, long connectionMaxIdleMs,
+                                               boolean tcpKeepAlive ) {
+        if( s3Client != null ) {
+            throw new IllegalStateException("S3 client already created, shutdown() before re-configuring it.");
+        }
+        clientConfiguration = makeClientConfiguration(maxConnections, connectionTimeoutMs, socketTimeoutMs,
+                connectionTtlMs, connectionMaxIdleMs, tcpKeepAlive);
+    }
+
+    /**
+     * @return the size of the http connection pool, as configured (whether or not the client's been built yet).
+     */
+    public static synchronized int getMaxConnections() {
+        return clientConfiguration.getMaxConnections();
+    }
+
+    public static AmazonS3 getClient() {
+        AmazonS3Client client = s3Client;
+        if( client != null ) {
+            return client;
+        }
+        synchronized (S3ClientService.class) {
+            if( s3Client == null ) {
+                s3Client = new AmazonS3Client(
+                        new BasicAWSCredentials(SecretsService.amazonClientId, SecretsService.amazonClientSecret),
+                        clientConfiguration
+                );
+                registerShutdownHook();
+                log.info("Created shared S3 client, max connections: " + clientConfiguration.getMaxConnections());
+            }
+            return s3Client;
+        }
+    }
+
+    /**
+     * Releases the connection pool and the client's background threads.
+     * Safe to call more than once.
+     */
+    public static synchronized void shutdown() {
+        if( s3Client != null ) {
+            s3Client.shutdown();
+            s3Client = null;
+            log.info("Shut down shared S3 client.");
+        }
+    }
+
+    private static void registerShutdownHook() {
+        if( shutdownHookRegistered ) {
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(S3ClientService::shutdown, "s3-client-shutdown"));
+        shutdownHookRegistered = true;
+    }
+
+    private static ClientConfiguration makeClientConfiguration( int maxConnections, int connectionTimeoutMs,
+                                                                int socketTimeoutMs, long connectionTtlMs,
+                                                                long connectionMaxIdleMs, boolean tcpKeepAlive ) {
+        ClientConfiguration configuration = new ClientConfiguration();
+        configuration.setMaxConnections(maxConnections);
+        configuration.setConnectionTimeout(connectionTimeoutMs);
+        configuration.setSocketTimeout(socketTimeoutMs);
+        configuration.setConnectionTTL(connectionTtlMs);
+        configuration.setConnectionMaxIdleMillis(connectionMaxIdleMs);
+        configuration.setUseTcpKeepAlive(tcpKeepAlive);
+        return configuration;
+    }
+}
@@ -2,9 +2,15 @@ package com.shareplaylearn.services;
 
 import com.shareplaylearn.models.ItemSchema;
 
-import java.util.HashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.ServiceLoader;
 
 /**
  * Created by stu on 6/10/15.
@@ -29,16 +35,127 @@ import java.util.Map;
  *     - have a preview size that we will embed in an img tag in-line in a list of items
  *
  *   Same thing could apply to long segments of text, html, markdown, video, etc.
+ *
+ *   The preprocessor holds no per-upload state, so one instance can be shared by every upload.
+ *
+ *   Dispatch goes by content signature (magic number): the signatures the plugins declare are indexed by
+ *   their first byte, so an upload is matched by looking at a handful of candidates for its first byte,
+ *   however many plugins and formats there are. The plugin is handed the signature that matched.
+ *   Only uploads that match no signature are offered to the plugins without signatures, via canProcess(),
+ *   and then to the plugins with signatures that ask to probe them (see probesUnsigned()), which may handle
+ *   formats they have none for (e.g., WBMP images, which have no magic number).
+ *   Callers that need the plugin before processing (e.g., to size the quota) dispatch() once,
+ *   and pass the Dispatch on to process().
  */
 public class UploadPreprocessor
     implements UploadPreprocessorPlugin {
 
-    List<UploadPreprocessorPlugin> uploadPreprocessorPluginList;
-    private UploadPreprocessorPlugin processorPluginUsed;
+    private static final Logger log = LoggerFactory.getLogger(UploadPreprocessor.class);
+
+    /**
+     * Where an upload goes: the plugin that handles it (null if none does, and only the original is kept),
+     * and the signature it matched (null if the plugin was found by asking canProcess()).
+     */
+    public static final class Dispatch {
+        private static final Dispatch NONE = new Dispatch(null, null);
+        private final UploadPreprocessorPlugin plugin;
+        private final ContentSignature signature;
+
+        private Dispatch( UploadPreprocessorPlugin plugin, ContentSignature signature ) {
+            this.plugin = plugin;
+            this.signature = signature;
+        }
+
+        public UploadPreprocessorPlugin getPlugin() {
+            return plugin;
+        }
+
+        public ContentSignature getSignature() {
+            return signature;
+        }
+    }
+
+    private final List<UploadPreprocessorPlugin> uploadPreprocessorPluginList;
+    private final Map<ContentSignature,UploadPreprocessorPlugin> pluginsBySignature = new IdentityHashMap<>();
+    //signatures at offset 0, by their first byte (longest first), and the few at other offsets
+    @SuppressWarnings("unchecked")
+    private final List<ContentSignature>[] signaturesByFirstByte = new List[256];
+    private final List<ContentSignature> offsetSignatures = new ArrayList<>();
+    private final List<UploadPreprocessorPlugin> unsignedPlugins = new ArrayList<>();
+    private final List<UploadPreprocessorPlugin> signedPlugins = new ArrayList<>();
 
+    /**
+     * @param preprocessorPluginList - earlier plugins win, when two declare the same signature
+     */
     public UploadPreprocessor( List<UploadPreprocessorPlugin> preprocessorPluginList ) {
-        this.uploadPreprocessorPluginList = preprocessorPluginList;
-        this.processorPluginUsed = null;
+        this.uploadPreprocessorPluginList = Collections.unmodifiableList(new ArrayList<>(preprocessorPluginList));
+        for( UploadPreprocessorPlugin plugin : this.uploadPreprocessorPluginList ) {
+            List<ContentSignature> signatures = plugin.getSignatures();
+            if( signatures.isEmpty() ) {
+                unsignedPlugins.add(plugin);
+            } else {
+                signedPlugins.add(plugin);
+            }
+            for( ContentSignature signature : signatures ) {
+                pluginsBySignature.put(signature, plugin);
+                if( signature.getOffset() > 0 ) {
+                    offsetSignatures.add(signature);
+                    continue;
+                }
+                int firstByte = signature.getFirstByte() & 0xff;
+                if( signaturesByFirstByte[firstByte] == null ) {
+                    signaturesByFirstByte[firstByte] = new ArrayList<>();
+                }
+                signaturesByFirstByte[firstByte].add(signature);
+            }
+        }
+        for( List<ContentSignature> candidates : signaturesByFirstByte ) {
+            if( candidates != null ) {
+                //stable, so among equal lengths the earlier plugin still wins
+                candidates.sort( (a, b) -> b.getLength() - a.getLength() );
+            }
+        }
+    }
+
+    /**
+     * @return a preprocessor with every plugin registered with the ServiceLoader
+     * (see META-INF/services/com.shareplaylearn.services.UploadPreprocessorPlugin), in classpath order.
+     */
+    public static UploadPreprocessor loadPlugins() {
+        List<UploadPreprocessorPlugin> plugins = new ArrayList<>();
+        for( UploadPreprocessorPlugin plugin : ServiceLoader.load(UploadPreprocessorPlugin.class) ) {
+            log.info("Loaded upload preprocessor plugin: " + plugin.getClass().getName());
+            plugins.add(plugin);
+        }
+        return new UploadPreprocessor(plugins);
+    }
+
+    public List<UploadPreprocessorPlugin> getPlugins() {
+        return uploadPreprocessorPluginList;
+    }
+
+    /**
+     * @return the first plugin of the given class (e.g., to configure it), or null if there is none.
+     */
+    public <T extends UploadPreprocessorPlugin> T getPlugin( Class<T> pluginClass ) {
+        for( UploadPreprocessorPlugin plugin : uploadPreprocessorPluginList ) {
+            if( pluginClass.isInstance(plugin) ) {
+                return pluginClass.cast(plugin);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if one of the plugins makes items of the given content type.
+     */
+    public boolean handles( String contentType ) {
+        for( UploadPreprocessorPlugin plugin : uploadPreprocessorPluginList ) {
+            if( plugin.getContentType().equals(contentType) ) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
@@ -46,33 +163,78 @@ public class UploadPreprocessor
         return true;
     }
 
-    public UploadPreprocessorPlugin getProcessorPluginUsed() {
-        return processorPluginUsed;
+    /**
+     * @return the signature the upload starts with, or null if it matches none of the plugins' signatures.
+     */
+    public ContentSignature sniff(byte[] fileBuffer) {
+        if( fileBuffer.length > 0 ) {
+            List<ContentSignature> candidates = signaturesByFirstByte[fileBuffer[0] & 0xff];
+            if( candidates != null ) {
+                for( ContentSignature signature : candidates ) {
+                    if( signature.matches(fileBuffer) ) {
+                        return signature;
+                    }
+                }
+            }
+        }
+        for( ContentSignature signature : offsetSignatures ) {
+            if( signature.matches(fileBuffer) ) {
+                return signature;
+            }
+        }
+        return null;
     }
 
-    @Override
-    public Map<ItemSchema.PresentationType, byte[]> process(byte[] fileBuffer) {
-        for( UploadPreprocessorPlugin p : this.uploadPreprocessorPluginList ) {
+    /**
+     * Finds the plugin for the upload's signature, or failing that, the first plugin that can process the bytes
+     * (those without signatures first, then those with signatures that probe unsigned uploads).
+     * This doesn't process the upload, so it's a cheap way to find its content type.
+     */
+    public Dispatch dispatch(byte[] fileBuffer) {
+        ContentSignature signature = sniff(fileBuffer);
+        if( signature != null ) {
+            return new Dispatch(pluginsBySignature.get(signature), signature);
+        }
+        for( UploadPreprocessorPlugin p : this.unsignedPlugins ) {
             if( p.canProcess(fileBuffer) ) {
-                Map<ItemSchema.PresentationType,byte[]> uploadList = p.process(fileBuffer);
-                this.processorPluginUsed = p;
-                return uploadList;
+                return new Dispatch(p, null);
+            }
+        }
+        for( UploadPreprocessorPlugin p : this.signedPlugins ) {
+            if( p.probesUnsigned() && p.canProcess(fileBuffer) ) {
+                return new Dispatch(p, null);
             }
         }
-        Map<ItemSchema.PresentationType,byte[]> defaultList = new HashMap<>();
-        defaultList.put(ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, fileBuffer);
-        this.processorPluginUsed = this;
-        return defaultList;
+        return Dispatch.NONE;
     }
 
-    @Override
-    public String getPreferredFileExtension() {
-        return "";
+    /**
+     * @return the plugin process() would hand the upload to, or null if it would only keep the original
+     * (with an unknown content type).
+     */
+    public UploadPreprocessorPlugin findPlugin(byte[] fileBuffer) {
+        return dispatch(fileBuffer).getPlugin();
     }
 
     @Override
-    public String getPreviewFileExtension() {
-        return "";
+    public ProcessedUpload process(byte[] fileBuffer) {
+        return process(fileBuffer, dispatch(fileBuffer));
+    }
+
+    /**
+     * @param dispatch - what dispatch() returned for these bytes
+     * @return the presentations made by the dispatched plugin, or just the original
+     * (with an unknown content type) if no plugin handles the upload.
+     */
+    public ProcessedUpload process(byte[] fileBuffer, Dispatch dispatch) {
+        if( dispatch.getSignature() != null ) {
+            return dispatch.getPlugin().process(fileBuffer, dispatch.getSignature());
+        }
+        if( dispatch.getPlugin() != null ) {
+            return dispatch.getPlugin().process(fileBuffer);
+        }
+        return new ProcessedUpload(getContentType())
+                .put(ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, new ProcessedUpload.Presentation(fileBuffer));
     }
 
     @Override
@@ -1,26 +1,43 @@
 package com.shareplaylearn.services;
 
-import com.shareplaylearn.models.ItemSchema;
-
-import java.io.IOException;
-import java.util.Map;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Created by stu on 6/10/15.
+ * Plugins are shared by every upload (and every thread), so implementations must be thread-safe,
+ * and keep anything they learn about an upload in the ProcessedUpload they return.
+ * Plugins listed in META-INF/services/com.shareplaylearn.services.UploadPreprocessorPlugin
+ * are picked up by UploadPreprocessor.loadPlugins().
  */
 public interface UploadPreprocessorPlugin {
     boolean canProcess(byte[] fileBuffer);
-    //this returns a map of the presentation type (from the ItemSchema)
-    //to the actual bytes. The presentations types are used to indicate
+    //this returns the presentations (from the ItemSchema) to store for the upload,
+    //along with the actual bytes. The presentations types are used to indicate
     //various transforms done on the original data customized for how it will be presented
     //(as a preview, as the actual thing, but adjusted (like resizing, but not for previewing),
-    //or just the original bytes
-    Map<ItemSchema.PresentationType,byte[]> process(byte[] fileBuffer);
-    //this returns the file extension to use with any preferred presentation type transformation,
-    //returns an empty string if the preferred is the original (no transformation)
-    String getPreferredFileExtension();
+    //or just the original bytes. Each presentation carries the file extension to store it with
+    //(an empty string if it keeps the uploaded name).
+    ProcessedUpload process(byte[] fileBuffer);
+
+    //called instead of process(fileBuffer) when the upload was matched by one of this plugin's signatures,
+    //so the plugin can skip detecting the format itself.
+    default ProcessedUpload process(byte[] fileBuffer, ContentSignature signature) {
+        return process(fileBuffer);
+    }
+
+    //the magic numbers of the formats this plugin handles. Uploads matching one of them are sent
+    //straight to the plugin, without calling canProcess(). Plugins with no signatures are asked
+    //canProcess() for any upload that doesn't match a signature.
+    default List<ContentSignature> getSignatures() {
+        return Collections.emptyList();
+    }
 
-    String getPreviewFileExtension();
+    //whether a plugin with signatures should also be asked canProcess() for uploads that match no signature,
+    //for formats it reads that have no magic number. Off by default, since every unknown upload pays for it.
+    default boolean probesUnsigned() {
+        return false;
+    }
 
     //this is the ItemSchema content type, not an HTTP content type
     String getContentType();
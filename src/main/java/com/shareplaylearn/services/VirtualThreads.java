@@ -0,0 +1,26 @@
+package com.shareplaylearn.services;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Virtual threads, where the JVM has them (Java 21 and up).
+ * This is the Java 8 version, which never does. The multi-release jar built by the java21 profile
+ * carries a Java 21 version (from src/main/java21), which the JVM picks instead when it can run it.
+ */
+public class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isAvailable() {
+        return false;
+    }
+
+    /**
+     * @param name - the prefix for the threads' names
+     * @return an executor that runs each task on a new virtual thread, or null if there are no virtual threads.
+     */
+    public static ExecutorService newThreadPerTaskExecutor( String name ) {
+        return null;
+    }
+}
@@ -0,0 +1,237 @@
+package com.shareplaylearn.services;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The executors shared by all UserItemManagers.
+ * The io pool runs blocking item store calls (uploads, deletes, listings) so we can fan them out.
+ * It is bounded in both threads and queued tasks - once it's saturated the caller runs the task itself,
+ * which slows submitters down instead of failing them.
+ * The cpu pool runs image decoding and scaling, one thread per core, bounded the same way.
+ *
+ * Where the JVM has virtual threads (Java 21, running the multi-release jar - see VirtualThreads),
+ * the io pool runs each task on a virtual thread instead, so a blocked store call doesn't hold a platform
+ * thread. It's still bounded, as the store has its own limits: it runs as many tasks at once as the S3 client
+ * has connections (see S3ClientService.configure()), then the caller runs the task, since more would only
+ * wait for a connection. Use setIoPool() to size it for another store, or with a newBoundedPool()
+ * to go back to platform threads.
+ *
+ * Io tasks must not wait on other io tasks: with every thread of the pool waiting, the tasks they wait on
+ * sit in the queue forever (it isn't full, so the caller doesn't run them either). Code that fans work out
+ * on the io pool and waits for it checks isIoThread() first, and does the work inline when it's true.
+ */
+public class WorkerPools {
+    public static final int DEFAULT_IO_THREADS = 16;
+    public static final int DEFAULT_IO_QUEUE_SIZE = 256;
+    public static final int DEFAULT_CPU_THREADS = Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_CPU_QUEUE_SIZE = 64;
+
+    private static final ThreadLocal<Boolean> ioThread = new ThreadLocal<>();
+    private static ExecutorService ioPool;
+    private static ExecutorService cpuPool;
+
+    private WorkerPools() {
+    }
+
+    public static synchronized ExecutorService io() {
+        if( ioPool == null ) {
+            ioPool = new MarksIoThreads(VirtualThreads.isAvailable()
+                    ? newVirtualPool("uim-io", S3ClientService.getMaxConnections())
+                    : newBoundedPool("uim-io", DEFAULT_IO_THREADS, DEFAULT_IO_QUEUE_SIZE));
+        }
+        return ioPool;
+    }
+
+    /**
+     * Replaces the io pool (e.g., with one sized for your store). The previous pool is shut down
+     * once its queued work has finished.
+     */
+    public static synchronized void setIoPool( ExecutorService executorService ) {
+        if( ioPool != null ) {
+            ioPool.shutdown();
+        }
+        ioPool = new MarksIoThreads(executorService);
+    }
+
+    /**
+     * @return true if the calling thread is running an io pool task (including one the caller ran itself,
+     * because the pool was saturated), so it mustn't wait on more io tasks.
+     */
+    public static boolean isIoThread() {
+        return Boolean.TRUE.equals(ioThread.get());
+    }
+
+    public static synchronized ExecutorService cpu() {
+        if( cpuPool == null ) {
+            cpuPool = newBoundedPool("uim-cpu", DEFAULT_CPU_THREADS, DEFAULT_CPU_QUEUE_SIZE);
+        }
+        return cpuPool;
+    }
+
+    /**
+     * Replaces the cpu pool, the previous pool is shut down once its queued work has finished.
+     */
+    public static synchronized void setCpuPool( ExecutorService executorService ) {
+        if( cpuPool != null ) {
+            cpuPool.shutdown();
+        }
+        cpuPool = executorService;
+    }
+
+    public static synchronized void shutdown() {
+        if( ioPool != null ) {
+            ioPool.shutdown();
+            ioPool = null;
+        }
+        if( cpuPool != null ) {
+            cpuPool.shutdown();
+            cpuPool = null;
+        }
+    }
+
+    public static ExecutorService newBoundedPool( String name, int threads, int queueSize ) {
+        return newPool(name, threads, queueSize, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Like newBoundedPool(), but once it's saturated, tasks are rejected (with a RejectedExecutionException)
+     * rather than run by the caller, for callers that must never block on the work they submit.
+     */
+    public static ExecutorService newRejectingPool( String name, int threads, int queueSize ) {
+        return newPool(name, threads, queueSize, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    private static ExecutorService newPool( String name, int threads, int queueSize,
+                                            RejectedExecutionHandler rejectedExecutionHandler ) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(queueSize), daemonThreadFactory(name), rejectedExecutionHandler);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * @param maxConcurrent - how many tasks can run at once, the caller runs any more itself
+     * @throws UnsupportedOperationException if the JVM has no virtual threads (see VirtualThreads.isAvailable())
+     */
+    public static ExecutorService newVirtualPool( String name, int maxConcurrent ) {
+        ExecutorService threadPerTask = VirtualThreads.newThreadPerTaskExecutor(name);
+        if( threadPerTask == null ) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21, and the multi-release jar.");
+        }
+        return new CallerRunsWhenFull(threadPerTask, maxConcurrent);
+    }
+
+    /**
+     * An executor that hands its tasks to another, and is shut down with it.
+     */
+    private abstract static class DelegatingExecutorService
+        extends AbstractExecutorService {
+        protected final ExecutorService delegate;
+
+        DelegatingExecutorService( ExecutorService delegate ) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return delegate.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination( long timeout, TimeUnit unit ) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+
+    /**
+     * Marks the threads running the io pool's tasks (see isIoThread()).
+     */
+    private static class MarksIoThreads
+        extends DelegatingExecutorService {
+
+        MarksIoThreads( ExecutorService delegate ) {
+            super(delegate);
+        }
+
+        @Override
+        public void execute( Runnable command ) {
+            delegate.execute( () -> {
+                Boolean wasIoThread = ioThread.get();
+                ioThread.set(Boolean.TRUE);
+                try {
+                    command.run();
+                } finally {
+                    ioThread.set(wasIoThread);
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs at most maxConcurrent tasks at once on the delegate, and any more on the caller,
+     * like the CallerRunsPolicy of the bounded pools (a thread per task executor has no queue to fill).
+     */
+    private static class CallerRunsWhenFull
+        extends DelegatingExecutorService {
+        private final Semaphore running;
+
+        CallerRunsWhenFull( ExecutorService delegate, int maxConcurrent ) {
+            super(delegate);
+            this.running = new Semaphore(maxConcurrent);
+        }
+
+        @Override
+        public void execute( Runnable command ) {
+            if( !running.tryAcquire() ) {
+                command.run();
+                return;
+            }
+            try {
+                delegate.execute( () -> {
+                    try {
+                        command.run();
+                    } finally {
+                        running.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                running.release();
+                throw e;
+            }
+        }
+    }
+
+    private static ThreadFactory daemonThreadFactory( String name ) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,214 @@
+package com.shareplaylearn.storage;
+
+import com.google.gson.Gson;
+import com.shareplaylearn.exceptions.ItemNotFoundException;
+import com.shareplaylearn.exceptions.ItemStoreException;
+import com.shareplaylearn.io.Streams;
+import com.shareplaylearn.models.ItemSchema;
+import com.shareplaylearn.models.UploadMetadataFields;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps one shared copy of each distinct upload (and its presentations), keyed by the SHA-256 of the upload,
+ * so uploading the same bytes again costs a few tiny reference objects instead of processing and storing it all again.
+ *
+ * Everything lives in the item store, under /blobs/[hash]/:
+ *   - [presentation type] - the bytes of each presentation
+ *   - manifest - the content type and file extensions of the presentations (written last, so a group
+ *   with a manifest is complete)
+ *   - refs/[item location] - an empty marker for every item location that references the group.
+ *   The markers are the reference count: the group is deleted when the last one is released.
+ *
+ * Adding and releasing references for a hash is serialized within the process (see lockFor()).
+ * Across processes (the item store has no conditional writes), each side checks after it writes:
+ *   - releasing the last reference deletes the manifest, then lists the references again, and if one
+ *   was added meanwhile, puts the manifest back and keeps the group.
+ *   - adding a reference writes the marker first, then checks the group is still whole (readIntactManifest()),
+ *   and if it isn't, drops the marker and stores the content again (or falls back to not sharing it).
+ * A group can be leaked (kept with no references) when both sides back off at once, but an item is never
+ * left referencing a group that's gone.
+ */
+public class BlobStore {
+    public static final String BLOB_DIR = "/blobs/";
+    private static final String MANIFEST = "manifest";
+    private static final String REFS = "refs";
+    private static final int LOCK_STRIPES = 256;
+    private static final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+    static {
+        for( int i = 0; i < locks.length; ++i ) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+    private static final Logger log = LoggerFactory.getLogger(BlobStore.class);
+
+    /**
+     * What's stored for a hash.
+     */
+    public static class Manifest {
+        private final String contentType;
+        //presentation type => the file extension items are named with ("" to keep the uploaded name)
+        private final Map<String,String> fileExtensions;
+
+        public Manifest( String contentType, Map<ItemSchema.PresentationType,String> fileExtensions ) {
+            this.contentType = contentType;
+            this.fileExtensions = new HashMap<>();
+            for( Map.Entry<ItemSchema.PresentationType,String> fileExtension : fileExtensions.entrySet() ) {
+                this.fileExtensions.put(fileExtension.getKey().toString(),
+                        fileExtension.getValue() == null ? "" : fileExtension.getValue());
+            }
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * @return presentation type => the file extension to name the item with.
+         */
+        public Map<ItemSchema.PresentationType,String> getFileExtensions() {
+            Map<ItemSchema.PresentationType,String> byType = new HashMap<>();
+            for( Map.Entry<String,String> fileExtension : fileExtensions.entrySet() ) {
+                byType.put(ItemSchema.PresentationType.fromString(fileExtension.getKey()), fileExtension.getValue());
+            }
+            return Collections.unmodifiableMap(byType);
+        }
+    }
+
+    private final ItemStore itemStore;
+
+    public BlobStore( ItemStore itemStore ) {
+        this.itemStore = itemStore;
+    }
+
+    /**
+     * @return the SHA-256 of the bytes, in hex.
+     */
+    public static String hash( byte[] data ) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            //every JVM has to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+        byte[] hash = digest.digest(data);
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for( byte b : hash ) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @return the lock to hold while checking for, and adding or releasing references to, the hash.
+     * The store is called while it's held, so it's a ReentrantLock, which a virtual thread can wait on
+     * without pinning its carrier thread (as it would inside a synchronized block).
+     */
+    public static ReentrantLock lockFor( String hash ) {
+        return locks[(hash.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    public String getBlobKey( String hash, ItemSchema.PresentationType presentationType ) {
+        return BLOB_DIR + hash + "/" + presentationType;
+    }
+
+    private String getManifestKey( String hash ) {
+        return BLOB_DIR + hash + "/" + MANIFEST;
+    }
+
+    private String getRefsPrefix( String hash ) {
+        return BLOB_DIR + hash + "/" + REFS;
+    }
+
+    /**
+     * @return the manifest, or null if nothing (complete) is stored for the hash.
+     */
+    public Manifest readManifest( String hash ) throws ItemStoreException {
+        try( StoredItem storedItem = itemStore.get(getManifestKey(hash)) ) {
+            byte[] json = new byte[(int)storedItem.getContentLength()];
+            Streams.readFully(storedItem.getContent(), json);
+            return new Gson().fromJson(new String(json, StandardCharsets.UTF_8), Manifest.class);
+        } catch (ItemNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            throw new ItemStoreException("Failed to read the manifest for: " + hash + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the manifest, if it and every presentation it lists are stored, otherwise null
+     * (nothing is stored for the hash, or the group is being deleted).
+     */
+    public Manifest readIntactManifest( String hash ) throws ItemStoreException {
+        Manifest manifest = readManifest(hash);
+        if( manifest == null ) {
+            return null;
+        }
+        for( ItemSchema.PresentationType presentationType : manifest.getFileExtensions().keySet() ) {
+            if( !itemStore.exists(getBlobKey(hash, presentationType)) ) {
+                return null;
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Stores the manifest, once every presentation is stored.
+     */
+    public void writeManifest( String hash, Manifest manifest ) throws ItemStoreException {
+        Map<String,String> metadata = new HashMap<>();
+        metadata.put(UploadMetadataFields.CONTENT_TYPE, manifest.getContentType());
+        itemStore.put(getManifestKey(hash), new Gson().toJson(manifest).getBytes(StandardCharsets.UTF_8), metadata);
+    }
+
+    public void addReference( String hash, String itemLocation ) throws ItemStoreException {
+        itemStore.put(getRefsPrefix(hash) + itemLocation, new byte[0], Collections.<String,String>emptyMap());
+    }
+
+    /**
+     * Drops the item location's reference, and the whole group if that was the last one.
+     * @return true if the group was deleted.
+     */
+    public boolean releaseReference( String hash, String itemLocation ) throws ItemStoreException {
+        itemStore.delete(getRefsPrefix(hash) + itemLocation);
+        if( hasReferences(hash) ) {
+            return false;
+        }
+        //the manifest goes first, so the group stops being used before its presentations go
+        Manifest manifest = readManifest(hash);
+        itemStore.delete(getManifestKey(hash));
+        //someone (in another process) may have referenced it between the listing and the delete
+        if( hasReferences(hash) ) {
+            if( manifest != null ) {
+                writeManifest(hash, manifest);
+            }
+            log.info("Kept: " + hash + ", it was referenced again while its last reference was released.");
+            return false;
+        }
+        List<String> keys = new ArrayList<>();
+        for( ItemSummary itemSummary : itemStore.list(BLOB_DIR + hash + "/") ) {
+            keys.add(itemSummary.getKey());
+        }
+        for( String key : keys ) {
+            itemStore.delete(key);
+        }
+        log.debug("Deleted the last reference to: " + hash + ", and its " + keys.size() + " blobs.");
+        return true;
+    }
+
+    private boolean hasReferences( String hash ) throws ItemStoreException {
+        return itemStore.list(getRefsPrefix(hash) + "/").iterator().hasNext();
+    }
+}
@@ -0,0 +1,275 @@
+package com.shareplaylearn.storage;
+
+import com.shareplaylearn.exceptions.ItemNotFoundException;
+import com.shareplaylearn.exceptions.ItemStoreException;
+import com.shareplaylearn.io.BoundedInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Stores items as plain files under a root directory, using the item key as the relative path
+ * (so the /root/[user]/[id]/[content type]/[presentation type]/ layout is kept on disk).
+ * Item bytes live under [root]/items, user metadata in a properties file under [root]/metadata.
+ *
+ * Writes go to a temp file that is moved over the item, so readers never see a partial item.
+ */
+public class FileSystemItemStore
+    implements ItemStore {
+    private static final String ITEMS_DIR = "items";
+    private static final String METADATA_DIR = "metadata";
+    private static final String METADATA_SUFFIX = ".properties";
+    private static final String TEMP_SUFFIX = ".uim-tmp";
+
+    private final Path itemRoot;
+    private final Path metadataRoot;
+
+    public FileSystemItemStore( Path root ) {
+        this.itemRoot = root.resolve(ITEMS_DIR).toAbsolutePath().normalize();
+        this.metadataRoot = root.resolve(METADATA_DIR).toAbsolutePath().normalize();
+        try {
+            Files.createDirectories(itemRoot);
+            Files.createDirectories(metadataRoot);
+        } catch (IOException e) {
+            throw new ItemStoreException("Could not create item store under: " + root, e);
+        }
+    }
+
+    @Override
+    public void put(String key, byte[] data, Map<String, String> userMetadata) {
+        Path itemPath = itemPath(key);
+        Path tempPath = tempPath(itemPath);
+        try {
+            Files.createDirectories(itemPath.getParent());
+            try( FileChannel channel = FileChannel.open(tempPath,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE) ) {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while( buffer.hasRemaining() ) {
+                    channel.write(buffer);
+                }
+            }
+            writeMetadata(key, userMetadata);
+            Files.move(tempPath, itemPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            deleteQuietly(tempPath);
+            throw new ItemStoreException("Failed to write item: " + key, e);
+        }
+    }
+
+    @Override
+    public long put(String key, InputStream content, long length, Map<String, String> userMetadata) {
+        Path itemPath = itemPath(key);
+        Path tempPath = tempPath(itemPath);
+        try {
+            Files.createDirectories(itemPath.getParent());
+            long bytesWritten = Files.copy(content, tempPath);
+            writeMetadata(key, userMetadata);
+            Files.move(tempPath, itemPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return bytesWritten;
+        } catch (IOException e) {
+            deleteQuietly(tempPath);
+            throw new ItemStoreException("Failed to write item: " + key, e);
+        }
+    }
+
+    @Override
+    public StoredItem get(String key) {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(itemPath(key), StandardOpenOption.READ);
+            ItemMetadata metadata = new ItemMetadata(channel.size(), readMetadata(key));
+            return new StoredItem(Channels.newInputStream(channel), metadata);
+        } catch (NoSuchFileException e) {
+            throw new ItemNotFoundException(key);
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw new ItemStoreException("Failed to read item: " + key, e);
+        }
+    }
+
+    @Override
+    public StoredItem get(String key, long offset, long length) {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(itemPath(key), StandardOpenOption.READ);
+            ItemMetadata metadata = new ItemMetadata(channel.size(), readMetadata(key));
+            long rangeLength = Ranges.clip(key, offset, length, channel.size());
+            channel.position(offset);
+            return new StoredItem(new BoundedInputStream(Channels.newInputStream(channel), rangeLength),
+                    metadata, offset, rangeLength);
+        } catch (NoSuchFileException e) {
+            throw new ItemNotFoundException(key);
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw new ItemStoreException("Failed to read item: " + key, e);
+        } catch (RuntimeException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    @Override
+    public Iterable<ItemSummary> list(String prefix) {
+        //walk from the deepest directory the prefix names, then filter on the rest of the prefix
+        int lastSlash = prefix.lastIndexOf('/');
+        Path walkRoot = lastSlash > 0 ? itemPath(prefix.substring(0, lastSlash)) : itemRoot;
+        if( !Files.isDirectory(walkRoot) ) {
+            return Collections.emptyList();
+        }
+        List<ItemSummary> summaries = new ArrayList<>();
+        try( Stream<Path> paths = Files.walk(walkRoot) ) {
+            paths.forEach( path -> {
+                if( !Files.isRegularFile(path) || path.getFileName().toString().endsWith(TEMP_SUFFIX) ) {
+                    return;
+                }
+                String key = toKey(path);
+                if( !key.startsWith(prefix) ) {
+                    return;
+                }
+                try {
+                    summaries.add(new ItemSummary(key, Files.size(path)));
+                } catch (NoSuchFileException e) {
+                    //deleted while we were walking, just leave it out.
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            throw new ItemStoreException("Failed to list items under: " + prefix, e);
+        }
+        summaries.sort((a, b) -> a.getKey().compareTo(b.getKey()));
+        return summaries;
+    }
+
+    @Override
+    public void delete(String key) {
+        try {
+            Files.deleteIfExists(itemPath(key));
+            Files.deleteIfExists(metadataPath(key));
+        } catch (IOException e) {
+            throw new ItemStoreException("Failed to delete item: " + key, e);
+        }
+    }
+
+    @Override
+    public boolean exists(String key) {
+        return Files.isRegularFile(itemPath(key));
+    }
+
+    @Override
+    public ItemMetadata head(String key) {
+        try {
+            return new ItemMetadata(Files.size(itemPath(key)), readMetadata(key));
+        } catch (NoSuchFileException e) {
+            throw new ItemNotFoundException(key);
+        } catch (IOException e) {
+            throw new ItemStoreException("Failed to read item metadata: " + key, e);
+        }
+    }
+
+    private Path itemPath( String key ) {
+        return resolve(itemRoot, key, "");
+    }
+
+    private Path metadataPath( String key ) {
+        return resolve(metadataRoot, key, METADATA_SUFFIX);
+    }
+
+    /**
+     * Maps a key onto a path under the given root, refusing keys that would escape it.
+     */
+    private Path resolve( Path root, String key, String suffix ) {
+        String relative = key.startsWith("/") ? key.substring(1) : key;
+        for( String segment : relative.split("/") ) {
+            if( segment.equals(".") || segment.equals("..") ) {
+                throw new ItemStoreException("Invalid item key: " + key);
+            }
+        }
+        Path path = root.resolve(relative + suffix).normalize();
+        if( !path.startsWith(root) ) {
+            throw new ItemStoreException("Invalid item key: " + key);
+        }
+        return path;
+    }
+
+    private String toKey( Path itemPath ) {
+        StringBuilder key = new StringBuilder();
+        for( Path segment : itemRoot.relativize(itemPath) ) {
+            key.append('/').append(segment.toString());
+        }
+        return key.toString();
+    }
+
+    private Path tempPath( Path itemPath ) {
+        return itemPath.resolveSibling(itemPath.getFileName() + "." + UUID.randomUUID() + TEMP_SUFFIX);
+    }
+
+    private void writeMetadata( String key, Map<String,String> userMetadata ) throws IOException {
+        Path metadataPath = metadataPath(key);
+        Path tempPath = tempPath(metadataPath);
+        Properties properties = new Properties();
+        properties.putAll(userMetadata);
+        Files.createDirectories(metadataPath.getParent());
+        try( Writer writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8) ) {
+            properties.store(writer, null);
+        }
+        Files.move(tempPath, metadataPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Map<String,String> readMetadata( String key ) throws IOException {
+        Map<String,String> userMetadata = new HashMap<>();
+        Path metadataPath = metadataPath(key);
+        if( !Files.exists(metadataPath) ) {
+            return userMetadata;
+        }
+        Properties properties = new Properties();
+        try( Reader reader = Files.newBufferedReader(metadataPath, StandardCharsets.UTF_8) ) {
+            properties.load(reader);
+        } catch (NoSuchFileException e) {
+            return userMetadata;
+        }
+        for( String name : properties.stringPropertyNames() ) {
+            userMetadata.put(name, properties.getProperty(name));
+        }
+        return userMetadata;
+    }
+
+    private static void deleteQuietly( Path path ) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            //we're already reporting the original failure
+        }
+    }
+
+    private static void closeQuietly( FileChannel channel ) {
+        if( channel == null ) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            //we're already reporting the original failure
+        }
+    }
+}
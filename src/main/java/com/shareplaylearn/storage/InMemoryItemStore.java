@@ -0,0 +1,91 @@
+package com.shareplaylearn.storage;
+
+import com.shareplaylearn.exceptions.ItemNotFoundException;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Keeps items on the heap. Useful for tests and for profiling the manager
+ * without any storage latency - nothing survives a restart.
+ */
+public class InMemoryItemStore
+    implements ItemStore {
+
+    private static class Entry {
+        final byte[] data;
+        final ItemMetadata metadata;
+
+        Entry( byte[] data, ItemMetadata metadata ) {
+            this.data = data;
+            this.metadata = metadata;
+        }
+    }
+
+    private final ConcurrentSkipListMap<String,Entry> items = new ConcurrentSkipListMap<>();
+
+    @Override
+    public void put(String key, byte[] data, Map<String, String> userMetadata) {
+        byte[] copy = data.clone();
+        items.put(key, new Entry(copy, new ItemMetadata(copy.length, userMetadata)));
+    }
+
+    @Override
+    public StoredItem get(String key) {
+        Entry entry = getEntry(key);
+        return new StoredItem(new ByteArrayInputStream(entry.data), entry.metadata);
+    }
+
+    @Override
+    public StoredItem get(String key, long offset, long length) {
+        Entry entry = getEntry(key);
+        long rangeLength = Ranges.clip(key, offset, length, entry.data.length);
+        return new StoredItem(new ByteArrayInputStream(entry.data, (int)offset, (int)rangeLength),
+                entry.metadata, offset, rangeLength);
+    }
+
+    @Override
+    public Iterable<ItemSummary> list(String prefix) {
+        List<ItemSummary> summaries = new ArrayList<>();
+        for( Map.Entry<String,Entry> item : items.tailMap(prefix).entrySet() ) {
+            if( !item.getKey().startsWith(prefix) ) {
+                break;
+            }
+            summaries.add(new ItemSummary(item.getKey(), item.getValue().data.length));
+        }
+        return summaries;
+    }
+
+    @Override
+    public void delete(String key) {
+        items.remove(key);
+    }
+
+    @Override
+    public boolean exists(String key) {
+        return items.containsKey(key);
+    }
+
+    @Override
+    public ItemMetadata head(String key) {
+        return getEntry(key).metadata;
+    }
+
+    /**
+     * @return the number of items currently held.
+     */
+    public int size() {
+        return items.size();
+    }
+
+    private Entry getEntry( String key ) {
+        Entry entry = items.get(key);
+        if( entry == null ) {
+            throw new ItemNotFoundException(key);
+        }
+        return entry;
+    }
+}
@@ -0,0 +1,33 @@
+package com.shareplaylearn.storage;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * What a store knows about an item without reading it.
+ */
+public class ItemMetadata {
+    private final long contentLength;
+    private final Map<String,String> userMetadata;
+
+    public ItemMetadata( long contentLength, Map<String,String> userMetadata ) {
+        this.contentLength = contentLength;
+        this.userMetadata = Collections.unmodifiableMap(new HashMap<>(userMetadata));
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public Map<String, String> getUserMetadata() {
+        return userMetadata;
+    }
+
+    /**
+     * @return the user metadata value, or null if it was not set.
+     */
+    public String getUserMetadata( String key ) {
+        return this.userMetadata.get(key);
+    }
+}
@@ -0,0 +1,106 @@
+package com.shareplaylearn.storage;
+
+import com.shareplaylearn.exceptions.InvalidRangeException;
+import com.shareplaylearn.exceptions.ItemNotFoundException;
+import com.shareplaylearn.exceptions.ItemStoreException;
+import com.shareplaylearn.io.Streams;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The storage the UserItemManager persists item bytes to.
+ * Keys are the full item locations (/root/[user]/[id]/[content type]/[presentation type]/[name]),
+ * and every backend keeps that layout, so listings by prefix work the same everywhere.
+ *
+ * Implementations must be thread-safe - one store is shared by all the managers that use it.
+ * Failures are reported with (unchecked) ItemStoreExceptions.
+ */
+public interface ItemStore {
+
+    /**
+     * The most that's allocated up front to read a stream of a given length into memory (the length is
+     * the caller's word, so the buffer only grows past this as the content actually arrives).
+     */
+    int MAX_INITIAL_BUFFER_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Stores the bytes under the given key, replacing anything already there.
+     * @param userMetadata - small string key/values stored alongside the item (see UploadMetadataFields)
+     */
+    void put( String key, byte[] data, Map<String,String> userMetadata ) throws ItemStoreException;
+
+    /**
+     * Stores everything left in the stream under the given key, replacing anything already there.
+     * The stream is not closed. This default reads the whole stream into memory first,
+     * backends that can write as they read override it, so large items needn't fit in memory.
+     * @param length - the number of bytes in the stream, or negative if that isn't known
+     * @return the number of bytes stored
+     */
+    default long put( String key, InputStream content, long length, Map<String,String> userMetadata )
+            throws ItemStoreException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream(length > 0 ? (int)Math.min(length, MAX_INITIAL_BUFFER_SIZE) : 32);
+        try {
+            Streams.copy(content, data);
+        } catch (IOException e) {
+            throw new ItemStoreException("Failed to read the content for: " + key, e);
+        }
+        put(key, data.toByteArray(), userMetadata);
+        return data.size();
+    }
+
+    /**
+     * Opens the item for reading, the caller must close the returned item.
+     * @throws ItemNotFoundException if nothing is stored under the key
+     */
+    StoredItem get( String key ) throws ItemStoreException;
+
+    /**
+     * Opens a range of the item for reading, the caller must close the returned item.
+     * The stored item's metadata still describes the whole item (so its total length is available).
+     * @param offset - the first byte to read
+     * @param length - the number of bytes to read (clipped to the end of the item), negative to read to the end
+     * @throws ItemNotFoundException if nothing is stored under the key
+     * @throws InvalidRangeException if the offset is past the end of the item
+     */
+    StoredItem get( String key, long offset, long length ) throws ItemStoreException;
+
+    /**
+     * @return every item whose key starts with the given prefix, in key order.
+     * Backends that page their listings fetch the next page as the iteration reaches it.
+     */
+    Iterable<ItemSummary> list( String prefix ) throws ItemStoreException;
+
+    /**
+     * Removes the item, does nothing if there is no item under the key.
+     */
+    void delete( String key ) throws ItemStoreException;
+
+    /**
+     * Removes every item in the collection, skipping any that aren't there (like delete()).
+     * This default deletes them one at a time, backends with a bulk delete override it.
+     * @return key => why it couldn't be deleted, for each key that wasn't (empty if they all were)
+     */
+    default Map<String,ItemStoreException> deleteAll( Collection<String> keys ) throws ItemStoreException {
+        Map<String,ItemStoreException> failures = new HashMap<>();
+        for( String key : keys ) {
+            try {
+                delete(key);
+            } catch (ItemStoreException e) {
+                failures.put(key, e);
+            }
+        }
+        return failures;
+    }
+
+    boolean exists( String key ) throws ItemStoreException;
+
+    /**
+     * @throws ItemNotFoundException if nothing is stored under the key
+     */
+    ItemMetadata head( String key ) throws ItemStoreException;
+}
@@ -0,0 +1,26 @@
+package com.shareplaylearn.storage;
+
+/**
+ * A single entry in a store listing.
+ */
+public class ItemSummary {
+    private final String key;
+    private final long size;
+
+    public ItemSummary( String key, long size ) {
+        this.key = key;
+        this.size = size;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String toString() {
+        return key + " (" + size + " bytes)";
+    }
+}
@@ -0,0 +1,27 @@
+package com.shareplaylearn.storage;
+
+import com.shareplaylearn.exceptions.InvalidRangeException;
+
+/**
+ * Range checks shared by the store backends (and anything else serving ranges).
+ */
+public class Ranges {
+    private Ranges() {
+    }
+
+    /**
+     * @return the number of bytes a read of length bytes at the offset actually covers
+     * (negative length reads to the end).
+     * @throws InvalidRangeException if the offset is past the end of the item
+     */
+    public static long clip( String key, long offset, long length, long totalLength ) {
+        if( offset < 0 ) {
+            throw new IllegalArgumentException("Negative range offset: " + offset + " for: " + key);
+        }
+        if( offset > totalLength || (offset == totalLength && length != 0) ) {
+            throw new InvalidRangeException(key, offset);
+        }
+        long available = totalLength - offset;
+        return length < 0 ? available : Math.min(length, available);
+    }
+}
@@ -0,0 +1,443 @@
+package com.shareplaylearn.storage;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.shareplaylearn.exceptions.InvalidRangeException;
+import com.shareplaylearn.exceptions.ItemNotFoundException;
+import com.shareplaylearn.exceptions.ItemStoreException;
+import com.shareplaylearn.io.Streams;
+import com.shareplaylearn.services.S3ClientService;
+import com.shareplaylearn.services.WorkerPools;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.apache.http.entity.ContentType.APPLICATION_OCTET_STREAM;
+
+/**
+ * Stores items as objects in an S3 bucket.
+ * Streamed items bigger than one part are sent as multipart uploads, with up to maxPartsInFlight parts
+ * uploading at once (on the WorkerPools io pool), so memory use is bounded by the part size, not the item size.
+ * Called on an io pool thread, the parts are uploaded one at a time on that thread, rather than waited on.
+ * Bulk deletes use multi-object delete requests, MAX_KEYS_PER_DELETE keys at a time.
+ */
+public class S3ItemStore
+    implements ItemStore {
+    //S3 won't take parts smaller than this (except the last)
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    public static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_MAX_PARTS_IN_FLIGHT = 4;
+    //the most keys S3 takes in one multi-object delete
+    public static final int MAX_KEYS_PER_DELETE = 1000;
+    private static final int NOT_FOUND = 404;
+    private static final int RANGE_NOT_SATISFIABLE = 416;
+    private static final Logger log = LoggerFactory.getLogger(S3ItemStore.class);
+
+    private final AmazonS3 s3Client;
+    private final String bucket;
+    private volatile int partSize = DEFAULT_PART_SIZE;
+    private volatile int maxPartsInFlight = DEFAULT_MAX_PARTS_IN_FLIGHT;
+
+    /**
+     * Uses the shared client from the S3ClientService (looked up on each call, so the
+     * store can be built before the client is configured).
+     */
+    public S3ItemStore( String bucket ) {
+        this(null, bucket);
+    }
+
+    public S3ItemStore( AmazonS3 s3Client, String bucket ) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public int getPartSize() {
+        return partSize;
+    }
+
+    /**
+     * @param partSize - the size of each part of a multipart upload, at least MIN_PART_SIZE.
+     *                 Streamed items no bigger than this are sent with a single put.
+     */
+    public S3ItemStore setPartSize( int partSize ) {
+        if( partSize < MIN_PART_SIZE ) {
+            throw new IllegalArgumentException("Part size: " + partSize + " is below the S3 minimum of: " + MIN_PART_SIZE);
+        }
+        this.partSize = partSize;
+        return this;
+    }
+
+    public int getMaxPartsInFlight() {
+        return maxPartsInFlight;
+    }
+
+    /**
+     * @param maxPartsInFlight - how many parts of one multipart upload are sent at once.
+     *                         An upload holds at most one more part than this in memory (the one being read).
+     */
+    public S3ItemStore setMaxPartsInFlight( int maxPartsInFlight ) {
+        this.maxPartsInFlight = Math.max(1, maxPartsInFlight);
+        return this;
+    }
+
+    private AmazonS3 client() {
+        if( this.s3Client != null ) {
+            return this.s3Client;
+        }
+        return S3ClientService.getClient();
+    }
+
+    @Override
+    public void put(String key, byte[] data, Map<String, String> userMetadata) {
+        ObjectMetadata metadata = toObjectMetadata(userMetadata);
+        metadata.setContentLength(data.length);
+        try {
+            client().putObject(bucket, key, new ByteArrayInputStream(data), metadata);
+        } catch (AmazonClientException e) {
+            throw translate("put", key, e);
+        }
+    }
+
+    @Override
+    public long put(String key, InputStream content, long length, Map<String, String> userMetadata) {
+        int partSize = this.partSize;
+        if( length >= 0 && length < partSize ) {
+            //known to fit in a single put, so don't allocate a whole part for it
+            byte[] data = readPart(key, content, (int)length);
+            put(key, data, userMetadata);
+            return data.length;
+        }
+        byte[] firstPart = readPart(key, content, partSize);
+        if( firstPart.length < partSize ) {
+            put(key, firstPart, userMetadata);
+            return firstPart.length;
+        }
+        return putMultipart(key, content, firstPart, partSize, userMetadata);
+    }
+
+    /**
+     * Reads parts from the stream, and uploads each as soon as it's read, waiting whenever
+     * maxPartsInFlight parts are still uploading. The upload is aborted if anything fails.
+     */
+    private long putMultipart( String key, InputStream content, byte[] firstPart, int partSize,
+                               Map<String,String> userMetadata ) {
+        String uploadId;
+        try {
+            uploadId = client().initiateMultipartUpload(
+                    new InitiateMultipartUploadRequest(bucket, key, toObjectMetadata(userMetadata))).getUploadId();
+        } catch (AmazonClientException e) {
+            throw translate("put", key, e);
+        }
+        Semaphore inFlight = new Semaphore(maxPartsInFlight);
+        AtomicBoolean partFailed = new AtomicBoolean();
+        List<Future<PartETag>> uploads = new ArrayList<>();
+        boolean completed = false;
+        try {
+            long bytesStored = 0;
+            byte[] part = firstPart;
+            for( int partNumber = 1; part.length > 0 && !partFailed.get(); ++partNumber ) {
+                inFlight.acquire();
+                uploads.add(uploadPart(key, uploadId, partNumber, part, inFlight, partFailed));
+                bytesStored += part.length;
+                if( part.length < partSize ) {
+                    break;
+                }
+                part = readPart(key, content, partSize);
+            }
+            List<PartETag> partETags = new ArrayList<>();
+            for( Future<PartETag> upload : uploads ) {
+                partETags.add(upload.get());
+            }
+            client().completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, partETags));
+            completed = true;
+            log.debug("Stored: " + key + " in " + partETags.size() + " parts, " + bytesStored + " bytes.");
+            return bytesStored;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ItemStoreException("Interrupted while uploading: " + key, e);
+        } catch (ExecutionException e) {
+            if( e.getCause() instanceof AmazonClientException ) {
+                throw translate("put", key, (AmazonClientException) e.getCause());
+            }
+            throw new ItemStoreException("Failed to upload a part of: " + key, e.getCause());
+        } catch (AmazonClientException e) {
+            throw translate("put", key, e);
+        } finally {
+            if( !completed ) {
+                abort(key, uploadId, uploads);
+            }
+        }
+    }
+
+    /**
+     * Uploads the part on the io pool, giving its in-flight permit back when it's done.
+     * On an io pool thread, it's uploaded before returning instead (see WorkerPools.isIoThread()).
+     */
+    private Future<PartETag> uploadPart( String key, String uploadId, int partNumber, byte[] part,
+                                         Semaphore inFlight, AtomicBoolean partFailed ) {
+        Callable<PartETag> upload = () -> {
+            try {
+                UploadPartRequest request = new UploadPartRequest()
+                        .withBucketName(bucket)
+                        .withKey(key)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber)
+                        .withInputStream(new ByteArrayInputStream(part))
+                        .withPartSize(part.length);
+                return client().uploadPart(request).getPartETag();
+            } catch (RuntimeException e) {
+                partFailed.set(true);
+                throw e;
+            } finally {
+                inFlight.release();
+            }
+        };
+        if( WorkerPools.isIoThread() ) {
+            FutureTask<PartETag> inline = new FutureTask<>(upload);
+            inline.run();
+            return inline;
+        }
+        return WorkerPools.io().submit(upload);
+    }
+
+    /**
+     * Waits for the parts still uploading (S3 may keep parts that finish after an abort), then aborts the upload.
+     */
+    private void abort( String key, String uploadId, List<Future<PartETag>> uploads ) {
+        for( Future<PartETag> upload : uploads ) {
+            try {
+                upload.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                //already being reported, or not the first failure
+            }
+        }
+        try {
+            client().abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+        } catch (AmazonClientException e) {
+            log.warn("Failed to abort multipart upload: " + uploadId + " of: " + key + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the next part of the stream, shorter than the part size only if the stream ended.
+     */
+    private static byte[] readPart( String key, InputStream content, int partSize ) {
+        byte[] part = new byte[partSize];
+        try {
+            int bytesRead = Streams.readUpTo(content, part);
+            return bytesRead == partSize ? part : Arrays.copyOf(part, bytesRead);
+        } catch (IOException e) {
+            throw new ItemStoreException("Failed to read the content for: " + key, e);
+        }
+    }
+
+    private static ObjectMetadata toObjectMetadata( Map<String,String> userMetadata ) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentEncoding(APPLICATION_OCTET_STREAM.toString());
+        for( Map.Entry<String,String> entry : userMetadata.entrySet() ) {
+            metadata.addUserMetadata(entry.getKey(), entry.getValue());
+        }
+        return metadata;
+    }
+
+    @Override
+    public StoredItem get(String key) {
+        try {
+            S3Object object = client().getObject(bucket, key);
+            ObjectMetadata metadata = object.getObjectMetadata();
+            return new StoredItem(object.getObjectContent(),
+                    new ItemMetadata(metadata.getContentLength(), metadata.getUserMetadata()));
+        } catch (AmazonClientException e) {
+            throw translate("get", key, e);
+        }
+    }
+
+    @Override
+    public StoredItem get(String key, long offset, long length) {
+        if( offset < 0 ) {
+            throw new IllegalArgumentException("Negative range offset: " + offset + " for: " + key);
+        }
+        GetObjectRequest request = new GetObjectRequest(bucket, key);
+        if( length < 0 ) {
+            request.setRange(offset);
+        } else if( length == 0 ) {
+            //S3 can't express an empty range, so just look the item up
+            ItemMetadata metadata = head(key);
+            Ranges.clip(key, offset, length, metadata.getContentLength());
+            return new StoredItem(new ByteArrayInputStream(new byte[0]), metadata, offset, 0);
+        } else {
+            request.setRange(offset, offset + length - 1);
+        }
+        try {
+            S3Object object = client().getObject(request);
+            ObjectMetadata metadata = object.getObjectMetadata();
+            //for a ranged get, the content length is the length of the range,
+            //the instance length is the length of the whole object.
+            return new StoredItem(object.getObjectContent(),
+                    new ItemMetadata(metadata.getInstanceLength(), metadata.getUserMetadata()),
+                    offset, metadata.getContentLength());
+        } catch (AmazonClientException e) {
+            if( e instanceof AmazonS3Exception
+                    && ((AmazonS3Exception) e).getStatusCode() == RANGE_NOT_SATISFIABLE ) {
+                throw new InvalidRangeException(key, offset);
+            }
+            throw translate("get", key, e);
+        }
+    }
+
+    @Override
+    public Iterable<ItemSummary> list(String prefix) {
+        return () -> new ListingIterator(prefix);
+    }
+
+    @Override
+    public void delete(String key) {
+        try {
+            client().deleteObject(bucket, key);
+        } catch (AmazonClientException e) {
+            throw translate("delete", key, e);
+        }
+    }
+
+    @Override
+    public Map<String,ItemStoreException> deleteAll(Collection<String> keys) {
+        Map<String,ItemStoreException> failures = new HashMap<>();
+        List<String> batch = new ArrayList<>(Math.min(keys.size(), MAX_KEYS_PER_DELETE));
+        for( String key : keys ) {
+            batch.add(key);
+            if( batch.size() == MAX_KEYS_PER_DELETE ) {
+                deleteBatch(batch, failures);
+                batch.clear();
+            }
+        }
+        if( !batch.isEmpty() ) {
+            deleteBatch(batch, failures);
+        }
+        return failures;
+    }
+
+    private void deleteBatch( List<String> keys, Map<String,ItemStoreException> failures ) {
+        List<DeleteObjectsRequest.KeyVersion> keyVersions = new ArrayList<>(keys.size());
+        for( String key : keys ) {
+            keyVersions.add(new DeleteObjectsRequest.KeyVersion(key));
+        }
+        //quiet, so S3 only tells us about the keys it couldn't delete (missing keys count as deleted)
+        DeleteObjectsRequest request = new DeleteObjectsRequest(bucket).withKeys(keyVersions).withQuiet(true);
+        try {
+            client().deleteObjects(request);
+        } catch (MultiObjectDeleteException e) {
+            for( MultiObjectDeleteException.DeleteError error : e.getErrors() ) {
+                failures.put(error.getKey(), new ItemStoreException("S3 delete failed for: " + error.getKey()
+                        + " in bucket: " + bucket + ": " + error.getCode() + " " + error.getMessage()));
+            }
+        } catch (AmazonClientException e) {
+            for( String key : keys ) {
+                failures.put(key, translate("delete", key, e));
+            }
+        }
+    }
+
+    @Override
+    public boolean exists(String key) {
+        try {
+            return client().doesObjectExist(bucket, key);
+        } catch (AmazonClientException e) {
+            throw translate("exists", key, e);
+        }
+    }
+
+    @Override
+    public ItemMetadata head(String key) {
+        try {
+            ObjectMetadata metadata = client().getObjectMetadata(bucket, key);
+            return new ItemMetadata(metadata.getContentLength(), metadata.getUserMetadata());
+        } catch (AmazonClientException e) {
+            throw translate("head", key, e);
+        }
+    }
+
+    private ItemStoreException translate( String operation, String key, AmazonClientException e ) {
+        if( e instanceof AmazonS3Exception && ((AmazonS3Exception) e).getStatusCode() == NOT_FOUND ) {
+            return new ItemNotFoundException(key);
+        }
+        return new ItemStoreException("S3 " + operation + " failed for: " + key + " in bucket: " + bucket, e);
+    }
+
+    /**
+     * Walks the listing one page at a time, only asking S3 for the next page
+     * once the current one has been consumed.
+     */
+    private class ListingIterator
+        implements Iterator<ItemSummary> {
+        private final String prefix;
+        private ObjectListing listing;
+        private Iterator<S3ObjectSummary> page;
+
+        ListingIterator( String prefix ) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                if( listing == null ) {
+                    listing = client().listObjects(bucket, prefix);
+                    page = listing.getObjectSummaries().iterator();
+                }
+                while( !page.hasNext() && listing.isTruncated() ) {
+                    listing = client().listNextBatchOfObjects(listing);
+                    page = listing.getObjectSummaries().iterator();
+                }
+                return page.hasNext();
+            } catch (AmazonClientException e) {
+                throw translate("list", prefix, e);
+            }
+        }
+
+        @Override
+        public ItemSummary next() {
+            if( !hasNext() ) {
+                throw new NoSuchElementException();
+            }
+            S3ObjectSummary summary = page.next();
+            return new ItemSummary(summary.getKey(), summary.getSize());
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.shareplaylearn.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An open item read from a store. Closing it releases the underlying
+ * connection or file handle.
+ * For a ranged read, the content holds only the requested range.
+ */
+public class StoredItem
+    implements Closeable {
+    private final InputStream content;
+    private final ItemMetadata metadata;
+    private final long offset;
+    private final long contentLength;
+
+    public StoredItem( InputStream content, ItemMetadata metadata ) {
+        this(content, metadata, 0, metadata.getContentLength());
+    }
+
+    public StoredItem( InputStream content, ItemMetadata metadata, long offset, long contentLength ) {
+        this.content = content;
+        this.metadata = metadata;
+        this.offset = offset;
+        this.contentLength = contentLength;
+    }
+
+    public InputStream getContent() {
+        return content;
+    }
+
+    public ItemMetadata getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * @return where the content starts in the item (0 unless this is a ranged read).
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the number of bytes in the content.
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * @return the length of the whole item, even if only a range of it was read.
+     */
+    public long getTotalLength() {
+        return metadata.getContentLength();
+    }
+
+    @Override
+    public void close() throws IOException {
+        content.close();
+    }
+}
@@ -0,0 +1,27 @@
+package com.shareplaylearn.services;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Virtual threads, where the JVM has them (Java 21 and up).
+ * This is the Java 21 version, packed under META-INF/versions/21 of the multi-release jar
+ * by the java21 profile. It must keep the same public methods as the Java 8 version.
+ */
+public class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * @param name - the prefix for the threads' names
+     * @return an executor that runs each task on a new virtual thread.
+     */
+    public static ExecutorService newThreadPerTaskExecutor( String name ) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 1).factory());
+    }
+}
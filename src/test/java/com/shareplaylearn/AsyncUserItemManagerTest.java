@@ -0,0 +1,194 @@
+package com.shareplaylearn;
+
+import com.shareplaylearn.exceptions.ItemStoreException;
+import com.shareplaylearn.models.ItemSchema;
+import com.shareplaylearn.services.PresentationQueue;
+import com.shareplaylearn.services.WorkerPools;
+import com.shareplaylearn.storage.InMemoryItemStore;
+import com.shareplaylearn.storage.StoredItem;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.io.ByteArrayInputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsyncUserItemManagerTest
+{
+    private final CountDownLatch getStarted = new CountDownLatch(1);
+    private final CountDownLatch getInterrupted = new CountDownLatch(1);
+    private volatile boolean blockGets = false;
+    private volatile Thread lastGetThread;
+    //blocks reads (when asked to) until they're interrupted
+    private final InMemoryItemStore itemStore = new InMemoryItemStore() {
+        @Override
+        public StoredItem get(String key) {
+            lastGetThread = Thread.currentThread();
+            if( blockGets ) {
+                getStarted.countDown();
+                try {
+                    new CountDownLatch(1).await();
+                } catch (InterruptedException e) {
+                    getInterrupted.countDown();
+                    throw new ItemStoreException("Interrupted reading: " + key, e);
+                }
+            }
+            return super.get(key);
+        }
+    };
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+    private final AsyncUserItemManager asyncManager = new AsyncUserItemManager(
+            new UserItemManager("unit_test_user", "1234", itemStore), executor, executor);
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testAddGetListDelete() throws Exception {
+        byte[] text = "just some text".getBytes("UTF-8");
+        asyncManager.addItem("notes.txt", text).get(10, TimeUnit.SECONDS);
+        assertEquals(1, asyncManager.getItemList().get(10, TimeUnit.SECONDS).size());
+        //cached now, so there's nothing to wait for
+        assertTrue(asyncManager.getItemList().isDone());
+        assertArrayEquals(text, asyncManager.getItem(ItemSchema.UNKNOWN_CONTENT_TYPE,
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "notes.txt", "").get(10, TimeUnit.SECONDS));
+        assertTrue(asyncManager.deleteItemAtLocation(ItemSchema.UNKNOWN_CONTENT_TYPE,
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "notes.txt").get(10, TimeUnit.SECONDS));
+        assertTrue(asyncManager.getItemList().get(10, TimeUnit.SECONDS).isEmpty());
+
+        //failures come back as the exception the blocking call throws
+        try {
+            asyncManager.getItem(ItemSchema.UNKNOWN_CONTENT_TYPE,
+                    ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "notes.txt", "").get(10, TimeUnit.SECONDS);
+            fail("Expected the deleted item to be missing.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ItemStoreException);
+        }
+    }
+
+    @Test
+    public void testCancelInterruptsTheCall() throws Exception {
+        asyncManager.addItem("notes.txt", "just some text".getBytes("UTF-8")).get(10, TimeUnit.SECONDS);
+        blockGets = true;
+        CompletableFuture<byte[]> item = asyncManager.getItem(ItemSchema.UNKNOWN_CONTENT_TYPE,
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "notes.txt", "");
+        assertTrue(getStarted.await(10, TimeUnit.SECONDS));
+        assertTrue(item.cancel(true));
+        assertTrue(getInterrupted.await(10, TimeUnit.SECONDS));
+        assertTrue(item.isCancelled());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        asyncManager.addItem("notes.txt", "just some text".getBytes("UTF-8")).get(10, TimeUnit.SECONDS);
+        blockGets = true;
+        asyncManager.setTimeout(50, TimeUnit.MILLISECONDS);
+        CompletableFuture<byte[]> item = asyncManager.getItem(ItemSchema.UNKNOWN_CONTENT_TYPE,
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "notes.txt", "");
+        try {
+            item.get(10, TimeUnit.SECONDS);
+            fail("Expected the call to time out.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertTrue(getInterrupted.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSaturatedDefaultsRejectRatherThanBlock() throws Exception {
+        asyncManager.addItem("notes.txt", "just some text".getBytes("UTF-8")).get(10, TimeUnit.SECONDS);
+        //a pool like the defaults rejects calls once it's saturated
+        ExecutorService rejectingPool = WorkerPools.newRejectingPool("test-async", 1, 1);
+        try {
+            AsyncUserItemManager saturated = new AsyncUserItemManager(asyncManager.getUserItemManager(),
+                    rejectingPool, rejectingPool);
+            blockGets = true;
+            CompletableFuture<byte[]> running = saturated.getItem(ItemSchema.UNKNOWN_CONTENT_TYPE,
+                    ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "notes.txt", "");
+            assertTrue(getStarted.await(10, TimeUnit.SECONDS));
+            CompletableFuture<byte[]> queued = saturated.getItem(ItemSchema.UNKNOWN_CONTENT_TYPE,
+                    ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "notes.txt", "");
+            CompletableFuture<byte[]> rejected = saturated.getItem(ItemSchema.UNKNOWN_CONTENT_TYPE,
+                    ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "notes.txt", "");
+            assertTrue(rejected.isCompletedExceptionally());
+            assertFalse(running.isDone());
+            assertFalse(queued.isDone());
+        } finally {
+            rejectingPool.shutdownNow();
+        }
+        assertTrue(getInterrupted.await(10, TimeUnit.SECONDS));
+
+        //the defaults run calls on their own threads
+        blockGets = false;
+        new AsyncUserItemManager(asyncManager.getUserItemManager()).getItem(ItemSchema.UNKNOWN_CONTENT_TYPE,
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "notes.txt", "").get(10, TimeUnit.SECONDS);
+        assertTrue(lastGetThread.getName().startsWith("uim-async-io"));
+    }
+
+    @Test
+    public void testCallersInterruptIsKept() throws Exception {
+        //a call run on the caller's thread leaves the caller's own interrupt alone
+        AsyncUserItemManager callerRuns = new AsyncUserItemManager(asyncManager.getUserItemManager(),
+                Runnable::run, Runnable::run);
+        Thread.currentThread().interrupt();
+        try {
+            assertTrue(callerRuns.getItemList().isDone());
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    @Test
+    public void testPresentationsMadeOnReadOnTheIoPool() throws Exception {
+        AtomicBoolean failing = new AtomicBoolean(true);
+        InMemoryItemStore failingStore = new InMemoryItemStore() {
+            @Override
+            public void put(String key, byte[] data, Map<String, String> userMetadata) {
+                if( key.contains("/preview/") && failing.get() ) {
+                    throw new ItemStoreException("Simulated failure writing: " + key);
+                }
+                super.put(key, data, userMetadata);
+            }
+        };
+        PresentationQueue queue = new PresentationQueue(1, 1, 10, 16 * 1024 * 1024);
+        PresentationQueue.register(failingStore, queue);
+        //one io thread, so a read that waits on the io pool for its presentation writes would wait forever
+        WorkerPools.setIoPool(WorkerPools.newBoundedPool("test-io", 1, 16));
+        try {
+            UserItemManager deferringManager = new UserItemManager("unit_test_user", "1234", failingStore)
+                    .setDeferPresentations(true);
+            deferringManager.addItem("pctechsupportcat.jpg",
+                    Files.readAllBytes(FileSystems.getDefault().getPath("test_jpegs/pctechsupportcat.jpg")));
+            assertTrue(queue.awaitIdle(10000));
+            assertEquals(1, queue.getFailedCount());
+            failing.set(false);
+
+            byte[] preview = new AsyncUserItemManager(deferringManager).getItem(ItemSchema.IMAGE_CONTENT_TYPE,
+                    ItemSchema.PresentationType.PREVIEW_PRESENTATION_TYPE, "pctechsupportcat.jpg", null)
+                    .get(10, TimeUnit.SECONDS);
+            assertEquals(200, ImageIO.read(new ByteArrayInputStream(preview)).getWidth());
+        } finally {
+            queue.shutdown();
+            WorkerPools.shutdown();
+        }
+    }
+}
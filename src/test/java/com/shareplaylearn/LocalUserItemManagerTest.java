@@ -0,0 +1,736 @@
+package com.shareplaylearn;
+
+import com.shareplaylearn.exceptions.InternalErrorException;
+import com.shareplaylearn.exceptions.ItemNotFoundException;
+import com.shareplaylearn.exceptions.ItemStoreException;
+import com.shareplaylearn.exceptions.QuotaExceededException;
+import com.shareplaylearn.exceptions.UnsupportedEncodingException;
+import com.shareplaylearn.io.ContentCodecs;
+import com.shareplaylearn.io.EncodedInputStream;
+import com.shareplaylearn.io.Streams;
+import com.shareplaylearn.models.AddResult;
+import com.shareplaylearn.models.DeleteResult;
+import com.shareplaylearn.models.ItemRange;
+import com.shareplaylearn.models.ItemSchema;
+import com.shareplaylearn.models.UploadMetadataFields;
+import com.shareplaylearn.models.UserItem;
+import com.shareplaylearn.services.ImagePreprocessorPlugin;
+import com.shareplaylearn.services.PresentationQueue;
+import com.shareplaylearn.services.QuotaService;
+import com.shareplaylearn.services.UploadPreprocessor;
+import com.shareplaylearn.storage.BlobStore;
+import com.shareplaylearn.storage.InMemoryItemStore;
+import com.shareplaylearn.storage.ItemMetadata;
+import com.shareplaylearn.storage.ItemStore;
+import com.shareplaylearn.storage.ItemSummary;
+import com.shareplaylearn.storage.StoredItem;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Exercises the UserItemManager against a local (in-memory) item store,
+ * so it runs without S3 credentials.
+ */
+public class LocalUserItemManagerTest
+{
+    private static final String TEST_IMAGE = "test_jpegs/pctechsupportcat.jpg";
+    private static final Logger log = LoggerFactory.getLogger(LocalUserItemManagerTest.class);
+    private final InMemoryItemStore itemStore = new InMemoryItemStore();
+    private final UserItemManager userItemManager = newManager(itemStore);
+
+    /**
+     * An in-memory store that counts the calls the tests look for.
+     */
+    private static class CountingItemStore
+        extends InMemoryItemStore {
+        final AtomicLong bytesWritten = new AtomicLong();
+        final AtomicInteger streamedPuts = new AtomicInteger();
+        final AtomicInteger originalReads = new AtomicInteger();
+        final AtomicInteger heads = new AtomicInteger();
+        final AtomicInteger bulkDeletes = new AtomicInteger();
+
+        @Override
+        public void put(String key, byte[] data, Map<String, String> userMetadata) {
+            bytesWritten.addAndGet(data.length);
+            super.put(key, data, userMetadata);
+        }
+
+        @Override
+        public long put(String key, InputStream content, long length, Map<String, String> userMetadata) {
+            streamedPuts.incrementAndGet();
+            return super.put(key, content, length, userMetadata);
+        }
+
+        @Override
+        public StoredItem get(String key) {
+            if( key.contains("/original/") ) {
+                originalReads.incrementAndGet();
+            }
+            return super.get(key);
+        }
+
+        @Override
+        public ItemMetadata head(String key) {
+            heads.incrementAndGet();
+            return super.head(key);
+        }
+
+        @Override
+        public Map<String, ItemStoreException> deleteAll(Collection<String> keys) {
+            bulkDeletes.incrementAndGet();
+            return super.deleteAll(keys);
+        }
+    }
+
+    /**
+     * @return an in-memory store that fails to write the keys failsOn accepts (while it does).
+     */
+    private static InMemoryItemStore failingStore( Predicate<String> failsOn ) {
+        return new InMemoryItemStore() {
+            @Override
+            public void put(String key, byte[] data, Map<String, String> userMetadata) {
+                if( failsOn.test(key) ) {
+                    throw new ItemStoreException("Simulated failure writing: " + key + ": disk full");
+                }
+                super.put(key, data, userMetadata);
+            }
+        };
+    }
+
+    private static UserItemManager newManager( ItemStore itemStore ) {
+        return new UserItemManager("unit_test_user", "1234", itemStore);
+    }
+
+    private static UserItemManager newManager( ItemStore itemStore, UploadPreprocessor uploadPreprocessor ) {
+        return new UserItemManager("unit_test_user", "1234", itemStore, uploadPreprocessor);
+    }
+
+    private static byte[] readTestImage() throws IOException {
+        return Files.readAllBytes(FileSystems.getDefault().getPath(TEST_IMAGE));
+    }
+
+    @Test
+    public void testAddGetDeleteImage() throws IOException, InternalErrorException, QuotaExceededException,
+            UnsupportedEncodingException {
+        byte[] testFileBytes = readTestImage();
+        userItemManager.addItem("pctechsupportcat.jpg", testFileBytes);
+
+        List<UserItem> userItemList = userItemManager.getItemList();
+        log.debug("user item list is now: " + userItemList);
+        assertEquals(1, userItemList.size());
+        //the second listing comes from the cache
+        long hits = userItemManager.getItemListCache().getHitCount();
+        assertEquals(1, userItemManager.getItemList().size());
+        assertEquals(hits + 1, userItemManager.getItemListCache().getHitCount());
+        UserItem userItem = userItemList.get(0);
+        assertEquals(ItemSchema.IMAGE_CONTENT_TYPE, userItem.getType());
+        assertEquals("pctechsupportcat", userItem.getAttr("display_name"));
+        assertNotNull(userItem.getPreviewLocation());
+        //the test image is 600px wide, so it gets the small rung of the size ladder too, but nothing wider
+        UserItem.UserItemLocation small = userItem.getLocation(ItemSchema.PresentationType.SMALL_PRESENTATION_TYPE);
+        assertNotNull(small);
+        assertEquals(2, userItem.getSizes().size());
+        assertEquals(small.fullPath, userItem.getLocationForWidth(300).fullPath);
+        assertEquals(userItem.getOriginalLocation().fullPath, userItem.getLocationForWidth(500).fullPath);
+
+        byte[] original = userItemManager.getItem(userItem.getType(),
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE,
+                userItem.getOriginalLocation().itemName, null);
+        assertArrayEquals(testFileBytes, original);
+        //read again, this time from the content cache
+        long contentHits = userItemManager.getContentCache().getHitCount();
+        assertArrayEquals(testFileBytes, userItemManager.getItem(userItem.getType(),
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE,
+                userItem.getOriginalLocation().itemName, null));
+        assertEquals(contentHits + 1, userItemManager.getContentCache().getHitCount());
+
+        for( ItemSchema.PresentationType presentationType : ItemSchema.PRESENTATION_TYPES ) {
+            UserItem.UserItemLocation location = presentationType.equals(
+                    ItemSchema.PresentationType.PREVIEW_PRESENTATION_TYPE) ? userItem.getPreviewLocation()
+                    : presentationType.equals(ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE)
+                    ? userItem.getOriginalLocation() : userItem.getPreferredLocation();
+            userItemManager.deleteItemAtLocation(userItem.getType(), presentationType, location.itemName);
+        }
+        assertTrue(userItemManager.getItemList().isEmpty());
+        assertEquals(0, itemStore.size());
+        assertEquals(0, userItemManager.getContentCache().size());
+    }
+
+    @Test
+    public void testFailedPresentationWriteIsRolledBack() throws IOException, QuotaExceededException {
+        InMemoryItemStore failingStore = failingStore(key -> key.contains("/preview/"));
+        UserItemManager failingManager = newManager(failingStore);
+        byte[] testFileBytes = readTestImage();
+        try {
+            failingManager.addItem("pctechsupportcat.jpg", testFileBytes);
+            fail("Expected the upload to fail.");
+        } catch (InternalErrorException e) {
+            log.debug("Upload failed as expected: " + e.getMessage());
+        }
+        assertEquals(0, failingStore.size());
+    }
+
+    @Test
+    public void testDeferredPresentations() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger failuresLeft = new AtomicInteger(1);
+        InMemoryItemStore slowStore = new InMemoryItemStore() {
+            @Override
+            public void put(String key, byte[] data, Map<String, String> userMetadata) {
+                if( key.contains("/preview/") ) {
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if( failuresLeft.getAndDecrement() > 0 ) {
+                        throw new ItemStoreException("Simulated failure writing: " + key);
+                    }
+                }
+                super.put(key, data, userMetadata);
+            }
+        };
+        PresentationQueue queue = new PresentationQueue(1, 3, 10, 16 * 1024 * 1024);
+        PresentationQueue.register(slowStore, queue);
+        UserItemManager deferringManager = newManager(slowStore)
+                .setDeferPresentations(true);
+        byte[] testFileBytes = readTestImage();
+        try {
+            deferringManager.addItem("pctechsupportcat.jpg", testFileBytes);
+
+            //the original is there (and preferred, for now), the rest is still being made
+            List<UserItem> userItemList = deferringManager.getItemList();
+            assertEquals(1, userItemList.size());
+            UserItem userItem = userItemList.get(0);
+            assertEquals(ItemSchema.IMAGE_CONTENT_TYPE, userItem.getType());
+            assertEquals("true", userItem.getAttr(UserItem.PENDING_ATTR));
+            assertNull(userItem.getPreviewLocation());
+            assertEquals(userItem.getOriginalLocation().fullPath, userItem.getPreferredLocation().fullPath);
+            assertEquals(userItem.getOriginalLocation().fullPath, userItem.getLocationForWidth(200).fullPath);
+
+            //the first attempt fails, and is retried
+            release.countDown();
+            assertTrue(queue.awaitIdle(10000));
+            assertEquals(1, queue.getRetryCount());
+            assertEquals(1, queue.getCompletedCount());
+            userItem = deferringManager.getItemList().get(0);
+            assertNull(userItem.getAttr(UserItem.PENDING_ATTR));
+            assertNotNull(userItem.getPreviewLocation());
+            assertNotNull(userItem.getLocation(ItemSchema.PresentationType.SMALL_PRESENTATION_TYPE));
+            //the original, the preview, and the small presentation
+            assertEquals(3, slowStore.size());
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void testNothingToDeriveIsOnlyProcessedOnce() throws Exception {
+        CountingItemStore countingStore = new CountingItemStore();
+        PresentationQueue queue = new PresentationQueue(1, 1, 10, 16 * 1024 * 1024);
+        PresentationQueue.register(countingStore, queue);
+        UserItemManager deferringManager = newManager(countingStore)
+                .setDeferPresentations(true);
+        //looks like a jpeg, but won't decode
+        byte[] brokenImage = new byte[4096];
+        new Random(7).nextBytes(brokenImage);
+        brokenImage[0] = (byte) 0xFF;
+        brokenImage[1] = (byte) 0xD8;
+        brokenImage[2] = (byte) 0xFF;
+        try {
+            deferringManager.addItem("broken.jpg", brokenImage);
+            deferringManager.addItem("notes.txt", "just some text".getBytes("UTF-8"));
+            assertTrue(queue.awaitIdle(10000));
+            for( int i = 0; i < 3; ++i ) {
+                assertPreviewMissing(deferringManager, ItemSchema.IMAGE_CONTENT_TYPE, "broken.jpg");
+                assertPreviewMissing(deferringManager, ItemSchema.UNKNOWN_CONTENT_TYPE, "notes.txt");
+            }
+            assertEquals(0, countingStore.originalReads.get());
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    private static void assertPreviewMissing( UserItemManager userItemManager, String contentType, String name )
+            throws Exception {
+        try {
+            userItemManager.getItem(contentType, ItemSchema.PresentationType.PREVIEW_PRESENTATION_TYPE, name, null);
+            fail("Expected no preview of: " + name);
+        } catch (ItemNotFoundException e) {
+            log.debug("Preview not found, as expected: " + e.getMessage());
+        }
+    }
+
+    @Test
+    public void testDeferredPresentationsAreMadeOnRead() throws Exception {
+        AtomicBoolean failing = new AtomicBoolean(true);
+        InMemoryItemStore failingStore = failingStore(key -> key.contains("/preview/") && failing.get());
+        PresentationQueue queue = new PresentationQueue(1, 1, 10, 16 * 1024 * 1024);
+        PresentationQueue.register(failingStore, queue);
+        UserItemManager deferringManager = newManager(failingStore)
+                .setDeferPresentations(true);
+        byte[] testFileBytes = readTestImage();
+        try {
+            deferringManager.addItem("pctechsupportcat.jpg", testFileBytes);
+            assertTrue(queue.awaitIdle(10000));
+            assertEquals(1, queue.getFailedCount());
+            UserItem userItem = deferringManager.getItemList().get(0);
+            assertNull(userItem.getAttr(UserItem.PENDING_ATTR));
+            assertNull(userItem.getPreviewLocation());
+
+            //the queue gave up, so the first read makes it
+            failing.set(false);
+            byte[] preview = deferringManager.getItem(ItemSchema.IMAGE_CONTENT_TYPE,
+                    ItemSchema.PresentationType.PREVIEW_PRESENTATION_TYPE, "pctechsupportcat.jpg", null);
+            assertEquals(200, ImageIO.read(new ByteArrayInputStream(preview)).getWidth());
+            assertNotNull(deferringManager.getItemList().get(0).getPreviewLocation());
+            //this one is too big to be made for this image, so it stays missing
+            try {
+                deferringManager.getItem(ItemSchema.IMAGE_CONTENT_TYPE,
+                        ItemSchema.PresentationType.LARGE_PRESENTATION_TYPE, "pctechsupportcat.jpg", null);
+                fail("Expected no large presentation of a small image.");
+            } catch (ItemNotFoundException e) {
+                log.debug("Large presentation not found, as expected: " + e.getMessage());
+            }
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void testDeduplicatedUploads() throws Exception {
+        CountingItemStore countingStore = new CountingItemStore();
+        UserItemManager first = newManager(countingStore).setDeduplicate(true);
+        UserItemManager second = new UserItemManager("other_test_user", "5678", countingStore).setDeduplicate(true);
+        byte[] testFileBytes = readTestImage();
+
+        first.addItem("pctechsupportcat.jpg", testFileBytes);
+        long firstUploadBytes = countingStore.bytesWritten.get();
+        assertTrue(firstUploadBytes > testFileBytes.length);
+
+        //the same bytes again, under another name, costs nothing but references
+        second.addItem("samecat.jpg", testFileBytes);
+        assertEquals(firstUploadBytes, countingStore.bytesWritten.get());
+        UserItem userItem = second.getItemList().get(0);
+        assertEquals("samecat", userItem.getAttr("display_name"));
+        assertNotNull(userItem.getPreviewLocation());
+        assertArrayEquals(testFileBytes, second.getItem(ItemSchema.IMAGE_CONTENT_TYPE,
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "samecat.jpg", null));
+        ItemRange range = second.getItemRange(ItemSchema.IMAGE_CONTENT_TYPE,
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "samecat.jpg", 10, 20);
+        assertEquals(testFileBytes.length, range.getTotalLength());
+        assertEquals(testFileBytes[10], range.getData()[0]);
+
+        //the shared copy stays until the last reference to it is gone
+        for( ItemSchema.PresentationType presentationType : ItemSchema.PRESENTATION_TYPES ) {
+            first.deleteItemAtLocation(ItemSchema.IMAGE_CONTENT_TYPE, presentationType, "pctechsupportcat.jpg");
+        }
+        assertTrue(first.getItemList().isEmpty());
+        assertArrayEquals(testFileBytes, second.getItem(ItemSchema.IMAGE_CONTENT_TYPE,
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "samecat.jpg", null));
+        byte[] preview = second.getItem(ItemSchema.IMAGE_CONTENT_TYPE,
+                ItemSchema.PresentationType.PREVIEW_PRESENTATION_TYPE, "samecat.jpg", null);
+        assertEquals(200, ImageIO.read(new ByteArrayInputStream(preview)).getWidth());
+        for( ItemSchema.PresentationType presentationType : ItemSchema.PRESENTATION_TYPES ) {
+            second.deleteItemAtLocation(ItemSchema.IMAGE_CONTENT_TYPE, presentationType, "samecat.jpg");
+        }
+        assertEquals(0, countingStore.size());
+    }
+
+    @Test
+    public void testDeduplicationRacingAnotherProcess() throws Exception {
+        byte[] testFileBytes = readTestImage();
+        String blobDir = BlobStore.BLOB_DIR + BlobStore.hash(testFileBytes) + "/";
+        //stands in for another process, releasing the last reference as a reference is added (and vice versa)
+        AtomicBoolean releaseOnReference = new AtomicBoolean();
+        AtomicBoolean referenceOnRelease = new AtomicBoolean();
+        InMemoryItemStore racingStore = new InMemoryItemStore() {
+            @Override
+            public void put(String key, byte[] data, Map<String, String> userMetadata) {
+                super.put(key, data, userMetadata);
+                if( key.startsWith(blobDir + "refs/") && releaseOnReference.getAndSet(false) ) {
+                    for( ItemSummary blob : list(blobDir) ) {
+                        if( !blob.getKey().startsWith(blobDir + "refs/") ) {
+                            super.delete(blob.getKey());
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void delete(String key) {
+                super.delete(key);
+                if( key.equals(blobDir + "manifest") && referenceOnRelease.getAndSet(false) ) {
+                    super.put(blobDir + "refs/root/other/process", new byte[0], Collections.emptyMap());
+                }
+            }
+        };
+        UserItemManager first = newManager(racingStore).setDeduplicate(true);
+        UserItemManager second = new UserItemManager("other_test_user", "5678", racingStore).setDeduplicate(true);
+        first.addItem("pctechsupportcat.jpg", testFileBytes);
+
+        //the content is gone by the time the reference is in, so it's stored again
+        releaseOnReference.set(true);
+        second.addItem("samecat.jpg", testFileBytes);
+        assertFalse(releaseOnReference.get());
+        assertArrayEquals(testFileBytes, second.getItem(ItemSchema.IMAGE_CONTENT_TYPE,
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "samecat.jpg", null));
+        assertArrayEquals(testFileBytes, first.getItem(ItemSchema.IMAGE_CONTENT_TYPE,
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "pctechsupportcat.jpg", null));
+
+        //a reference added as the last one is released keeps the content
+        first.deleteAllItems();
+        referenceOnRelease.set(true);
+        second.deleteAllItems();
+        assertFalse(referenceOnRelease.get());
+        assertTrue(racingStore.exists(blobDir + "manifest"));
+        assertTrue(racingStore.exists(blobDir + ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE));
+    }
+
+    @Test
+    public void testStreamingGetItem() throws IOException, InternalErrorException, QuotaExceededException,
+            UnsupportedEncodingException {
+        byte[] testFileBytes = readTestImage();
+        userItemManager.addItem("pctechsupportcat.jpg", testFileBytes);
+
+        ByteArrayOutputStream identity = new ByteArrayOutputStream();
+        long written = userItemManager.getItem(ItemSchema.IMAGE_CONTENT_TYPE,
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "pctechsupportcat.jpg", null, identity);
+        assertEquals(testFileBytes.length, written);
+        assertArrayEquals(testFileBytes, identity.toByteArray());
+
+        ByteArrayOutputStream base64 = new ByteArrayOutputStream();
+        userItemManager.getItem(ItemSchema.IMAGE_CONTENT_TYPE,
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "pctechsupportcat.jpg",
+                UserItemManager.AvailableEncodings.BASE64, base64);
+        assertArrayEquals(Base64.getEncoder().encode(testFileBytes), base64.toByteArray());
+        assertArrayEquals(base64.toByteArray(), userItemManager.getItem(ItemSchema.IMAGE_CONTENT_TYPE,
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "pctechsupportcat.jpg",
+                UserItemManager.AvailableEncodings.BASE64));
+    }
+
+    @Test
+    public void testGetItemLocations() {
+        String userDir = userItemManager.getUserDir();
+        Map<String,String> metadata = new HashMap<>();
+        for( int i = 0; i < 1500; ++i ) {
+            itemStore.put(userDir + "unknown/original/item" + i + ".txt", new byte[1], metadata);
+        }
+        itemStore.put(userDir + "image/preview/cat.jpg", new byte[1], metadata);
+        //folder markers and unrecognized types are left out
+        itemStore.put(userDir + "image/preview/", new byte[0], metadata);
+        itemStore.put(userDir + "video/original/cat.mp4", new byte[1], metadata);
+
+        HashMap<String,HashMap<ItemSchema.PresentationType,List<UserItem.UserItemLocation>>> itemLocations =
+                userItemManager.getItemLocations();
+        assertEquals(1500, itemLocations.get(ItemSchema.UNKNOWN_CONTENT_TYPE)
+                .get(ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE).size());
+        List<UserItem.UserItemLocation> previews = itemLocations.get(ItemSchema.IMAGE_CONTENT_TYPE)
+                .get(ItemSchema.PresentationType.PREVIEW_PRESENTATION_TYPE);
+        assertEquals(1, previews.size());
+        assertEquals("cat.jpg", previews.get(0).itemName);
+        assertEquals("/unit_test_user/1234/image/preview/cat.jpg", previews.get(0).fullPath);
+        assertEquals(1, itemLocations.get(ItemSchema.IMAGE_CONTENT_TYPE).size());
+    }
+
+    @Test
+    public void testAddUnknownItem() throws IOException, InternalErrorException, QuotaExceededException,
+            UnsupportedEncodingException {
+        byte[] text = "just some text".getBytes("UTF-8");
+        userItemManager.addItem("notes.txt", text);
+        List<UserItem> userItemList = userItemManager.getItemList();
+        assertEquals(1, userItemList.size());
+        assertEquals(ItemSchema.UNKNOWN_CONTENT_TYPE, userItemList.get(0).getType());
+        assertArrayEquals(text, userItemManager.getItem(ItemSchema.UNKNOWN_CONTENT_TYPE,
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "notes.txt", ""));
+
+        ItemRange range = userItemManager.getItemRange(ItemSchema.UNKNOWN_CONTENT_TYPE,
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "notes.txt", 5, 4);
+        assertArrayEquals("some".getBytes("UTF-8"), range.getData());
+        assertEquals("bytes 5-8/" + text.length, range.getContentRange());
+        ByteArrayOutputStream tail = new ByteArrayOutputStream();
+        range = userItemManager.getItemRange(ItemSchema.UNKNOWN_CONTENT_TYPE,
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "notes.txt", 10, -1, tail);
+        assertEquals(4, range.getLength());
+        assertArrayEquals("text".getBytes("UTF-8"), tail.toByteArray());
+
+        assertTrue(userItemManager.deleteItemAtLocation(ItemSchema.UNKNOWN_CONTENT_TYPE,
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "notes.txt"));
+        assertFalse(userItemManager.deleteItemAtLocation(ItemSchema.UNKNOWN_CONTENT_TYPE,
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "notes.txt"));
+    }
+
+    @Test
+    public void testCompressedUnknownItems() throws Exception {
+        userItemManager.setCompressUnknownItems(true);
+        StringBuilder lines = new StringBuilder();
+        for( int i = 0; i < 500; ++i ) {
+            lines.append("line ").append(i).append(": nothing much happened\n");
+        }
+        byte[] text = lines.toString().getBytes("UTF-8");
+        userItemManager.addItem("server.log", text);
+        String location = userItemManager.getUserDir() + "unknown/original/server.log";
+        assertTrue(itemStore.head(location).getContentLength() < text.length / 2);
+        assertEquals(ContentCodecs.GZIP, itemStore.head(location).getUserMetadata(UploadMetadataFields.CONTENT_CODEC));
+
+        try( EncodedInputStream passThrough = userItemManager.getItemStream(ItemSchema.UNKNOWN_CONTENT_TYPE,
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "server.log", "",
+                Collections.singleton(ContentCodecs.GZIP)) ) {
+            assertEquals(ContentCodecs.GZIP, passThrough.getContentCodec());
+            byte[] decoded = new byte[text.length];
+            InputStream gunzipped = ContentCodecs.decode(passThrough, ContentCodecs.GZIP);
+            Streams.readFully(gunzipped, decoded);
+            assertArrayEquals(text, decoded);
+            assertEquals(-1, gunzipped.read());
+        }
+        assertArrayEquals(text, userItemManager.getItem(ItemSchema.UNKNOWN_CONTENT_TYPE,
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "server.log", ""));
+        ItemRange range = userItemManager.getItemRange(ItemSchema.UNKNOWN_CONTENT_TYPE,
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "server.log", text.length - 10, 10);
+        assertEquals(text.length, range.getTotalLength());
+        assertArrayEquals(Arrays.copyOfRange(text, text.length - 10, text.length), range.getData());
+
+        //not worth decompressing on every read, so stored as is
+        byte[] noise = new byte[4096];
+        new Random(42).nextBytes(noise);
+        userItemManager.addItem("noise.bin", noise);
+        String noiseLocation = userItemManager.getUserDir() + "unknown/original/noise.bin";
+        assertEquals(noise.length, itemStore.head(noiseLocation).getContentLength());
+        assertNull(itemStore.head(noiseLocation).getUserMetadata(UploadMetadataFields.CONTENT_CODEC));
+        try( EncodedInputStream stream = userItemManager.getItemStream(ItemSchema.UNKNOWN_CONTENT_TYPE,
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "noise.bin", "",
+                Collections.singleton(ContentCodecs.GZIP)) ) {
+            assertNull(stream.getContentCodec());
+        }
+    }
+
+    @Test
+    public void testStreamedUploads() throws Exception {
+        CountingItemStore streamingStore = new CountingItemStore();
+        UserItemManager streamingManager = newManager(streamingStore);
+
+        //too big to be read in with the header, and no plugin takes it, so it's streamed to the store
+        byte[] data = new byte[3 * UserItemManager.STREAM_HEADER_SIZE + 17];
+        new Random(7).nextBytes(data);
+        streamingManager.addItem("data.bin", new ByteArrayInputStream(data), -1);
+        assertEquals(1, streamingStore.streamedPuts.get());
+        assertArrayEquals(data, streamingManager.getItem(ItemSchema.UNKNOWN_CONTENT_TYPE,
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "data.bin", ""));
+        assertEquals(ItemSchema.UNKNOWN_CONTENT_TYPE, streamingManager.getItemList().get(0).getType());
+
+        //images are read in to make their presentations
+        byte[] testFileBytes = readTestImage();
+        streamingManager.addItem("pctechsupportcat.jpg", new ByteArrayInputStream(testFileBytes), testFileBytes.length);
+        assertEquals(1, streamingStore.streamedPuts.get());
+        UserItem image = null;
+        for( UserItem userItem : streamingManager.getItemList() ) {
+            if( userItem.getType().equals(ItemSchema.IMAGE_CONTENT_TYPE) ) {
+                image = userItem;
+            }
+        }
+        assertNotNull(image);
+        assertNotNull(image.getPreviewLocation());
+        assertArrayEquals(testFileBytes, streamingManager.getItem(ItemSchema.IMAGE_CONTENT_TYPE,
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "pctechsupportcat.jpg", ""));
+
+        //small uploads are added from memory
+        byte[] text = "short".getBytes("UTF-8");
+        streamingManager.addItem("short.txt", new ByteArrayInputStream(text), -1);
+        assertEquals(1, streamingStore.streamedPuts.get());
+        assertArrayEquals(text, streamingManager.getItem(ItemSchema.UNKNOWN_CONTENT_TYPE,
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "short.txt", ""));
+    }
+
+    @Test
+    public void testBulkDeletes() throws Exception {
+        CountingItemStore countingStore = new CountingItemStore();
+        UserItemManager manager = newManager(countingStore);
+        byte[] testFileBytes = readTestImage();
+        manager.addItem("pctechsupportcat.jpg", testFileBytes);
+        int presentations = countingStore.size();
+        assertTrue(presentations > 1);
+
+        List<DeleteResult> results = manager.deleteItem("pctechsupportcat.jpg", ItemSchema.IMAGE_CONTENT_TYPE);
+        assertEquals(presentations, results.size());
+        for( DeleteResult result : results ) {
+            assertEquals(DeleteResult.Status.DELETED, result.getStatus());
+        }
+        assertEquals(1, countingStore.bulkDeletes.get());
+        assertEquals(0, countingStore.heads.get());
+        assertEquals(0, countingStore.size());
+        assertTrue(manager.getItemList().isEmpty());
+        assertTrue(manager.deleteItem("pctechsupportcat.jpg", ItemSchema.IMAGE_CONTENT_TYPE).isEmpty());
+
+        manager.addItem("pctechsupportcat.jpg", testFileBytes);
+        manager.addItem("notes.txt", "just some text".getBytes("UTF-8"));
+        List<UserItem> items = manager.getItemList();
+        assertEquals(2, items.size());
+        manager.deleteItemAtLocation(ItemSchema.IMAGE_CONTENT_TYPE,
+                ItemSchema.PresentationType.PREVIEW_PRESENTATION_TYPE, "pctechsupportcat.jpg");
+        results = manager.deleteItems(items);
+        assertEquals(presentations + 1, results.size());
+        int notFound = 0;
+        for( DeleteResult result : results ) {
+            if( result.getStatus() == DeleteResult.Status.NOT_FOUND ) {
+                notFound++;
+                assertEquals("/unit_test_user/1234/image/preview/pctechsupportcat.jpg", result.getLocation());
+            } else {
+                assertEquals(DeleteResult.Status.DELETED, result.getStatus());
+            }
+        }
+        assertEquals(1, notFound);
+        assertEquals(0, countingStore.size());
+
+        manager.addItem("notes.txt", "just some text".getBytes("UTF-8"));
+        manager.addItem("more_notes.txt", "more text".getBytes("UTF-8"));
+        assertEquals(2, manager.deleteAllItems().size());
+        assertEquals(0, countingStore.size());
+        assertTrue(manager.getItemList().isEmpty());
+    }
+
+    @Test
+    public void testBatchUpload() throws Exception {
+        InMemoryItemStore flakyStore = failingStore(key -> key.endsWith("broken.txt"));
+        UserItemManager manager = newManager(flakyStore)
+                .setBatchPipelineDepth(2);
+        byte[] testFileBytes = readTestImage();
+        Map<String,byte[]> items = new LinkedHashMap<>();
+        items.put("pctechsupportcat.jpg", testFileBytes);
+        items.put("broken.txt", "won't fit".getBytes("UTF-8"));
+        for( int i = 0; i < 5; ++i ) {
+            items.put("notes" + i + ".txt", ("note " + i).getBytes("UTF-8"));
+        }
+
+        List<AddResult> results = manager.addItems(items);
+        assertEquals(items.size(), results.size());
+        assertEquals("pctechsupportcat.jpg", results.get(0).getName());
+        assertEquals(ItemSchema.IMAGE_CONTENT_TYPE, results.get(0).getContentType());
+        assertEquals(AddResult.Status.FAILED, results.get(1).getStatus());
+        assertTrue(results.get(1).getError().contains("disk full"));
+        for( int i = 2; i < results.size(); ++i ) {
+            assertEquals(AddResult.Status.ADDED, results.get(i).getStatus());
+            assertEquals(ItemSchema.UNKNOWN_CONTENT_TYPE, results.get(i).getContentType());
+        }
+        assertEquals(6, manager.getItemList().size());
+        assertArrayEquals(testFileBytes, manager.getItem(ItemSchema.IMAGE_CONTENT_TYPE,
+                ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE, "pctechsupportcat.jpg", ""));
+        assertNotNull(manager.getItem(ItemSchema.IMAGE_CONTENT_TYPE,
+                ItemSchema.PresentationType.PREVIEW_PRESENTATION_TYPE, "pctechsupportcat.jpg", ""));
+
+        //one check for the whole batch, so nothing is added if it won't all fit
+        Map<String,byte[]> tooMany = new LinkedHashMap<>();
+        for( int i = 0; i < Limits.MAX_NUM_FILES_PER_USER; ++i ) {
+            tooMany.put("extra" + i + ".txt", new byte[1]);
+        }
+        int storedBefore = flakyStore.size();
+        try {
+            manager.addItems(tooMany);
+            fail("Expected the batch to be over quota.");
+        } catch (QuotaExceededException e) {
+            //expected
+        }
+        assertEquals(storedBefore, flakyStore.size());
+    }
+
+    @Test
+    public void testBatchReservesEveryPresentation() throws Exception {
+        byte[] testFileBytes = readTestImage();
+        QuotaService.Usage usage = QuotaService.forStore(itemStore).getUsage(userItemManager.getUserDir());
+        //few enough items, but each image may be stored as every presentation
+        int images = Limits.MAX_NUM_FILES_PER_USER / ItemSchema.PRESENTATION_TYPES.length + 1;
+        Map<String,byte[]> tooMany = new LinkedHashMap<>();
+        for( int i = 0; i < images; ++i ) {
+            tooMany.put("cat" + i + ".jpg", testFileBytes);
+        }
+        try {
+            userItemManager.addItems(tooMany);
+            fail("Expected the batch to be over quota.");
+        } catch (QuotaExceededException e) {
+            log.debug("Batch refused, as expected: " + e.getMessage());
+        }
+        assertEquals(0, itemStore.size());
+        assertEquals(0, usage.getReservedCount());
+
+        Map<String,byte[]> items = new LinkedHashMap<>();
+        items.put("pctechsupportcat.jpg", testFileBytes);
+        items.put("notes.txt", "just some text".getBytes("UTF-8"));
+        userItemManager.addItems(items);
+        assertEquals(0, usage.getReservedCount());
+        assertEquals(itemStore.size(), usage.getItemCount());
+    }
+
+    @Test
+    public void testUploadsAreDispatchedOnce() throws Exception {
+        AtomicInteger canProcessCalls = new AtomicInteger();
+        ImagePreprocessorPlugin probingPlugin = new ImagePreprocessorPlugin() {
+            @Override
+            public boolean canProcess(byte[] fileBuffer) {
+                canProcessCalls.incrementAndGet();
+                return super.canProcess(fileBuffer);
+            }
+        }.setProbesUnsigned(true);
+        UploadPreprocessor uploadPreprocessor = new UploadPreprocessor(Collections.singletonList(probingPlugin));
+        byte[] text = "just some text".getBytes("UTF-8");
+
+        newManager(new InMemoryItemStore(), uploadPreprocessor).addItem("notes.txt", text);
+        assertEquals(1, canProcessCalls.get());
+        newManager(new InMemoryItemStore(), uploadPreprocessor).setDeferPresentations(true).addItem("notes.txt", text);
+        assertEquals(2, canProcessCalls.get());
+        newManager(new InMemoryItemStore(), uploadPreprocessor).addItems(Collections.singletonMap("notes.txt", text));
+        assertEquals(3, canProcessCalls.get());
+        //matched by signature, so never asked
+        newManager(new InMemoryItemStore(), uploadPreprocessor).addItem("pctechsupportcat.jpg", readTestImage());
+        assertEquals(3, canProcessCalls.get());
+    }
+
+    @Test
+    public void testPresentationByteBudget() throws Exception {
+        byte[] testFileBytes = readTestImage();
+        String previewLocation = userItemManager.getItemLocation("pctechsupportcat.jpg",
+                ItemSchema.IMAGE_CONTENT_TYPE, ItemSchema.PresentationType.PREVIEW_PRESENTATION_TYPE);
+        userItemManager.addItem("pctechsupportcat.jpg", testFileBytes);
+        long unbudgetedSize = itemStore.head(previewLocation).getContentLength();
+
+        ImagePreprocessorPlugin budgetedPlugin = new ImagePreprocessorPlugin()
+                .setByteBudget(ItemSchema.PresentationType.PREVIEW_PRESENTATION_TYPE, (int)unbudgetedSize / 2);
+        InMemoryItemStore budgetedStore = new InMemoryItemStore();
+        UserItemManager budgetedManager = newManager(budgetedStore,
+                new UploadPreprocessor(Collections.singletonList(budgetedPlugin)));
+        budgetedManager.addItem("pctechsupportcat.jpg", testFileBytes);
+        assertTrue(budgetedStore.head(previewLocation).getContentLength() <= unbudgetedSize / 2);
+        assertEquals(200, ImageIO.read(new ByteArrayInputStream(budgetedManager.getItem(ItemSchema.IMAGE_CONTENT_TYPE,
+                ItemSchema.PresentationType.PREVIEW_PRESENTATION_TYPE, "pctechsupportcat.jpg", ""))).getWidth());
+    }
+}
@@ -76,6 +76,15 @@ public class UserItemManagerTest
                                     ItemSchema.PresentationType.PREFERRED_PRESENTATION_TYPE,
                                     userItem.getPreferredLocation().itemName)
                     );
+                    for( ItemSchema.PresentationType presentationType : new ItemSchema.PresentationType[] {
+                            ItemSchema.PresentationType.SMALL_PRESENTATION_TYPE,
+                            ItemSchema.PresentationType.LARGE_PRESENTATION_TYPE } ) {
+                        UserItem.UserItemLocation location = userItem.getLocation(presentationType);
+                        if( location != null ) {
+                            System.out.println("Deleted: " + userItemManager.deleteItemAtLocation(userItem.getType(),
+                                    presentationType, location.itemName));
+                        }
+                    }
                     break;
                 }
             }
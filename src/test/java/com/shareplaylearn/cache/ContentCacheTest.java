@@ -0,0 +1,136 @@
+package com.shareplaylearn.cache;
+
+import com.shareplaylearn.models.ItemSchema;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ContentCacheTest
+{
+    private static final ItemSchema.PresentationType PREVIEW = ItemSchema.PresentationType.PREVIEW_PRESENTATION_TYPE;
+    private static final ItemSchema.PresentationType ORIGINAL = ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE;
+
+    @Test
+    public void testPreviewsAreKeptOverOriginals() {
+        ContentCache cache = new ContentCache(100, 300, 200);
+        cache.put("preview1", PREVIEW, new byte[100], cache.getGeneration());
+        cache.put("original1", ORIGINAL, new byte[100], cache.getGeneration());
+        cache.put("original2", ORIGINAL, new byte[100], cache.getGeneration());
+        //the preview is the least recently used, but an original goes first
+        cache.put("preview2", PREVIEW, new byte[100], cache.getGeneration());
+
+        assertNotNull(cache.get("preview1"));
+        assertNotNull(cache.get("preview2"));
+        assertNull(cache.get("original1"));
+        assertNotNull(cache.get("original2"));
+        assertEquals(300, cache.getByteCount());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testBounds() {
+        ContentCache cache = new ContentCache(2, 1000, 100);
+        assertFalse(cache.put("too big", ORIGINAL, new byte[101], cache.getGeneration()));
+        cache.put("a", ORIGINAL, new byte[10], cache.getGeneration());
+        cache.put("b", ORIGINAL, new byte[10], cache.getGeneration());
+        cache.put("c", ORIGINAL, new byte[10], cache.getGeneration());
+        assertEquals(2, cache.size());
+        assertNull(cache.get("a"));
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testPeekIsNotAUse() {
+        ContentCache cache = new ContentCache(2, 1000, 100);
+        cache.put("a", ORIGINAL, new byte[10], cache.getGeneration());
+        cache.put("b", ORIGINAL, new byte[10], cache.getGeneration());
+        cache.peek("a").close();
+        //a is still the least recently used
+        cache.put("c", ORIGINAL, new byte[10], cache.getGeneration());
+        assertNull(cache.peek("a"));
+        assertNotNull(cache.peek("b"));
+        assertEquals(0, cache.getHitCount() + cache.getMissCount());
+    }
+
+    @Test
+    public void testStaleReadIsNotCached() {
+        ContentCache cache = new ContentCache();
+        long generation = cache.getGeneration();
+        cache.invalidate("item");
+        assertFalse(cache.put("item", ORIGINAL, new byte[10], generation));
+        assertNull(cache.get("item"));
+    }
+
+    @Test
+    public void testOffHeap() {
+        //one 1k chunk per page, four pages
+        ContentCache cache = new ContentCache(100, 4096, 1024, ContentCache.Storage.OFF_HEAP);
+        byte[] first = new byte[1000];
+        Arrays.fill(first, (byte)1);
+        cache.put("a", ORIGINAL, first, cache.getGeneration());
+        cache.put("b", ORIGINAL, new byte[1000], cache.getGeneration());
+        cache.put("c", ORIGINAL, new byte[1000], cache.getGeneration());
+        cache.put("d", PREVIEW, new byte[1000], cache.getGeneration());
+
+        try( CachedContent cached = cache.get("a") ) {
+            assertEquals(1000, cached.getLength());
+            assertArrayEquals(first, cached.toByteArray());
+            //out of pages, so the least recently used entry (b) gives up its chunk
+            byte[] second = new byte[1000];
+            Arrays.fill(second, (byte)2);
+            assertTrue(cache.put("e", ORIGINAL, second, cache.getGeneration()));
+            assertNull(cache.peek("b"));
+            try( CachedContent replaced = cache.get("e") ) {
+                assertArrayEquals(second, replaced.toByteArray());
+            }
+            //a's chunk is still being read, so it isn't reused until the view is closed
+            cache.invalidate("a");
+            assertTrue(cache.put("f", ORIGINAL, new byte[1000], cache.getGeneration()));
+            assertNull(cache.peek("c"));
+            assertNotNull(cache.peek("d"));
+            assertArrayEquals(first, cached.toByteArray());
+            assertEquals(2, cache.getEvictionCount());
+        }
+        assertTrue(cache.put("g", ORIGINAL, new byte[1000], cache.getGeneration()));
+        assertEquals(2, cache.getEvictionCount());
+        assertEquals(4, cache.size());
+        assertEquals(4096, cache.getOffHeapBytes());
+    }
+
+    @Test
+    public void testOffHeapEvictionSkipsOpenViews() {
+        ContentCache cache = new ContentCache(100, 4096, 1024, ContentCache.Storage.OFF_HEAP);
+        cache.put("a", ORIGINAL, new byte[1000], cache.getGeneration());
+        cache.put("b", ORIGINAL, new byte[1000], cache.getGeneration());
+        cache.put("c", ORIGINAL, new byte[1000], cache.getGeneration());
+        cache.put("d", PREVIEW, new byte[1000], cache.getGeneration());
+
+        //a is the least recently used, but it's being read, so b gives up its chunk instead
+        CachedContent a = cache.peek("a");
+        assertTrue(cache.put("e", ORIGINAL, new byte[1000], cache.getGeneration()));
+        assertNull(cache.peek("b"));
+        assertEquals(1, cache.getEvictionCount());
+
+        //with every entry being read, there's nothing to evict, so the put fails and the cache is left alone
+        CachedContent c = cache.peek("c");
+        CachedContent d = cache.peek("d");
+        CachedContent e = cache.peek("e");
+        assertFalse(cache.put("f", ORIGINAL, new byte[1000], cache.getGeneration()));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(4, cache.size());
+        for( CachedContent view : Arrays.asList(a, c, d, e) ) {
+            assertNotNull(view);
+            view.close();
+        }
+        assertTrue(cache.put("f", ORIGINAL, new byte[1000], cache.getGeneration()));
+        assertNull(cache.peek("a"));
+        assertEquals(2, cache.getEvictionCount());
+    }
+}
@@ -0,0 +1,54 @@
+package com.shareplaylearn.cache;
+
+import com.shareplaylearn.models.ItemSchema;
+import com.shareplaylearn.models.UserItem;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ItemListCacheTest
+{
+    private static final List<UserItem> ITEM_LIST =
+            Collections.singletonList(new UserItem(ItemSchema.IMAGE_CONTENT_TYPE));
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        ItemListCache cache = new ItemListCache(2, 60 * 1000);
+        cache.put("/root/a/1/", ITEM_LIST, cache.getGeneration());
+        cache.put("/root/b/2/", ITEM_LIST, cache.getGeneration());
+        assertNotNull(cache.get("/root/a/1/"));
+        cache.put("/root/c/3/", ITEM_LIST, cache.getGeneration());
+
+        assertNull(cache.get("/root/b/2/"));
+        assertNotNull(cache.get("/root/a/1/"));
+        assertNotNull(cache.get("/root/c/3/"));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(3, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testExpires() throws InterruptedException {
+        ItemListCache cache = new ItemListCache(10, 1);
+        cache.put("/root/a/1/", ITEM_LIST, cache.getGeneration());
+        Thread.sleep(5);
+        assertNull(cache.get("/root/a/1/"));
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testStaleLoadIsNotCached() {
+        ItemListCache cache = new ItemListCache();
+        long generation = cache.getGeneration();
+        //a write lands while the list is being loaded
+        cache.invalidate("/root/a/1/");
+        assertFalse(cache.put("/root/a/1/", ITEM_LIST, generation));
+        assertNull(cache.get("/root/a/1/"));
+    }
+}
@@ -0,0 +1,74 @@
+package com.shareplaylearn.images;
+
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compares the scalers' speed, and their quality against the original area averaging path (SmoothImageScaler),
+ * on a synthetic photo-sized image. Not run as part of the build:
+ *
+ *   mvn test-compile
+ *   java -cp target/classes:target/test-classes com.shareplaylearn.images.ImageScalerBenchmark [width height iterations]
+ */
+public class ImageScalerBenchmark {
+
+    public static void main( String[] args ) {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 3000;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        BufferedImage source = syntheticPhoto(width, height);
+
+        Map<String,ImageScaler> scalers = new LinkedHashMap<>();
+        scalers.put("smooth (original)", new SmoothImageScaler());
+        scalers.put("progressive bilinear", new ProgressiveImageScaler());
+        for( FilteredImageScaler.Filter filter : FilteredImageScaler.Filter.values() ) {
+            scalers.put("filtered " + filter, new FilteredImageScaler(filter));
+        }
+        scalers.put("banded CATMULL_ROM", new BandedImageScaler(new FilteredImageScaler()));
+
+        int[] targetWidths = { 200, 768 };
+        for( int targetWidth : targetWidths ) {
+            int targetHeight = (int)((double)targetWidth / width * height);
+            BufferedImage reference = new SmoothImageScaler().scale(source, targetWidth, targetHeight);
+            System.out.println(width + "x" + height + " -> " + targetWidth + "x" + targetHeight);
+            for( Map.Entry<String,ImageScaler> scaler : scalers.entrySet() ) {
+                BufferedImage scaled = null;
+                //warm up, then time
+                for( int i = 0; i < 2; ++i ) {
+                    scaled = scaler.getValue().scale(source, targetWidth, targetHeight);
+                }
+                long start = System.nanoTime();
+                for( int i = 0; i < iterations; ++i ) {
+                    scaled = scaler.getValue().scale(source, targetWidth, targetHeight);
+                }
+                double millis = (System.nanoTime() - start) / 1e6 / iterations;
+                System.out.println(String.format("  %-24s %8.1f ms   PSNR vs original: %5.1f dB",
+                        scaler.getKey(), millis, ImageScalerTest.psnr(reference, scaled)));
+            }
+        }
+    }
+
+    /**
+     * Smooth gradients with some fine detail, closer to a photo than noise or flat color.
+     */
+    static BufferedImage syntheticPhoto( int width, int height ) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        int[] row = new int[width];
+        for( int y = 0; y < height; ++y ) {
+            for( int x = 0; x < width; ++x ) {
+                double detail = Math.sin(x * 0.05) * Math.cos(y * 0.07) * 40;
+                int r = clamp(x * 200 / width + detail);
+                int g = clamp(y * 200 / height - detail);
+                int b = clamp(128 + Math.sin((x + y) * 0.01) * 100);
+                row[x] = (r << 16) | (g << 8) | b;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    private static int clamp( double value ) {
+        return (int)Math.max(0, Math.min(255, value));
+    }
+}
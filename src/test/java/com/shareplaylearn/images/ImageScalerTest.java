@@ -0,0 +1,121 @@
+package com.shareplaylearn.images;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ImageScalerTest
+{
+    static final String TEST_IMAGE = "test_jpegs/pctechsupportcat.jpg";
+
+    /**
+     * @return the peak signal to noise ratio between two images of the same size, in dB (higher is closer).
+     */
+    public static double psnr( BufferedImage a, BufferedImage b ) {
+        double squaredError = 0;
+        for( int y = 0; y < a.getHeight(); ++y ) {
+            for( int x = 0; x < a.getWidth(); ++x ) {
+                int pa = a.getRGB(x, y);
+                int pb = b.getRGB(x, y);
+                for( int shift = 0; shift < 24; shift += 8 ) {
+                    int difference = ((pa >> shift) & 0xff) - ((pb >> shift) & 0xff);
+                    squaredError += difference * difference;
+                }
+            }
+        }
+        double meanSquaredError = squaredError / (a.getWidth() * a.getHeight() * 3);
+        return 10 * Math.log10(255.0 * 255.0 / meanSquaredError);
+    }
+
+    static BufferedImage convert( BufferedImage image, int type ) {
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), type);
+        Graphics2D graphics = converted.createGraphics();
+        graphics.drawImage(image, 0, 0, null);
+        graphics.dispose();
+        return converted;
+    }
+
+    @Test
+    public void testCloseToAreaAveraging() throws IOException {
+        BufferedImage source = ImageIO.read(new File(TEST_IMAGE));
+        BufferedImage reference = new SmoothImageScaler().scale(source, 200, 133);
+        ImageScaler[] scalers = { new FilteredImageScaler(), new FilteredImageScaler(FilteredImageScaler.Filter.BOX),
+                new FilteredImageScaler(FilteredImageScaler.Filter.LANCZOS3), new ProgressiveImageScaler() };
+        for( ImageScaler scaler : scalers ) {
+            BufferedImage scaled = scaler.scale(source, 200, 133);
+            assertEquals(200, scaled.getWidth());
+            assertEquals(133, scaled.getHeight());
+            assertEquals(BufferedImage.TYPE_INT_RGB, scaled.getType());
+            double psnr = psnr(reference, scaled);
+            assertTrue(scaler.getClass().getSimpleName() + " PSNR: " + psnr, psnr > 30);
+        }
+    }
+
+    @Test
+    public void testFlatColorStaysFlat() {
+        BufferedImage source = new BufferedImage(999, 601, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = source.createGraphics();
+        graphics.setColor(new java.awt.Color(12, 200, 77));
+        graphics.fillRect(0, 0, 999, 601);
+        graphics.dispose();
+        BufferedImage scaled = new FilteredImageScaler(FilteredImageScaler.Filter.LANCZOS3).scale(source, 97, 61);
+        for( int y = 0; y < 61; ++y ) {
+            for( int x = 0; x < 97; ++x ) {
+                assertEquals(0x0cc84d, scaled.getRGB(x, y) & 0xffffff);
+            }
+        }
+    }
+
+    @Test
+    public void testRasterLayouts() throws IOException {
+        BufferedImage source = ImageIO.read(new File(TEST_IMAGE));
+        int[] expected = source.getRGB(0, 0, source.getWidth(), source.getHeight(), null, 0, source.getWidth());
+        for( int i = 0; i < expected.length; ++i ) {
+            expected[i] &= 0xffffff;
+        }
+        int[] types = { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR,
+                BufferedImage.TYPE_INT_BGR };
+        for( int type : types ) {
+            BufferedImage converted = convert(source, type);
+            assertArrayEquals("image type " + type, expected, FilteredImageScaler.rgbPixels(converted));
+            //a sub image shares its parent's data, at an offset
+            BufferedImage subimage = converted.getSubimage(10, 20, 100, 50);
+            int[] expectedSubimage = new int[100 * 50];
+            for( int y = 0; y < 50; ++y ) {
+                System.arraycopy(expected, (y + 20) * source.getWidth() + 10, expectedSubimage, y * 100, 100);
+            }
+            assertArrayEquals("image type " + type, expectedSubimage, FilteredImageScaler.rgbPixels(subimage));
+        }
+    }
+
+    @Test
+    public void testBandsMatchSingleThreaded() throws IOException {
+        BufferedImage source = ImageIO.read(new File(TEST_IMAGE));
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for( FilteredImageScaler.Filter filter : FilteredImageScaler.Filter.values() ) {
+                FilteredImageScaler scaler = new FilteredImageScaler(filter);
+                //small bands, so there are lots of band edges
+                BandedImageScaler bandedScaler = new BandedImageScaler(scaler, pool, 3);
+                int[][] sizes = { { 200, 133 }, { 97, 61 }, { 450, 300 }, { 900, 600 } };
+                for( int[] size : sizes ) {
+                    BufferedImage expected = scaler.scale(source, size[0], size[1]);
+                    BufferedImage banded = bandedScaler.scale(source, size[0], size[1]);
+                    assertArrayEquals(filter + " " + size[0] + "x" + size[1],
+                            FilteredImageScaler.rgbPixels(expected), FilteredImageScaler.rgbPixels(banded));
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
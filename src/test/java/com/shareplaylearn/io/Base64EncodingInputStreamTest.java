@@ -0,0 +1,32 @@
+package com.shareplaylearn.io;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class Base64EncodingInputStreamTest
+{
+    @Test
+    public void testMatchesJdkEncoder() throws IOException {
+        Random random = new Random(42);
+        //cover the padding cases, and lengths that straddle the internal chunk size
+        int[] lengths = { 0, 1, 2, 3, 4, 5, 3 * 4096 - 1, 3 * 4096, 3 * 4096 + 1, 100000 };
+        for( int length : lengths ) {
+            byte[] raw = new byte[length];
+            random.nextBytes(raw);
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            Streams.copy(new Base64EncodingInputStream(new ByteArrayInputStream(raw)), encoded);
+            String expected = Base64.getEncoder().encodeToString(raw);
+            assertEquals("Encoding of " + length + " bytes", expected,
+                    new String(encoded.toByteArray(), StandardCharsets.UTF_8));
+            assertEquals(expected.length(), Base64EncodingInputStream.encodedLength(length));
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.shareplaylearn.models;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class UserItemTest
+{
+    @Test
+    public void testConstructorSizes() {
+        UserItem.UserItemLocation preview = new UserItem.UserItemLocation("/user/1/image/preview/cat.jpg", "cat.jpg");
+        UserItem.UserItemLocation preferred = new UserItem.UserItemLocation("/user/1/image/preferred/cat.jpg", "cat.jpg");
+        UserItem.UserItemLocation original = new UserItem.UserItemLocation("/user/1/image/original/cat.png", "cat.png");
+
+        UserItem userItem = new UserItem(preferred, preview, original, ItemSchema.IMAGE_CONTENT_TYPE);
+        assertEquals(2, userItem.getSizes().size());
+        assertSame(preferred, userItem.getLocation(ItemSchema.PresentationType.PREFERRED_PRESENTATION_TYPE));
+        assertSame(preferred, userItem.getLocationForWidth(500));
+        assertSame(preview, userItem.getLocationForWidth(100));
+
+        //preferring the original doesn't make it a resized presentation
+        UserItem unresized = new UserItem(original, preview, original, ItemSchema.IMAGE_CONTENT_TYPE);
+        assertEquals(1, unresized.getSizes().size());
+        assertSame(original, unresized.getLocationForWidth(500));
+    }
+}
@@ -0,0 +1,199 @@
+package com.shareplaylearn.services;
+
+import com.shareplaylearn.images.ImageScalerTest;
+import com.shareplaylearn.models.ItemSchema;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ImagePreprocessorPluginTest
+{
+    private static final ItemSchema.PresentationType ORIGINAL = ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE;
+    private static final ItemSchema.PresentationType PREVIEW = ItemSchema.PresentationType.PREVIEW_PRESENTATION_TYPE;
+    private static final ItemSchema.PresentationType PREFERRED = ItemSchema.PresentationType.PREFERRED_PRESENTATION_TYPE;
+    private static final ItemSchema.PresentationType SMALL = ItemSchema.PresentationType.SMALL_PRESENTATION_TYPE;
+    private static final ItemSchema.PresentationType LARGE = ItemSchema.PresentationType.LARGE_PRESENTATION_TYPE;
+
+    static byte[] makeImage( int width, int height, String format ) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for( int y = 0; y < height; ++y ) {
+            for( int x = 0; x < width; ++x ) {
+                image.setRGB(x, y, ((x * 255 / width) << 16) | ((y * 255 / height) << 8) | ((x ^ y) & 0xff));
+            }
+        }
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ImageIO.write(image, format, outputStream);
+        return outputStream.toByteArray();
+    }
+
+    @Test
+    public void testResultCarriesDimensionsAndExtensions() throws IOException {
+        ImagePreprocessorPlugin plugin = new ImagePreprocessorPlugin();
+        byte[] png = makeImage(1600, 1200, "png");
+        ProcessedUpload upload = plugin.process(png);
+
+        assertEquals(ItemSchema.IMAGE_CONTENT_TYPE, upload.getContentType());
+        assertEquals(5, upload.size());
+        assertArrayEquals(png, upload.get(ORIGINAL).getData());
+        assertEquals("", upload.get(ORIGINAL).getFileExtension());
+        assertEquals(1600, upload.get(ORIGINAL).getWidth());
+        assertEquals(1200, upload.get(ORIGINAL).getHeight());
+
+        ProcessedUpload.Presentation preview = upload.get(PREVIEW);
+        assertEquals("jpg", preview.getFileExtension());
+        assertEquals(ImagePreprocessorPlugin.PREVIEW_WIDTH, preview.getWidth());
+        assertEquals(150, preview.getHeight());
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(preview.getData()));
+        assertEquals(ImagePreprocessorPlugin.PREVIEW_WIDTH, decoded.getWidth());
+        assertEquals(150, decoded.getHeight());
+
+        assertEquals(ImagePreprocessorPlugin.RESIZE_LIMIT, upload.get(PREFERRED).getWidth());
+        assertEquals(576, upload.get(PREFERRED).getHeight());
+        assertEquals(400, upload.get(SMALL).getWidth());
+        assertEquals(300, upload.get(SMALL).getHeight());
+        assertEquals(1536, upload.get(LARGE).getWidth());
+        assertEquals(1152, upload.get(LARGE).getHeight());
+    }
+
+    @Test
+    public void testSizeLadder() throws IOException {
+        ImagePreprocessorPlugin plugin = new ImagePreprocessorPlugin();
+        byte[] jpeg = makeImage(1000, 500, "jpg");
+
+        //only the rungs narrower than the image
+        ProcessedUpload upload = plugin.process(jpeg);
+        assertEquals(4, upload.size());
+        assertEquals(200, upload.get(PREVIEW).getWidth());
+        assertEquals(400, upload.get(SMALL).getWidth());
+        assertEquals(768, upload.get(PREFERRED).getWidth());
+        assertEquals(384, upload.get(PREFERRED).getHeight());
+        assertFalse(upload.getPresentations().containsKey(LARGE));
+
+        //the preview is always made, and the rungs that aren't on the ladder aren't
+        plugin.setSizeLadder(PREFERRED);
+        assertEquals(java.util.Arrays.asList(PREVIEW, PREFERRED), plugin.getSizeLadder());
+        upload = plugin.process(jpeg);
+        assertEquals(3, upload.size());
+        assertFalse(upload.getPresentations().containsKey(SMALL));
+
+        //small images still get a preview
+        upload = plugin.process(makeImage(150, 100, "png"));
+        assertEquals(2, upload.size());
+        assertEquals(200, upload.get(PREVIEW).getWidth());
+    }
+
+    @Test
+    public void testByteBudget() throws IOException {
+        //noise is about as hard to compress as a photo gets
+        java.util.Random random = new java.util.Random(42);
+        BufferedImage image = new BufferedImage(1000, 750, BufferedImage.TYPE_INT_RGB);
+        for( int y = 0; y < image.getHeight(); ++y ) {
+            for( int x = 0; x < image.getWidth(); ++x ) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", outputStream);
+        byte[] png = outputStream.toByteArray();
+
+        ImagePreprocessorPlugin plugin = new ImagePreprocessorPlugin();
+        int unbudgeted = plugin.process(png).get(PREVIEW).getData().length;
+        int budget = unbudgeted / 2;
+        plugin.setByteBudget(PREVIEW, budget);
+        assertEquals(budget, plugin.getByteBudget(PREVIEW));
+        ProcessedUpload upload = plugin.process(png);
+        byte[] preview = upload.get(PREVIEW).getData();
+        assertTrue(preview.length + " bytes, budget: " + budget, preview.length <= budget);
+        //close to the budget, not just the lowest quality
+        assertTrue(preview.length + " bytes, budget: " + budget, preview.length > budget * 3 / 4);
+        assertEquals(200, ImageIO.read(new ByteArrayInputStream(preview)).getWidth());
+        assertEquals(0, plugin.getByteBudget(PREFERRED));
+
+        //within budget already, so encoded exactly as without one
+        byte[] gradient = makeImage(1000, 750, "png");
+        byte[] expected = new ImagePreprocessorPlugin().process(gradient).get(PREVIEW).getData();
+        plugin.setByteBudget(PREVIEW, expected.length);
+        assertArrayEquals(expected, plugin.process(gradient).get(PREVIEW).getData());
+
+        //an impossible budget gets the lowest quality, rather than nothing
+        plugin.setByteBudget(PREVIEW, 10);
+        assertTrue(plugin.process(png).get(PREVIEW).getData().length > 10);
+    }
+
+    @Test
+    public void testNotAnImage() {
+        ImagePreprocessorPlugin plugin = new ImagePreprocessorPlugin();
+        assertFalse(plugin.canProcess("just some text".getBytes()));
+    }
+
+    @Test
+    public void testSharedAcrossThreads() throws Exception {
+        ImagePreprocessorPlugin plugin = new ImagePreprocessorPlugin();
+        byte[] jpeg = makeImage(1000, 500, "jpg");
+        ProcessedUpload expected = plugin.process(jpeg);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<ProcessedUpload>> results = new ArrayList<>();
+            for( int i = 0; i < 32; ++i ) {
+                results.add(executorService.submit(() -> plugin.process(jpeg)));
+            }
+            for( Future<ProcessedUpload> result : results ) {
+                ProcessedUpload upload = result.get();
+                assertArrayEquals(expected.get(PREVIEW).getData(), upload.get(PREVIEW).getData());
+                assertArrayEquals(expected.get(PREFERRED).getData(), upload.get(PREFERRED).getData());
+            }
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    @Test
+    public void testCodecPoolReusesWriters() throws IOException {
+        ImageCodecPool codecPool = new ImageCodecPool(1);
+        ImageWriter writer = codecPool.borrowWriter("image/jpeg");
+        codecPool.returnWriter(writer);
+        assertSame(writer, codecPool.borrowWriter("image/jpeg"));
+    }
+
+    @Test
+    public void testLargeImagesAreSubsampledOnDecode() throws IOException {
+        //24 MP, with the default ladder
+        ImagePreprocessorPlugin plugin = new ImagePreprocessorPlugin();
+        byte[] jpeg = makeImage(6000, 4000, "jpg");
+
+        ImagePreprocessorPlugin.DecodedImage decoded = plugin.decode(jpeg, null);
+        assertEquals(6000, decoded.width);
+        assertEquals(4000, decoded.height);
+        //subsampled by 3, still at least the large width
+        assertEquals(2000, decoded.image.getWidth());
+        assertEquals(1334, decoded.image.getHeight());
+
+        ProcessedUpload upload = plugin.process(jpeg);
+        assertEquals(6000, upload.get(ORIGINAL).getWidth());
+        assertEquals(1024, upload.get(LARGE).getHeight());
+        assertEquals(512, upload.get(PREFERRED).getHeight());
+        assertEquals(133, upload.get(PREVIEW).getHeight());
+
+        //the preview looks (nearly) the same as one made from the full image
+        ProcessedUpload full = new ImagePreprocessorPlugin().setDecodeOversampling(Integer.MAX_VALUE).process(jpeg);
+        assertTrue(ImageScalerTest.psnr(ImageIO.read(new ByteArrayInputStream(full.get(PREVIEW).getData())),
+                ImageIO.read(new ByteArrayInputStream(upload.get(PREVIEW).getData()))) > 30);
+    }
+}
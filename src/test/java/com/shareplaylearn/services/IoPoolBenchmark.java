@@ -0,0 +1,116 @@
+package com.shareplaylearn.services;
+
+import com.shareplaylearn.Limits;
+import com.shareplaylearn.UserItemManager;
+import com.shareplaylearn.models.AddResult;
+import com.shareplaylearn.storage.InMemoryItemStore;
+import com.shareplaylearn.storage.ItemStore;
+import com.shareplaylearn.storage.StoredItem;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Compares the io pool on platform threads with the io pool on virtual threads, against a store that takes
+ * latencyMs per call (like S3 does), for a fan out of store calls (like saveItems() does), and a batch upload.
+ * Virtual threads need Java 21, running the multi-release jar, which building on JDK 21 makes (the java21 profile).
+ * Not run as part of the build:
+ *
+ *   mvn package -DskipTests
+ *   java -cp target/user-item-manager-1.7-SNAPSHOT.jar:target/test-classes:[dependencies] \
+ *       com.shareplaylearn.services.IoPoolBenchmark [calls latencyMs]
+ */
+public class IoPoolBenchmark {
+
+    public static void main( String[] args ) throws Exception {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        long latencyMs = args.length > 1 ? Long.parseLong(args[1]) : 20;
+
+        Map<String,ExecutorService> pools = new LinkedHashMap<>();
+        pools.put("platform threads (" + WorkerPools.DEFAULT_IO_THREADS + ")",
+                WorkerPools.newBoundedPool("benchmark-platform", WorkerPools.DEFAULT_IO_THREADS,
+                        WorkerPools.DEFAULT_IO_QUEUE_SIZE));
+        if( VirtualThreads.isAvailable() ) {
+            //as WorkerPools.io() sizes it, to the S3 client's connection pool
+            int maxConcurrent = S3ClientService.getMaxConnections();
+            pools.put("virtual threads (" + maxConcurrent + " at once)",
+                    WorkerPools.newVirtualPool("benchmark-virtual", maxConcurrent));
+        } else {
+            System.out.println("No virtual threads on Java " + System.getProperty("java.version")
+                    + " (or not running the multi-release jar), timing platform threads only.");
+        }
+
+        int batchSize = Limits.MAX_NUM_FILES_PER_USER;
+        System.out.println(calls + " store calls, and a batch upload of " + batchSize + " items, at "
+                + latencyMs + "ms per store call");
+        for( Map.Entry<String,ExecutorService> pool : pools.entrySet() ) {
+            ItemStore itemStore = slowStore(latencyMs);
+            byte[] data = new byte[1024];
+
+            long start = System.nanoTime();
+            List<Future<?>> puts = new ArrayList<>(calls);
+            for( int i = 0; i < calls; ++i ) {
+                String key = "/root/benchmark/1/unknown/original/item" + i;
+                puts.add(pool.getValue().submit( () -> itemStore.put(key, data, new HashMap<>()) ));
+            }
+            for( Future<?> put : puts ) {
+                put.get();
+            }
+            double fanOutMs = (System.nanoTime() - start) / 1e6;
+
+            //the manager's fan out goes through the shared io pool (this shuts down the one it replaces)
+            WorkerPools.setIoPool(pool.getValue());
+            UserItemManager userItemManager = new UserItemManager("benchmark_user", "1", itemStore)
+                    .setBatchPipelineDepth(batchSize);
+            Map<String,byte[]> items = new LinkedHashMap<>();
+            for( int i = 0; i < batchSize; ++i ) {
+                items.put("item" + i + ".bin", data);
+            }
+            start = System.nanoTime();
+            List<AddResult> results = userItemManager.addItems(items);
+            double batchMs = (System.nanoTime() - start) / 1e6;
+            for( AddResult result : results ) {
+                if( result.getStatus() != AddResult.Status.ADDED ) {
+                    throw new IllegalStateException("Benchmark upload failed: " + result);
+                }
+            }
+
+            System.out.println(String.format("  %-36s fan out: %8.1f ms (%7.0f calls/s)   batch upload: %8.1f ms",
+                    pool.getKey(), fanOutMs, calls / fanOutMs * 1000, batchMs));
+        }
+        WorkerPools.shutdown();
+    }
+
+    /**
+     * An in-memory store that takes latencyMs for every put and get, blocking the calling thread like
+     * a network call does.
+     */
+    private static ItemStore slowStore( long latencyMs ) {
+        return new InMemoryItemStore() {
+            @Override
+            public void put(String key, byte[] data, Map<String, String> userMetadata) {
+                sleep(latencyMs);
+                super.put(key, data, userMetadata);
+            }
+
+            @Override
+            public StoredItem get(String key) {
+                sleep(latencyMs);
+                return super.get(key);
+            }
+        };
+    }
+
+    private static void sleep( long ms ) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.shareplaylearn.services;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PresentationQueueTest
+{
+    @Test
+    public void testBoundedByBytes() throws InterruptedException {
+        PresentationQueue queue = new PresentationQueue(1, 1, 10, 1000);
+        CountDownLatch release = new CountDownLatch(1);
+        PresentationQueue.Work blocked = () -> release.await(10, TimeUnit.SECONDS);
+        try {
+            //many small jobs fit, where one more big one doesn't
+            for( int i = 0; i < 10; ++i ) {
+                assertTrue(queue.submit("small" + i, blocked, 60));
+            }
+            assertEquals(600, queue.getPendingBytes());
+            assertFalse(queue.submit("big", blocked, 500));
+            assertTrue(queue.submit("big", blocked, 400));
+            assertEquals(1000, queue.getPendingBytes());
+
+            release.countDown();
+            assertTrue(queue.awaitIdle(10000));
+            assertEquals(0, queue.getPendingBytes());
+            assertTrue(queue.submit("big", () -> {}, 1000));
+        } finally {
+            queue.shutdown();
+        }
+    }
+}
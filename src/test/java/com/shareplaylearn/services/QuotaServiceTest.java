@@ -0,0 +1,75 @@
+package com.shareplaylearn.services;
+
+import com.shareplaylearn.exceptions.QuotaExceededException;
+import com.shareplaylearn.storage.InMemoryItemStore;
+import org.junit.Test;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class QuotaServiceTest
+{
+    private static final String USER_DIR = "/root/unit_test_user/1234/";
+
+    @Test
+    public void testOnlyCountsStoreNearTheLimit() throws QuotaExceededException {
+        InMemoryItemStore itemStore = new InMemoryItemStore();
+        QuotaService quotaService = new QuotaService(itemStore, 0.9, 60 * 1000, 60 * 1000);
+        try {
+            //first use counts the store, after that we go by the local count
+            for( int i = 0; i < 8; ++i ) {
+                quotaService.checkItemQuota(USER_DIR, 10, "test limit");
+                itemStore.put(USER_DIR + "unknown/original/item" + i, new byte[10], new HashMap<>());
+                quotaService.recordAdd(USER_DIR, 1, 10);
+            }
+            assertEquals(1, quotaService.getExactCountCount());
+            assertEquals(80, quotaService.getUsage(USER_DIR).getByteCount());
+
+            //at 90% of the limit, every check counts the store
+            itemStore.put(USER_DIR + "unknown/original/item8", new byte[10], new HashMap<>());
+            quotaService.recordAdd(USER_DIR, 1, 10);
+            quotaService.checkItemQuota(USER_DIR, 10, "test limit");
+            assertEquals(2, quotaService.getExactCountCount());
+
+            //something else filled the user's directory, the exact check catches it
+            itemStore.put(USER_DIR + "unknown/original/item9", new byte[10], new HashMap<>());
+            try {
+                quotaService.checkItemQuota(USER_DIR, 10, "test limit");
+                fail("Expected the quota to be exceeded.");
+            } catch (QuotaExceededException e) {
+                assertEquals(10, quotaService.getUsage(USER_DIR).getItemCount());
+            }
+        } finally {
+            quotaService.shutdown();
+        }
+    }
+
+    @Test
+    public void testReservationsHoldRoomUntilReleased() throws QuotaExceededException {
+        QuotaService quotaService = new QuotaService(new InMemoryItemStore(), 0.9, 60 * 1000, 60 * 1000);
+        try {
+            QuotaService.Reservation first = quotaService.reserveItems(USER_DIR, 10, 5, "test limit");
+            QuotaService.Reservation second = quotaService.reserveItems(USER_DIR, 10, 5, "test limit");
+            //nothing's stored yet, but the room is taken
+            try {
+                quotaService.reserveItems(USER_DIR, 10, 1, "test limit");
+                fail("Expected the quota to be exceeded.");
+            } catch (QuotaExceededException e) {
+                assertEquals(10, quotaService.getUsage(USER_DIR).getReservedCount());
+            }
+
+            //the first upload stored 2 of its 5, the second failed
+            quotaService.recordAdd(USER_DIR, 2, 20);
+            first.close();
+            second.release(5);
+            second.close();
+            assertEquals(0, quotaService.getUsage(USER_DIR).getReservedCount());
+            assertEquals(2, quotaService.getUsage(USER_DIR).getItemCount());
+            quotaService.reserveItems(USER_DIR, 10, 8, "test limit").close();
+        } finally {
+            quotaService.shutdown();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.shareplaylearn.services;
+
+import com.shareplaylearn.models.ItemSchema;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class UploadPreprocessorTest
+{
+    /**
+     * Records what it was asked to process.
+     */
+    private static class RecordingPlugin
+        implements UploadPreprocessorPlugin {
+        final List<ContentSignature> signatures;
+        final String contentType;
+        ContentSignature processedWith;
+        int canProcessCalls = 0;
+        boolean probesUnsigned = false;
+
+        RecordingPlugin( String contentType, ContentSignature... signatures ) {
+            this.contentType = contentType;
+            this.signatures = Arrays.asList(signatures);
+        }
+
+        @Override
+        public boolean canProcess( byte[] fileBuffer ) {
+            canProcessCalls++;
+            return fileBuffer.length > 0 && fileBuffer[0] == '{';
+        }
+
+        @Override
+        public ProcessedUpload process( byte[] fileBuffer ) {
+            return new ProcessedUpload(contentType);
+        }
+
+        @Override
+        public ProcessedUpload process( byte[] fileBuffer, ContentSignature signature ) {
+            processedWith = signature;
+            return process(fileBuffer);
+        }
+
+        @Override
+        public List<ContentSignature> getSignatures() {
+            return signatures;
+        }
+
+        @Override
+        public boolean probesUnsigned() {
+            return probesUnsigned;
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+    }
+
+    @Test
+    public void testDispatchBySignature() {
+        ContentSignature shortSignature = ContentSignature.ascii("short", "test/short", 0, "AB");
+        ContentSignature longSignature = ContentSignature.ascii("long", "test/long", 0, "ABCD");
+        ContentSignature offsetSignature = ContentSignature.ascii("offset", "test/offset", 4, "WEBP");
+        RecordingPlugin shortPlugin = new RecordingPlugin("short", shortSignature, offsetSignature);
+        RecordingPlugin longPlugin = new RecordingPlugin("long", longSignature);
+        RecordingPlugin unsignedPlugin = new RecordingPlugin("json");
+        longPlugin.probesUnsigned = true;
+        UploadPreprocessor uploadPreprocessor = new UploadPreprocessor(
+                Arrays.asList(shortPlugin, longPlugin, unsignedPlugin));
+
+        assertEquals("long", uploadPreprocessor.process("ABCDE".getBytes()).getContentType());
+        assertSame(longSignature, longPlugin.processedWith);
+        assertEquals("short", uploadPreprocessor.process("ABXY".getBytes()).getContentType());
+        assertSame(shortSignature, shortPlugin.processedWith);
+        assertSame(offsetSignature, uploadPreprocessor.sniff("RIFFWEBP".getBytes()));
+        assertEquals(0, unsignedPlugin.canProcessCalls);
+
+        //no signature matches, so the plugins without signatures are asked, then the ones with them that probe
+        assertEquals("json", uploadPreprocessor.process("{}".getBytes()).getContentType());
+        assertEquals(0, longPlugin.canProcessCalls);
+        UploadPreprocessor.Dispatch dispatch = uploadPreprocessor.dispatch("plain text".getBytes());
+        assertNull(dispatch.getPlugin());
+        ProcessedUpload unknown = uploadPreprocessor.process("plain text".getBytes(), dispatch);
+        assertEquals(ItemSchema.UNKNOWN_CONTENT_TYPE, unknown.getContentType());
+        assertEquals(2, unsignedPlugin.canProcessCalls);
+        assertEquals(1, longPlugin.canProcessCalls);
+        assertEquals(0, shortPlugin.canProcessCalls);
+        assertNull(uploadPreprocessor.sniff(new byte[0]));
+    }
+
+    @Test
+    public void testLoadsImagePluginWithSignatures() throws Exception {
+        UploadPreprocessor uploadPreprocessor = UploadPreprocessor.loadPlugins();
+        assertTrue(uploadPreprocessor.getPlugins().get(0) instanceof ImagePreprocessorPlugin);
+
+        byte[] png = ImagePreprocessorPluginTest.makeImage(300, 200, "png");
+        assertEquals("png", uploadPreprocessor.sniff(png).getFormatName());
+        byte[] jpeg = ImagePreprocessorPluginTest.makeImage(300, 200, "jpg");
+        assertEquals("jpeg", uploadPreprocessor.sniff(jpeg).getFormatName());
+        byte[] gif = ImagePreprocessorPluginTest.makeImage(300, 200, "gif");
+        assertEquals("gif", uploadPreprocessor.sniff(gif).getFormatName());
+
+        ProcessedUpload upload = uploadPreprocessor.process(png);
+        assertEquals(ItemSchema.IMAGE_CONTENT_TYPE, upload.getContentType());
+        assertEquals(200, upload.get(ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE).getHeight());
+        assertEquals(ItemSchema.UNKNOWN_CONTENT_TYPE,
+                uploadPreprocessor.process("not an image".getBytes()).getContentType());
+
+        //WBMP has no magic number to declare, so it's only found by asking the plugin, once it probes
+        BufferedImage bitmap = new BufferedImage(300, 200, BufferedImage.TYPE_BYTE_BINARY);
+        ByteArrayOutputStream wbmp = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(bitmap, "wbmp", wbmp));
+        assertNull(uploadPreprocessor.sniff(wbmp.toByteArray()));
+        assertNull(uploadPreprocessor.findPlugin(wbmp.toByteArray()));
+        uploadPreprocessor.getPlugin(ImagePreprocessorPlugin.class).setProbesUnsigned(true);
+        assertTrue(uploadPreprocessor.findPlugin(wbmp.toByteArray()) instanceof ImagePreprocessorPlugin);
+        upload = uploadPreprocessor.process(wbmp.toByteArray());
+        assertEquals(ItemSchema.IMAGE_CONTENT_TYPE, upload.getContentType());
+        assertEquals(200, upload.get(ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE).getHeight());
+        assertNotNull(upload.get(ItemSchema.PresentationType.PREVIEW_PRESENTATION_TYPE));
+    }
+}
@@ -0,0 +1,46 @@
+package com.shareplaylearn.services;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VirtualThreadsTest
+{
+    /**
+     * The tests run from the classes directory, not the multi-release jar, so this loads the Java 21 version
+     * of the class from where the java21 profile compiled it. It's skipped on older JVMs (e.g., JDK 8 or 17),
+     * where the profile doesn't run.
+     */
+    @Test
+    public void testJava21VersionRunsTasksOnVirtualThreads() throws Exception {
+        String specificationVersion = System.getProperty("java.specification.version");
+        Assume.assumeTrue(!specificationVersion.startsWith("1.") && Integer.parseInt(specificationVersion) >= 21);
+        Path classes = Paths.get(VirtualThreads.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        Path versioned = classes.resolve("META-INF/versions/21");
+        assertTrue("The java21 profile should have compiled: " + versioned, Files.isDirectory(versioned));
+
+        try( URLClassLoader loader = new URLClassLoader(new URL[] { versioned.toUri().toURL() }, null) ) {
+            Class<?> java21 = loader.loadClass(VirtualThreads.class.getName());
+            assertEquals(Boolean.TRUE, java21.getMethod("isAvailable").invoke(null));
+            ExecutorService executor = (ExecutorService) java21.getMethod("newThreadPerTaskExecutor", String.class)
+                    .invoke(null, "test-virtual");
+            try {
+                Thread thread = executor.submit(Thread::currentThread).get(10, TimeUnit.SECONDS);
+                assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual").invoke(thread));
+                assertTrue(thread.getName().startsWith("test-virtual-"));
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.shareplaylearn.storage;
+
+import com.shareplaylearn.exceptions.InvalidRangeException;
+import com.shareplaylearn.exceptions.ItemNotFoundException;
+import com.shareplaylearn.exceptions.ItemStoreException;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the same checks against each of the local item store backends.
+ */
+public class ItemStoreTest
+{
+    private static final String USER_DIR = "/root/unit_test_user/1234/";
+
+    @Test
+    public void testInMemoryItemStore() throws IOException {
+        checkItemStore(new InMemoryItemStore());
+    }
+
+    @Test
+    public void testFileSystemItemStore() throws IOException {
+        checkItemStore(new FileSystemItemStore(Files.createTempDirectory("item-store-test")));
+    }
+
+    @Test(expected = ItemStoreException.class)
+    public void testFileSystemItemStoreRejectsEscapingKeys() throws IOException {
+        FileSystemItemStore itemStore = new FileSystemItemStore(Files.createTempDirectory("item-store-test"));
+        itemStore.put(USER_DIR + "../../../../etc/passwd", new byte[1], new HashMap<>());
+    }
+
+    private void checkItemStore( ItemStore itemStore ) throws IOException {
+        byte[] original = "original bytes".getBytes(StandardCharsets.UTF_8);
+        byte[] preview = "preview".getBytes(StandardCharsets.UTF_8);
+        Map<String,String> metadata = new HashMap<>();
+        metadata.put("display_name", "test.txt");
+
+        String originalKey = USER_DIR + "unknown/original/test.txt";
+        String previewKey = USER_DIR + "unknown/preview/test.txt";
+        itemStore.put(originalKey, original, metadata);
+        itemStore.put(previewKey, preview, metadata);
+        itemStore.put("/root/other_user/1234/unknown/original/test.txt", original, metadata);
+
+        assertTrue(itemStore.exists(originalKey));
+        assertEquals(original.length, itemStore.head(originalKey).getContentLength());
+        assertEquals("test.txt", itemStore.head(originalKey).getUserMetadata("display_name"));
+        try( StoredItem storedItem = itemStore.get(originalKey) ) {
+            assertArrayEquals(original, readAll(storedItem.getContent()));
+            assertEquals("test.txt", storedItem.getMetadata().getUserMetadata("display_name"));
+        }
+
+        try( StoredItem range = itemStore.get(originalKey, 9, 100) ) {
+            assertEquals(9, range.getOffset());
+            assertEquals(5, range.getContentLength());
+            assertEquals(original.length, range.getTotalLength());
+            assertArrayEquals("bytes".getBytes(StandardCharsets.UTF_8), readAll(range.getContent()));
+        }
+        try( StoredItem range = itemStore.get(originalKey, 0, 8) ) {
+            assertArrayEquals("original".getBytes(StandardCharsets.UTF_8), readAll(range.getContent()));
+        }
+        try {
+            itemStore.get(originalKey, original.length + 1, 1);
+            fail("Expected a range past the end of the item to be rejected.");
+        } catch (InvalidRangeException e) {
+            //expected
+        }
+
+        List<String> keys = new ArrayList<>();
+        for( ItemSummary summary : itemStore.list(USER_DIR) ) {
+            keys.add(summary.getKey());
+        }
+        assertEquals(2, keys.size());
+        assertTrue(keys.contains(originalKey));
+        assertTrue(keys.contains(previewKey));
+
+        itemStore.delete(originalKey);
+        assertFalse(itemStore.exists(originalKey));
+        try {
+            itemStore.get(originalKey);
+            fail("Expected deleted item to be missing.");
+        } catch (ItemNotFoundException e) {
+            //expected
+        }
+        //deleting a missing item is a no-op
+        itemStore.delete(originalKey);
+
+        //streamed puts replace what's there, the same as puts of a byte array
+        byte[] streamed = "streamed bytes".getBytes(StandardCharsets.UTF_8);
+        assertEquals(streamed.length, itemStore.put(previewKey, new ByteArrayInputStream(streamed), -1, metadata));
+        try( StoredItem storedItem = itemStore.get(previewKey) ) {
+            assertArrayEquals(streamed, readAll(storedItem.getContent()));
+            assertEquals("test.txt", storedItem.getMetadata().getUserMetadata("display_name"));
+        }
+
+        //missing keys are skipped, like delete()
+        assertTrue(itemStore.deleteAll(Arrays.asList(previewKey, originalKey)).isEmpty());
+        assertFalse(itemStore.exists(previewKey));
+        assertFalse(itemStore.list(USER_DIR).iterator().hasNext());
+    }
+
+    private static byte[] readAll( InputStream inputStream ) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int bytesRead;
+        while( (bytesRead = inputStream.read(buffer)) > 0 ) {
+            outputStream.write(buffer, 0, bytesRead);
+        }
+        return outputStream.toByteArray();
+    }
+}